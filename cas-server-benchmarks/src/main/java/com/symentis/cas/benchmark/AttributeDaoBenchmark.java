@@ -0,0 +1,94 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.benchmark;
+
+import com.symentis.cas.services.persondir.support.DirectMappedPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DirectMappedPersonAttributeDao with entries pending logins, i.e. attributes added but not yet taken by a
+ * serviceValidate.
+ *
+ * @author Robert Oschwald
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class AttributeDaoBenchmark {
+  @Param({"1000", "10000", "100000", "1000000"})
+  public int entries;
+
+  @Param({BenchmarkFixtures.IN_MEMORY_STORE, BenchmarkFixtures.OFF_HEAP_STORE})
+  public String store;
+
+  private DirectMappedPersonAttributeDao dao;
+  private Map<String, List<Object>> attributes;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    this.dao = BenchmarkFixtures.createAttributeDao(this.store, this.entries);
+    this.attributes = BenchmarkFixtures.attributes("benchmark");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.dao.destroy();
+  }
+
+  /** Repeated login of a pending netid, replacing its attributes. */
+  @Benchmark
+  public void addAttributes(Logins logins) {
+    this.dao.addAttributes(BenchmarkFixtures.netid(logins.nextPending(this.entries)), this.attributes);
+  }
+
+  /** Login and serviceValidate of a new netid. The number of pending logins stays the same. */
+  @Benchmark
+  public IPersonAttributes addAndGetPerson(Logins logins) {
+    final String netid = logins.nextLogin();
+    this.dao.addAttributes(netid, this.attributes);
+    return this.dao.getPerson(netid);
+  }
+
+  /** serviceValidate without pending login, e.g. a second validation. */
+  @Benchmark
+  public IPersonAttributes getMissingPerson(Logins logins) {
+    return this.dao.getPerson(logins.nextLogin());
+  }
+}
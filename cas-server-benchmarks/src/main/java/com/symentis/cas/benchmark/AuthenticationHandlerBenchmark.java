@@ -0,0 +1,100 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.benchmark;
+
+import com.symentis.cas.authentication.handler.AuthenticationResultCache;
+import com.symentis.cas.authentication.handler.WebserviceAuthenticationHandler;
+import com.symentis.cas.services.persondir.support.DirectMappedPersonAttributeDao;
+import org.jasig.cas.authentication.HandlerResult;
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebserviceAuthenticationHandler with a {@link StubWebserviceClient}, storing the attributes of the principal
+ * in a DirectMappedPersonAttributeDao with entries pending logins.
+ *
+ * @author Robert Oschwald
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class AuthenticationHandlerBenchmark {
+  @Param({"1000", "10000", "100000", "1000000"})
+  public int entries;
+
+  @Param({BenchmarkFixtures.IN_MEMORY_STORE, BenchmarkFixtures.OFF_HEAP_STORE})
+  public String store;
+
+  /** true to answer repeated logins from an AuthenticationResultCache. */
+  @Param({"false", "true"})
+  public boolean resultCache;
+
+  private DirectMappedPersonAttributeDao dao;
+  private WebserviceAuthenticationHandler handler;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    this.dao = BenchmarkFixtures.createAttributeDao(this.store, this.entries);
+    this.handler = new WebserviceAuthenticationHandler();
+    this.handler.setWebserviceClient(new StubWebserviceClient());
+    this.handler.setAttributeRepository(this.dao);
+    if (this.resultCache) {
+      this.handler.setAuthenticationCache(new AuthenticationResultCache());
+    }
+    this.handler.afterPropertiesSet();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.dao.destroy();
+  }
+
+  /** Login, adding the attributes of the principal to the dao. */
+  @Benchmark
+  public HandlerResult authenticate(Logins logins) throws Exception {
+    return this.handler.authenticate(new UsernamePasswordCredential(logins.nextLogin(), BenchmarkFixtures.PASSWORD));
+  }
+
+  /** Login and serviceValidate, taking the attributes from the dao. */
+  @Benchmark
+  public IPersonAttributes authenticateAndGetPerson(Logins logins) throws Exception {
+    final String netid = logins.nextLogin();
+    this.handler.authenticate(new UsernamePasswordCredential(netid, BenchmarkFixtures.PASSWORD));
+    return this.dao.getPerson(netid);
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.benchmark;
+
+import com.symentis.cas.services.persondir.support.DirectMappedPersonAttributeDao;
+import com.symentis.cas.services.persondir.support.OffHeapAttributeStore;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared setup of the benchmarks.
+ *
+ * @author Robert Oschwald
+ */
+final class BenchmarkFixtures {
+  static final String IN_MEMORY_STORE = "inMemory";
+  static final String OFF_HEAP_STORE = "offHeap";
+  static final String PASSWORD = "secret";
+  /* SOAP response of the sample endpoint, answered by the StubMessageSender. */
+  private static final String AUTH_RESPONSE_MESSAGE =
+      "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+          + "<SOAP-ENV:Header/><SOAP-ENV:Body>"
+          + "<ns2:authResponse xmlns:ns2=\"http://roos.cas.samples.ws.org/auth\""
+          + " netid=\"benchmark\" firstname=\"TestFirstName\" lastname=\"TestLastName\"/>"
+          + "</SOAP-ENV:Body></SOAP-ENV:Envelope>";
+
+  private BenchmarkFixtures() {
+  }
+
+  /**
+   * DirectMappedPersonAttributeDao on the given store, holding the attributes of entries pending logins.
+   */
+  static DirectMappedPersonAttributeDao createAttributeDao(String store, int entries) {
+    final DirectMappedPersonAttributeDao dao = new DirectMappedPersonAttributeDao();
+    if (OFF_HEAP_STORE.equals(store)) {
+      dao.setStore(new OffHeapAttributeStore());
+    } else if (!IN_MEMORY_STORE.equals(store)) {
+      throw new IllegalArgumentException("Unknown attribute store: " + store);
+    }
+    // pending logins stay for the whole trial
+    dao.setTTL(60);
+    for (int i = 0; i < entries; i++) {
+      final String netid = netid(i);
+      dao.addAttributes(netid, attributes(netid));
+    }
+    return dao;
+  }
+
+  /** netid of the i-th pending login. */
+  static String netid(int i) {
+    return "user" + i;
+  }
+
+  /** Person attributes as added by the WebserviceAuthenticationHandler. */
+  static Map<String, List<Object>> attributes(String netid) {
+    final Map<String, List<Object>> attributes = new HashMap<String, List<Object>>();
+    attributes.put("firstname", singleValue("TestFirstName"));
+    attributes.put("lastname", singleValue("TestLastName"));
+    attributes.put("netid", singleValue(netid));
+    return attributes;
+  }
+
+  static byte[] authResponseMessage() {
+    return AUTH_RESPONSE_MESSAGE.getBytes(Charset.forName("UTF-8"));
+  }
+
+  private static List<Object> singleValue(Object value) {
+    final List<Object> values = new ArrayList<Object>(1);
+    values.add(value);
+    return values;
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the benchmarks once per thread count and writes the results of each run as JSON,
+ * e.g. target/benchmark-results/jmh-16-threads.json. Compare the files of two releases to find regressions.
+ * <p/>
+ * Usage: java -jar target/benchmarks.jar [benchmark regexp]
+ * <p/>
+ * System properties:
+ * <ul>
+ * <li>benchmark.threads: comma separated thread counts. Default is 1,4,16,64</li>
+ * <li>benchmark.entries: comma separated numbers of pending logins. Default are the values of the benchmarks</li>
+ * <li>benchmark.resultDir: directory of the result files. Default is target/benchmark-results</li>
+ * </ul>
+ *
+ * @author Robert Oschwald
+ */
+public final class BenchmarkRunner {
+
+  private BenchmarkRunner() {
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    final String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*";
+    final String[] threadCounts = System.getProperty("benchmark.threads", "1,4,16,64").split(",");
+    final String entries = System.getProperty("benchmark.entries");
+    final File resultDir = new File(System.getProperty("benchmark.resultDir", "target/benchmark-results"));
+    if (!resultDir.isDirectory() && !resultDir.mkdirs()) {
+      throw new IllegalStateException("Cannot create result directory " + resultDir);
+    }
+    for (String threadCount : threadCounts) {
+      final int threads = Integer.parseInt(threadCount.trim());
+      final ChainedOptionsBuilder options = new OptionsBuilder()
+          .include(include)
+          .threads(threads)
+          .resultFormat(ResultFormatType.JSON)
+          .result(new File(resultDir, "jmh-" + threads + "-threads.json").getPath());
+      if (entries != null) {
+        options.param("entries", entries.split(","));
+      }
+      new Runner(options.build()).run();
+    }
+  }
+}
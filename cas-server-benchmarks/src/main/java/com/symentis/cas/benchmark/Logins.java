@@ -0,0 +1,64 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per benchmark thread source of netids.
+ * <p/>
+ * New logins use netids of the thread, which are not part of the pending logins of the fixture.
+ * Their names are created up front, so building them is not measured.
+ *
+ * @author Robert Oschwald
+ */
+@State(Scope.Thread)
+public class Logins {
+  /* Distinct netids per thread. Small enough to hit an AuthenticationResultCache with 64 threads. */
+  private static final int NETIDS_PER_THREAD = 128;
+  private static final AtomicInteger threads = new AtomicInteger();
+  private final String[] netids = new String[NETIDS_PER_THREAD];
+  private final Random random;
+  private int next;
+
+  public Logins() {
+    final int thread = threads.getAndIncrement();
+    for (int i = 0; i < NETIDS_PER_THREAD; i++) {
+      this.netids[i] = "login" + thread + "-" + i;
+    }
+    this.random = new Random(thread);
+  }
+
+  /** netid of a new login of this thread. */
+  public String nextLogin() {
+    final String netid = this.netids[this.next];
+    this.next = (this.next + 1) % NETIDS_PER_THREAD;
+    return netid;
+  }
+
+  /** Random index of a pending login of the fixture. */
+  public int nextPending(int entries) {
+    return this.random.nextInt(entries);
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.benchmark;
+
+import org.springframework.ws.WebServiceMessage;
+import org.springframework.ws.WebServiceMessageFactory;
+import org.springframework.ws.transport.WebServiceConnection;
+import org.springframework.ws.transport.WebServiceMessageSender;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+
+/**
+ * In-process replacement of the SOAP backend and the HTTP transport.
+ * <p/>
+ * Requests are serialized and discarded, every request is answered by parsing the same response message.
+ * So a call pays the (un-)marshalling and message handling of a real call, but no network IO.
+ *
+ * @author Robert Oschwald
+ */
+public class StubMessageSender implements WebServiceMessageSender {
+  private final byte[] response;
+
+  public StubMessageSender(byte[] response) {
+    this.response = response;
+  }
+
+  public WebServiceConnection createConnection(URI uri) {
+    return new StubConnection(uri, this.response);
+  }
+
+  public boolean supports(URI uri) {
+    return true;
+  }
+
+  private static final class StubConnection implements WebServiceConnection {
+    private final URI uri;
+    private final byte[] response;
+
+    StubConnection(URI uri, byte[] response) {
+      this.uri = uri;
+      this.response = response;
+    }
+
+    public void send(WebServiceMessage message) throws IOException {
+      message.writeTo(DiscardingOutputStream.INSTANCE);
+    }
+
+    public WebServiceMessage receive(WebServiceMessageFactory messageFactory) throws IOException {
+      return messageFactory.createWebServiceMessage(new ByteArrayInputStream(this.response));
+    }
+
+    public URI getUri() {
+      return this.uri;
+    }
+
+    public boolean hasError() {
+      return false;
+    }
+
+    public String getErrorMessage() {
+      return null;
+    }
+
+    public void close() {
+    }
+  }
+
+  private static final class DiscardingOutputStream extends OutputStream {
+    static final DiscardingOutputStream INSTANCE = new DiscardingOutputStream();
+
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.benchmark;
+
+import com.symentis.cas.adaptors.ws.WebserviceClient;
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.DefaultPrincipalFactory;
+import org.jasig.cas.authentication.principal.Principal;
+import org.jasig.cas.authentication.principal.PrincipalFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-process WebserviceClient accepting every password, like the sample endpoint.
+ * Returns a Principal with the attributes the ExampleWsClient receives.
+ *
+ * @author Robert Oschwald
+ */
+public class StubWebserviceClient implements WebserviceClient {
+  private final PrincipalFactory principalFactory = new DefaultPrincipalFactory();
+
+  public Principal doAuthentication(UsernamePasswordCredential credential) {
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put("firstname", "TestFirstName");
+    attributes.put("lastname", "TestLastName");
+    attributes.put("netid", credential.getUsername());
+    return this.principalFactory.createPrincipal(credential.getUsername(), attributes);
+  }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.benchmark;
+
+import com.symentis.cas.authentication.handler.WebserviceAuthenticationHandler;
+import com.symentis.cas.ticket.registry.support.CompactTicketCodec;
+import com.symentis.cas.ticket.registry.support.JavaTicketSerializer;
+import com.symentis.cas.ticket.registry.support.TicketSerializer;
+import net.spy.memcached.CachedData;
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.AuthenticationBuilder;
+import org.jasig.cas.authentication.BasicCredentialMetaData;
+import org.jasig.cas.authentication.HandlerResult;
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.registry.support.kryo.KryoTranscoder;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.TicketGrantingTicketExpirationPolicy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of tickets by the ticket registries: Java serialization, the CompactTicketCodec and the
+ * KryoTranscoder of the CAS MemCacheTicketRegistry. The written or read bytes are reported as secondary result
+ * serializedBytes in bytes per time unit. Divided by the score, it is the serialized size of the ticket.
+ *
+ * @author Robert Oschwald
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class TicketCodecBenchmark {
+  @Param({"java", "compact", "kryo"})
+  public String codec;
+
+  /** Serialized ticket: tgt, st (with its tgt) or pgt (with the chain of st and tgt). */
+  @Param({"tgt", "st", "pgt"})
+  public String ticket;
+
+  private TicketSerializer serializer;
+  private Ticket value;
+  private byte[] serialized;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    this.serializer = createSerializer(this.codec);
+    this.value = createTicket(this.ticket);
+    this.serialized = this.serializer.serialize(this.value);
+    // verifies the codec reads its own data
+    if (!this.serializer.deserialize(this.serialized).getId().equals(this.value.getId())) {
+      throw new IllegalStateException(this.codec + " does not restore ticket " + this.value.getId());
+    }
+  }
+
+  @Benchmark
+  public byte[] serialize(final Bytes bytes) {
+    final byte[] data = this.serializer.serialize(this.value);
+    bytes.serializedBytes += data.length;
+    return data;
+  }
+
+  @Benchmark
+  public Ticket deserialize(final Bytes bytes) {
+    bytes.serializedBytes += this.serialized.length;
+    return this.serializer.deserialize(this.serialized);
+  }
+
+  /**
+   * Bytes written or read by the thread, reported like the operations of the benchmark, so they reach the
+   * result files of the BenchmarkRunner.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Bytes {
+    public long serializedBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      this.serializedBytes = 0;
+    }
+  }
+
+  private static TicketSerializer createSerializer(String codec) {
+    if ("java".equals(codec)) {
+      return new JavaTicketSerializer();
+    }
+    if ("compact".equals(codec)) {
+      return new CompactTicketCodec();
+    }
+    if ("kryo".equals(codec)) {
+      final KryoTranscoder transcoder = new KryoTranscoder(8192);
+      transcoder.initialize();
+      return new TicketSerializer() {
+        public byte[] serialize(Ticket ticket) {
+          return transcoder.encode(ticket).getData();
+        }
+
+        public Ticket deserialize(byte[] data) {
+          return (Ticket) transcoder.decode(new CachedData(0, data, CachedData.MAX_SIZE));
+        }
+      };
+    }
+    throw new IllegalArgumentException("Unknown codec: " + codec);
+  }
+
+  /* tickets of a login with the attributes of the StubWebserviceClient, granted like the CAS defaults. */
+  private static Ticket createTicket(String ticket) throws Exception {
+    final WebserviceAuthenticationHandler handler = new WebserviceAuthenticationHandler();
+    handler.setWebserviceClient(new StubWebserviceClient());
+    handler.setAttributeRepository(BenchmarkFixtures.createAttributeDao(BenchmarkFixtures.IN_MEMORY_STORE, 0));
+    handler.afterPropertiesSet();
+    final UsernamePasswordCredential credential = new UsernamePasswordCredential(BenchmarkFixtures.netid(0), BenchmarkFixtures.PASSWORD);
+    final HandlerResult result = handler.authenticate(credential);
+    final Authentication authentication = new AuthenticationBuilder(result.getPrincipal())
+        .addCredential(new BasicCredentialMetaData(credential))
+        .addSuccess(handler.getName(), result)
+        .addAttribute("authenticationMethod", handler.getName())
+        .build();
+    final TicketGrantingTicket tgt = new TicketGrantingTicketImpl("TGT-1-hJSE7XRsWYe2cUBhB5ZG5ReJrHuOkgYzSr1jadlawTWXpc6bkC-cas01.example.org",
+        authentication, new TicketGrantingTicketExpirationPolicy(28800, 7200, TimeUnit.SECONDS));
+    if ("tgt".equals(ticket)) {
+      return tgt;
+    }
+    final ServiceTicket st = tgt.grantServiceTicket("ST-1-Pb6tvqEffWfwOcCQwPyu-cas01.example.org",
+        new SimpleWebApplicationServiceImpl("https://app.example.org/login/cas"),
+        new MultiTimeUseOrTimeoutExpirationPolicy(1, 10, TimeUnit.SECONDS), true);
+    if ("st".equals(ticket)) {
+      return st;
+    }
+    if ("pgt".equals(ticket)) {
+      return st.grantProxyGrantingTicket("PGT-1-yFQbgLuEa6GfNjNF5yXiWVNlUAdSGl5JmZs1eSnCdDjLrL6sWc-cas01.example.org",
+          authentication, new TicketGrantingTicketExpirationPolicy(28800, 7200, TimeUnit.SECONDS));
+    }
+    throw new IllegalArgumentException("Unknown ticket: " + ticket);
+  }
+}
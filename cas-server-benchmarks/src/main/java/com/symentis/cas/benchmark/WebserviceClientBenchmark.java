@@ -0,0 +1,127 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.benchmark;
+
+import com.symentis.cas.ws.sample.client.AuthPayloadMarshaller;
+import com.symentis.cas.ws.sample.client.ExampleWsClient;
+import com.symentis.cas.ws.samples.auth.schema.AuthRequest;
+import com.symentis.cas.ws.samples.auth.schema.ObjectFactory;
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.Principal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.oxm.Marshaller;
+import org.springframework.oxm.Unmarshaller;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+import org.springframework.ws.WebServiceMessage;
+import org.springframework.ws.soap.saaj.SaajSoapMessageFactory;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExampleWsClient against the in-process {@link StubMessageSender}, with the JAXB webserviceMarshaller
+ * or the streaming AuthPayloadMarshaller.
+ *
+ * @author Robert Oschwald
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WebserviceClientBenchmark {
+  static final String JAXB_MARSHALLER = "jaxb";
+  static final String STREAMING_MARSHALLER = "streaming";
+
+  @Param({JAXB_MARSHALLER, STREAMING_MARSHALLER})
+  public String marshaller;
+
+  private Marshaller payloadMarshaller;
+  private Unmarshaller payloadUnmarshaller;
+  private SaajSoapMessageFactory messageFactory;
+  private ExampleWsClient client;
+  private AuthRequest request;
+  private byte[] response;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    if (JAXB_MARSHALLER.equals(this.marshaller)) {
+      final Jaxb2Marshaller jaxb2Marshaller = new Jaxb2Marshaller();
+      jaxb2Marshaller.setContextPath("com.symentis.cas.ws.samples.auth.schema");
+      jaxb2Marshaller.afterPropertiesSet();
+      this.payloadMarshaller = jaxb2Marshaller;
+      this.payloadUnmarshaller = jaxb2Marshaller;
+    } else if (STREAMING_MARSHALLER.equals(this.marshaller)) {
+      final AuthPayloadMarshaller authPayloadMarshaller = new AuthPayloadMarshaller();
+      this.payloadMarshaller = authPayloadMarshaller;
+      this.payloadUnmarshaller = authPayloadMarshaller;
+    } else {
+      throw new IllegalArgumentException("Unknown marshaller: " + this.marshaller);
+    }
+    this.messageFactory = new SaajSoapMessageFactory();
+    this.messageFactory.afterPropertiesSet();
+    this.response = BenchmarkFixtures.authResponseMessage();
+
+    this.client = new ExampleWsClient();
+    this.client.setMessageFactory(this.messageFactory);
+    this.client.setMarshaller(this.payloadMarshaller);
+    this.client.setUnmarshaller(this.payloadUnmarshaller);
+    this.client.setMessageSender(new StubMessageSender(this.response));
+    this.client.setDefaultUri("http://localhost:8080/cas/auth/authentication.wsdl");
+    this.client.afterPropertiesSet();
+
+    this.request = new ObjectFactory().createAuthRequest();
+    this.request.setNetid("benchmark");
+    this.request.setPassword(BenchmarkFixtures.PASSWORD);
+  }
+
+  /** Webservice authentication, from the credential to the Principal. */
+  @Benchmark
+  public Principal doAuthentication(Logins logins) throws Exception {
+    return this.client.doAuthentication(new UsernamePasswordCredential(logins.nextLogin(), BenchmarkFixtures.PASSWORD));
+  }
+
+  /** Request payload only. */
+  @Benchmark
+  public WebServiceMessage marshalRequest() throws Exception {
+    final WebServiceMessage message = this.messageFactory.createWebServiceMessage();
+    this.payloadMarshaller.marshal(this.request, message.getPayloadResult());
+    return message;
+  }
+
+  /** Parsing the response message and unmarshalling its payload. */
+  @Benchmark
+  public Object unmarshalResponse() throws Exception {
+    final WebServiceMessage message = this.messageFactory.createWebServiceMessage(new ByteArrayInputStream(this.response));
+    return this.payloadUnmarshaller.unmarshal(message.getPayloadSource());
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.loadtest;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.util.regex.Pattern;
+
+/**
+ * Embedded Jetty running the cas-server-overlay war, with the same connector and context path as the
+ * jetty-maven-plugin of the overlay. The sample ExampleAuthenticationEndpoint of the war is the SOAP backend
+ * of the WebserviceAuthenticationHandler, so the whole login runs in this JVM.
+ *
+ * @author Robert Oschwald
+ */
+public class EmbeddedCasServer {
+  private static final Logger log = LoggerFactory.getLogger(EmbeddedCasServer.class);
+  private static final String ROOT_CONTEXT_ATTRIBUTE = "org.springframework.web.context.WebApplicationContext.ROOT";
+  private final Server server = new Server();
+  private final WebAppContext webapp = new WebAppContext();
+
+  /**
+   * @param war  the cas-server-overlay war file or exploded directory
+   * @param port HTTP port. The defaultUri of the authWebserviceClient uses 8080.
+   */
+  public EmbeddedCasServer(File war, int port) {
+    if (!war.exists()) {
+      throw new IllegalArgumentException("CAS war not found: " + war + ". Build the cas-server-overlay module first.");
+    }
+    final SelectChannelConnector connector = new SelectChannelConnector();
+    connector.setPort(port);
+    connector.setMaxIdleTime(60000);
+    this.server.addConnector(connector);
+    this.webapp.setContextPath("/cas");
+    this.webapp.setWar(war.getAbsolutePath());
+    // the war brings its own Spring, logging and JDBC driver, like in a servlet container
+    this.webapp.setParentLoaderPriority(false);
+    this.server.setHandler(this.webapp);
+    this.server.setStopAtShutdown(true);
+  }
+
+  public void start() throws Exception {
+    log.info("Starting CAS webapp " + this.webapp.getWar());
+    this.server.start();
+    if (!this.webapp.isAvailable()) {
+      throw new IllegalStateException("CAS webapp failed to start", this.webapp.getUnavailableException());
+    }
+  }
+
+  public void stop() throws Exception {
+    this.server.stop();
+  }
+
+  /**
+   * Registers a service for all URLs starting with serviceUrl in the service registry of the webapp.
+   * The HSQLDB service registry of the overlay is empty on start.
+   * <p/>
+   * The CAS classes are only visible to the webapp classloader, so the servicesManager bean is called by reflection.
+   */
+  public void registerService(String serviceUrl) throws Exception {
+    final ClassLoader loader = this.webapp.getClassLoader();
+    final Object context = this.webapp.getServletContext().getAttribute(ROOT_CONTEXT_ATTRIBUTE);
+    if (context == null) {
+      throw new IllegalStateException("No Spring root context in the CAS webapp");
+    }
+    try {
+      final Object servicesManager = loader.loadClass("org.springframework.beans.factory.BeanFactory")
+          .getMethod("getBean", String.class).invoke(context, "servicesManager");
+      final Class<?> serviceClass = loader.loadClass("org.jasig.cas.services.RegexRegisteredService");
+      final Object service = serviceClass.newInstance();
+      serviceClass.getMethod("setName", String.class).invoke(service, "Load test");
+      serviceClass.getMethod("setServiceId", String.class).invoke(service, Pattern.quote(serviceUrl) + ".*");
+      loader.loadClass("org.jasig.cas.services.ServicesManager")
+          .getMethod("save", loader.loadClass("org.jasig.cas.services.RegisteredService"))
+          .invoke(servicesManager, service);
+    } catch (InvocationTargetException e) {
+      throw new IllegalStateException("Cannot register service " + serviceUrl, e.getCause());
+    }
+    log.info("Registered service " + serviceUrl);
+  }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.loadtest;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-model load generator for the /login and serviceValidate flow of CAS.
+ * <p/>
+ * Logins arrive at a target rate, independent of the response times of CAS, like users during an enrolment peak.
+ * The rate is stepped through loadtest.rates; each step has a warm-up, then its latencies are recorded
+ * per {@link Stage}. Latencies are measured from the intended arrival time, so a saturated CAS or harness shows
+ * in the percentiles instead of lowering the rate.
+ * <p/>
+ * Without loadtest.baseUrl, the cas-server-overlay war is started on an embedded Jetty and a service for
+ * loadtest.service is registered.
+ * <p/>
+ * Usage: java [-Dloadtest.property=value ...] -jar target/loadtest.jar
+ * <p/>
+ * System properties:
+ * <ul>
+ * <li>loadtest.war: CAS war. Default is ../cas-server-overlay/target/cas-server-overlay.war</li>
+ * <li>loadtest.port: HTTP port of the embedded Jetty. Default is 8080</li>
+ * <li>loadtest.baseUrl: URL of an already running CAS, e.g. https://cas.example.org/cas. Default is none</li>
+ * <li>loadtest.service: service URL. Default is https://loadtest.example.org/app</li>
+ * <li>loadtest.rates: comma separated arrival rates in logins per second. Default is 10,50,100</li>
+ * <li>loadtest.warmup: seconds of warm-up per rate. Default is 10</li>
+ * <li>loadtest.duration: seconds of measurement per rate. Default is 60</li>
+ * <li>loadtest.arrivals: poisson or constant inter-arrival times. Default is poisson</li>
+ * <li>loadtest.users: number of distinct usernames. Default is 10000</li>
+ * <li>loadtest.password: password of all users. Default is password</li>
+ * <li>loadtest.maxConcurrency: maximum number of logins in flight. Default is 1000</li>
+ * <li>loadtest.timeout: connect and read timeout in milliseconds. Default is 10000</li>
+ * <li>loadtest.resultDir: directory of the .hgrm histogram files. Default is target/loadtest-results</li>
+ * </ul>
+ *
+ * @author Robert Oschwald
+ */
+public final class LoadHarness {
+  private static final Logger log = LoggerFactory.getLogger(LoadHarness.class);
+  private final LoginFlow flow;
+  private final ThreadPoolExecutor executor;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final boolean poisson;
+  private final int users;
+  private final String password;
+  private final Random random = new Random();
+
+  private LoadHarness(LoginFlow flow, int maxConcurrency, boolean poisson, int users, String password) {
+    this.flow = flow;
+    this.poisson = poisson;
+    this.users = users;
+    this.password = password;
+    // no queue: an arrival without free thread is dropped and counted instead of delaying later arrivals
+    this.executor = new ThreadPoolExecutor(0, maxConcurrency, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "loadtest-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  public static void main(String[] args) throws Exception {
+    final String baseUrl = System.getProperty("loadtest.baseUrl");
+    final int port = Integer.getInteger("loadtest.port", 8080);
+    final String service = System.getProperty("loadtest.service", "https://loadtest.example.org/app");
+    final String[] rates = System.getProperty("loadtest.rates", "10,50,100").split(",");
+    final long warmup = Long.getLong("loadtest.warmup", 10);
+    final long duration = Long.getLong("loadtest.duration", 60);
+    final int maxConcurrency = Integer.getInteger("loadtest.maxConcurrency", 1000);
+    final int timeout = Integer.getInteger("loadtest.timeout", 10000);
+    final File resultDir = new File(System.getProperty("loadtest.resultDir", "target/loadtest-results"));
+    if (!resultDir.isDirectory() && !resultDir.mkdirs()) {
+      throw new IOException("Cannot create result directory " + resultDir);
+    }
+
+    EmbeddedCasServer server = null;
+    final String casUrl;
+    if (baseUrl == null) {
+      server = new EmbeddedCasServer(new File(System.getProperty("loadtest.war",
+          "../cas-server-overlay/target/cas-server-overlay.war")), port);
+      server.start();
+      server.registerService(service);
+      casUrl = "http://localhost:" + port + "/cas";
+    } else {
+      casUrl = baseUrl;
+    }
+
+    final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConcurrency);
+    connectionManager.setDefaultMaxPerRoute(maxConcurrency);
+    final CloseableHttpClient httpClient = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .disableRedirectHandling()
+        .build();
+    final RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectTimeout(timeout)
+        .setConnectionRequestTimeout(timeout)
+        .setSocketTimeout(timeout)
+        .build();
+    final LoadHarness harness = new LoadHarness(new LoginFlow(httpClient, requestConfig, casUrl, service),
+        maxConcurrency, !"constant".equals(System.getProperty("loadtest.arrivals", "poisson")),
+        Integer.getInteger("loadtest.users", 10000), System.getProperty("loadtest.password", "password"));
+    try {
+      for (String rate : rates) {
+        final LoadReport report = harness.run(Double.parseDouble(rate.trim()), warmup, duration, timeout);
+        report.print(System.out, duration);
+        report.writeHistograms(resultDir);
+      }
+    } finally {
+      harness.executor.shutdownNow();
+      httpClient.close();
+      if (server != null) {
+        server.stop();
+      }
+    }
+  }
+
+  /* one step of the given rate. Returns after all logins of the step completed. */
+  private LoadReport run(double rate, long warmupSeconds, long durationSeconds, long timeoutMillis) throws InterruptedException {
+    log.info("Running " + rate + " logins/s for " + warmupSeconds + "s warm-up and " + durationSeconds + "s measurement");
+    final LoadReport report = new LoadReport(rate);
+    final double meanInterval = TimeUnit.SECONDS.toNanos(1) / rate;
+    final long start = System.nanoTime();
+    final long recordFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+    final long end = recordFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+    long next = start;
+    int login = 0;
+    while (next < end) {
+      final long now = System.nanoTime();
+      if (next > now) {
+        LockSupport.parkNanos(next - now);
+        continue;
+      }
+      submit("user" + (login++ % this.users), next, next >= recordFrom ? report : null);
+      next += nextInterval(meanInterval);
+    }
+    // all logins of the step complete or time out within the three requests of a login
+    final long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(3 * timeoutMillis);
+    while (this.inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+      Thread.sleep(10);
+    }
+    return report;
+  }
+
+  private void submit(final String username, final long intendedStart, final LoadReport report) {
+    this.inFlight.incrementAndGet();
+    try {
+      this.executor.execute(new Runnable() {
+        public void run() {
+          try {
+            flow.run(username, password, intendedStart, report);
+          } finally {
+            inFlight.decrementAndGet();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      this.inFlight.decrementAndGet();
+      if (report != null) {
+        report.recordDropped();
+      }
+    }
+  }
+
+  /* exponentially distributed for Poisson arrivals, otherwise constant. */
+  private long nextInterval(double meanInterval) {
+    if (!this.poisson) {
+      return (long) meanInterval;
+    }
+    return (long) (-Math.log(1.0 - this.random.nextDouble()) * meanInterval);
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms and error counts of the stages of one load step. Thread safe.
+ * <p/>
+ * Latencies are recorded in microseconds, up to one hour.
+ *
+ * @author Robert Oschwald
+ */
+public class LoadReport {
+  private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+  private final Map<Stage, Histogram> latencies = new EnumMap<Stage, Histogram>(Stage.class);
+  private final Map<Stage, AtomicLong> errors = new EnumMap<Stage, AtomicLong>(Stage.class);
+  /* First error message per stage, for the summary. */
+  private final ConcurrentHashMap<Stage, String> firstErrors = new ConcurrentHashMap<Stage, String>();
+  private final AtomicLong dropped = new AtomicLong();
+  private final double rate;
+
+  /**
+   * @param rate target arrival rate of the step, in logins per second
+   */
+  public LoadReport(double rate) {
+    this.rate = rate;
+    for (Stage stage : Stage.values()) {
+      this.latencies.put(stage, new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3));
+      this.errors.put(stage, new AtomicLong());
+    }
+  }
+
+  public void record(Stage stage, long nanos) {
+    final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+    this.latencies.get(stage).recordValue(Math.min(micros, HIGHEST_TRACKABLE_MICROS));
+  }
+
+  public void recordError(Stage stage, Exception e) {
+    this.errors.get(stage).incrementAndGet();
+    this.firstErrors.putIfAbsent(stage, String.valueOf(e));
+  }
+
+  /** An arrival found no free harness thread. The harness is too small for the rate. */
+  public void recordDropped() {
+    this.dropped.incrementAndGet();
+  }
+
+  /**
+   * Prints count, errors and latency percentiles in milliseconds of each stage.
+   *
+   * @param seconds measured duration of the step
+   */
+  public void print(PrintStream out, long seconds) {
+    final long completed = this.latencies.get(Stage.TOTAL).getTotalCount();
+    out.println();
+    out.println(String.format("Target rate %.1f/s, achieved %.1f/s, dropped arrivals %d",
+        this.rate, (double) completed / seconds, this.dropped.get()));
+    out.println(String.format("%-17s %9s %7s %9s %9s %9s %9s %9s",
+        "stage", "count", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+    for (Stage stage : Stage.values()) {
+      final Histogram histogram = this.latencies.get(stage);
+      out.println(String.format("%-17s %9d %7d %9.1f %9.1f %9.1f %9.1f %9.1f",
+          stage, histogram.getTotalCount(), this.errors.get(stage).get(),
+          millis(histogram.getValueAtPercentile(50)),
+          millis(histogram.getValueAtPercentile(90)),
+          millis(histogram.getValueAtPercentile(99)),
+          millis(histogram.getValueAtPercentile(99.9)),
+          millis(histogram.getMaxValue())));
+    }
+    for (Map.Entry<Stage, String> error : this.firstErrors.entrySet()) {
+      out.println("First error of " + error.getKey() + ": " + error.getValue());
+    }
+  }
+
+  /**
+   * Writes the percentile distribution of each stage in milliseconds, e.g. rate-100-SERVICE_VALIDATE.hgrm,
+   * to be plotted with the HdrHistogram plotter.
+   */
+  public void writeHistograms(File directory) throws FileNotFoundException {
+    for (Stage stage : Stage.values()) {
+      final PrintStream out = new PrintStream(new File(directory, "rate-" + formatRate() + "-" + stage + ".hgrm"));
+      try {
+        this.latencies.get(stage).outputPercentileDistribution(out, 1000.0);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private String formatRate() {
+    return this.rate == Math.rint(this.rate) ? String.valueOf((long) this.rate) : String.valueOf(this.rate);
+  }
+
+  private static double millis(long micros) {
+    return micros / 1000.0;
+  }
+}
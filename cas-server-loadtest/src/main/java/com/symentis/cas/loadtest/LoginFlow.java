@@ -0,0 +1,188 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.loadtest;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The browser and service side of a CAS login: login form, credentials POST and serviceValidate of the
+ * service ticket. Each login has its own cookies, like a new browser session. Thread safe.
+ *
+ * @author Robert Oschwald
+ */
+public class LoginFlow {
+  private static final Logger log = LoggerFactory.getLogger(LoginFlow.class);
+  private static final Pattern LOGIN_TICKET = Pattern.compile("name=\"lt\"\\s+value=\"([^\"]+)\"");
+  private static final Pattern EXECUTION = Pattern.compile("name=\"execution\"\\s+value=\"([^\"]+)\"");
+  private static final Pattern SERVICE_TICKET = Pattern.compile("[?&]ticket=([^&]+)");
+  private static final String AUTHENTICATION_SUCCESS = "<cas:authenticationSuccess>";
+  private final CloseableHttpClient httpClient;
+  private final RequestConfig requestConfig;
+  private final String loginUrl;
+  private final String serviceValidateUrl;
+
+  /**
+   * @param httpClient client without redirect handling
+   * @param casUrl     URL of the CAS webapp, e.g. http://localhost:8080/cas
+   * @param service    service URL the tickets are issued for
+   */
+  public LoginFlow(CloseableHttpClient httpClient, RequestConfig requestConfig, String casUrl, String service) {
+    this.httpClient = httpClient;
+    this.requestConfig = requestConfig;
+    this.loginUrl = casUrl + "/login?service=" + encode(service);
+    this.serviceValidateUrl = casUrl + "/serviceValidate?service=" + encode(service) + "&ticket=";
+  }
+
+  /**
+   * Performs a login and records its stages.
+   *
+   * @param intendedStart System.nanoTime() the login was scheduled for. Latencies of the first stage and of
+   *                      the whole login are measured from it, so a late start is not hidden.
+   * @param report        report to record to, or null during warm-up
+   */
+  public void run(String username, String password, long intendedStart, LoadReport report) {
+    final HttpClientContext context = HttpClientContext.create();
+    context.setCookieStore(new BasicCookieStore());
+    context.setRequestConfig(this.requestConfig);
+    Stage stage = Stage.LOGIN_FORM;
+    try {
+      long start = intendedStart;
+      final String form = getLoginForm(context);
+      start = recordStage(report, stage, start);
+      stage = Stage.LOGIN_SUBMIT;
+      final String ticket = submitCredentials(context, form, username, password);
+      start = recordStage(report, stage, start);
+      stage = Stage.SERVICE_VALIDATE;
+      validate(context, ticket);
+      recordStage(report, stage, start);
+      recordStage(report, Stage.TOTAL, intendedStart);
+    } catch (Exception e) {
+      if (log.isDebugEnabled()) {
+        log.debug("Login of " + username + " failed at " + stage, e);
+      }
+      if (report != null) {
+        report.recordError(stage, e);
+        report.recordError(Stage.TOTAL, e);
+      }
+    }
+  }
+
+  private String getLoginForm(HttpClientContext context) throws IOException {
+    final CloseableHttpResponse response = this.httpClient.execute(new HttpGet(this.loginUrl), context);
+    try {
+      checkStatus(response, 200);
+      return EntityUtils.toString(response.getEntity());
+    } finally {
+      response.close();
+    }
+  }
+
+  /* posts the credentials with the hidden fields of the login form. Returns the service ticket. */
+  private String submitCredentials(HttpClientContext context, String form, String username, String password) throws IOException {
+    final List<NameValuePair> parameters = new ArrayList<NameValuePair>();
+    parameters.add(new BasicNameValuePair("username", username));
+    parameters.add(new BasicNameValuePair("password", password));
+    parameters.add(new BasicNameValuePair("lt", find(LOGIN_TICKET, form, "login ticket")));
+    parameters.add(new BasicNameValuePair("execution", find(EXECUTION, form, "execution")));
+    parameters.add(new BasicNameValuePair("_eventId", "submit"));
+    final HttpPost post = new HttpPost(this.loginUrl);
+    post.setEntity(new UrlEncodedFormEntity(parameters, "UTF-8"));
+    final CloseableHttpResponse response = this.httpClient.execute(post, context);
+    try {
+      checkStatus(response, 302);
+      final Header location = response.getFirstHeader("Location");
+      if (location == null) {
+        throw new IllegalStateException("Login redirect without Location header");
+      }
+      return find(SERVICE_TICKET, location.getValue(), "service ticket");
+    } finally {
+      EntityUtils.consume(response.getEntity());
+      response.close();
+    }
+  }
+
+  private void validate(HttpClientContext context, String ticket) throws IOException {
+    final CloseableHttpResponse response = this.httpClient.execute(new HttpGet(this.serviceValidateUrl + ticket), context);
+    try {
+      checkStatus(response, 200);
+      final String body = EntityUtils.toString(response.getEntity());
+      if (!body.contains(AUTHENTICATION_SUCCESS)) {
+        throw new IllegalStateException("serviceValidate failed: " + body.trim());
+      }
+    } finally {
+      response.close();
+    }
+  }
+
+  /* records the stage started at start. Returns the start of the next stage. */
+  private static long recordStage(LoadReport report, Stage stage, long start) {
+    final long now = System.nanoTime();
+    if (report != null) {
+      report.record(stage, now - start);
+    }
+    return now;
+  }
+
+  private static void checkStatus(HttpResponse response, int expected) {
+    final int status = response.getStatusLine().getStatusCode();
+    if (status != expected) {
+      throw new IllegalStateException("Unexpected HTTP status " + status + ", expected " + expected);
+    }
+  }
+
+  private static String find(Pattern pattern, String text, String name) {
+    final Matcher matcher = pattern.matcher(text);
+    if (!matcher.find()) {
+      // e.g. the service is not registered and CAS shows an error page
+      throw new IllegalStateException("No " + name + " found in response");
+    }
+    return matcher.group(1);
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
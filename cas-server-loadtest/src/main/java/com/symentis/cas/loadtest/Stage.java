@@ -0,0 +1,36 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.loadtest;
+
+/**
+ * Measured stages of a login.
+ *
+ * @author Robert Oschwald
+ */
+public enum Stage {
+  /** GET /login?service=, including the wait of the arrival for a free harness thread. */
+  LOGIN_FORM,
+  /** POST of the credentials, answered by the redirect with the service ticket. */
+  LOGIN_SUBMIT,
+  /** GET /serviceValidate of the service ticket. */
+  SERVICE_VALIDATE,
+  /** Whole flow, from the intended arrival time. */
+  TOTAL
+}
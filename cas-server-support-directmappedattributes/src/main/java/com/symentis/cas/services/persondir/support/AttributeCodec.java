@@ -0,0 +1,282 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.services.persondir.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary form of a users attribute map.
+ *
+ * Layout: varint attribute count, then per attribute the name and a varint value count,
+ * then per value a type tag and the value. Strings are varint length prefixed UTF-8.
+ * Longs and Integers are zigzag varints. Other Serializable values fall back to Java serialization.
+ * Data from a store shared with other nodes is decoded with a whitelist of the Java serialized classes.
+ *
+ * @author Robert Oschwald
+ */
+final class AttributeCodec {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int TAG_NULL = 0;
+  private static final int TAG_STRING = 1;
+  private static final int TAG_LONG = 2;
+  private static final int TAG_INTEGER = 3;
+  private static final int TAG_TRUE = 4;
+  private static final int TAG_FALSE = 5;
+  private static final int TAG_SERIALIZED = 6;
+
+  /** Classes of Java serialized values which are safe to read from a shared store, including their superclasses. */
+  static final Set<String> SAFE_VALUE_CLASSES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+      "java.lang.Number", "java.lang.Short", "java.lang.Byte", "java.lang.Double", "java.lang.Float",
+      "java.lang.Character", "java.math.BigInteger", "java.math.BigDecimal", "java.util.Date", "[B")));
+
+  private AttributeCodec() {
+  }
+
+  static byte[] encode(Map<String, List<Object>> attributes) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+    int count = 0;
+    for (String name : attributes.keySet()) {
+      if (!DirectMappedPersonAttributeDao.ATTRIBUTE_CACHE_EXPIRY_TIME_KEY.equals(name)) {
+        count++;
+      }
+    }
+    writeVarint(out, count);
+    for (Map.Entry<String, List<Object>> entry : attributes.entrySet()) {
+      if (DirectMappedPersonAttributeDao.ATTRIBUTE_CACHE_EXPIRY_TIME_KEY.equals(entry.getKey())) {
+        continue;
+      }
+      writeString(out, entry.getKey());
+      final List<Object> values = entry.getValue();
+      if (values == null) {
+        writeVarint(out, 0);
+        continue;
+      }
+      writeVarint(out, values.size());
+      for (Object value : values) {
+        writeValue(out, value);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  static Map<String, List<Object>> decode(byte[] data) {
+    return decode(data, null);
+  }
+
+  /**
+   * Decodes the attributes, reading only Java serialized values of the allowed classes.
+   *
+   * @param allowedClasses names of the classes of Java serialized values, null to allow all
+   * @throws IllegalStateException if the data holds a value of another class or a count beyond its length
+   */
+  static Map<String, List<Object>> decode(byte[] data, Set<String> allowedClasses) {
+    final int[] position = {0};
+    final int count = readCount(data, position);
+    final Map<String, List<Object>> attributes = new HashMap<String, List<Object>>(count * 4 / 3 + 1);
+    for (int i = 0; i < count; i++) {
+      final String name = readString(data, position);
+      final int valueCount = readCount(data, position);
+      final List<Object> values = new ArrayList<Object>(valueCount);
+      for (int j = 0; j < valueCount; j++) {
+        values.add(readValue(data, position, allowedClasses));
+      }
+      attributes.put(name, values);
+    }
+    return attributes;
+  }
+
+  private static void writeValue(ByteArrayOutputStream out, Object value) {
+    if (value == null) {
+      out.write(TAG_NULL);
+    } else if (value instanceof String) {
+      out.write(TAG_STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Long) {
+      out.write(TAG_LONG);
+      writeVarlong(out, zigzag((Long) value));
+    } else if (value instanceof Integer) {
+      out.write(TAG_INTEGER);
+      writeVarlong(out, zigzag((Integer) value));
+    } else if (value instanceof Boolean) {
+      out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+    } else if (value instanceof Serializable) {
+      out.write(TAG_SERIALIZED);
+      final byte[] serialized = serialize(value);
+      writeVarint(out, serialized.length);
+      out.write(serialized, 0, serialized.length);
+    } else {
+      throw new IllegalArgumentException("Attribute value of " + value.getClass() + " is not serializable");
+    }
+  }
+
+  private static Object readValue(byte[] data, int[] position, Set<String> allowedClasses) {
+    final int tag = data[position[0]++];
+    switch (tag) {
+      case TAG_NULL:
+        return null;
+      case TAG_STRING:
+        return readString(data, position);
+      case TAG_LONG:
+        return unzigzag(readVarlong(data, position));
+      case TAG_INTEGER:
+        return (int) unzigzag(readVarlong(data, position));
+      case TAG_TRUE:
+        return Boolean.TRUE;
+      case TAG_FALSE:
+        return Boolean.FALSE;
+      case TAG_SERIALIZED:
+        final int length = readVarint(data, position);
+        final Object value = deserialize(data, position[0], length, allowedClasses);
+        position[0] += length;
+        return value;
+      default:
+        throw new IllegalStateException("Unknown attribute value tag " + tag);
+    }
+  }
+
+  /* count of at least one byte long items. Bounded by the remaining data, so corrupt data can not exhaust the heap. */
+  private static int readCount(byte[] data, int[] position) {
+    final int count = readVarint(data, position);
+    if (count < 0 || count > data.length - position[0]) {
+      throw new IllegalStateException("Invalid count " + count + " in attribute data");
+    }
+    return count;
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    final byte[] bytes = value.getBytes(UTF8);
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static String readString(byte[] data, int[] position) {
+    final int length = readVarint(data, position);
+    final String value = new String(data, position[0], length, UTF8);
+    position[0] += length;
+    return value;
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    writeVarlong(out, value & 0xffffffffL);
+  }
+
+  private static void writeVarlong(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static int readVarint(byte[] data, int[] position) {
+    return (int) readVarlong(data, position);
+  }
+
+  private static long readVarlong(byte[] data, int[] position) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = data[position[0]++];
+      value |= (long) (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static byte[] serialize(Object value) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      final ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(value);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Cannot serialize attribute value " + value, e);
+    }
+  }
+
+  private static Object deserialize(byte[] data, int offset, int length, Set<String> allowedClasses) {
+    try {
+      final ObjectInputStream in = allowedClasses == null
+          ? new ObjectInputStream(new ByteArrayInputStream(data, offset, length))
+          : new WhitelistObjectInputStream(new ByteArrayInputStream(data, offset, length), allowedClasses);
+      try {
+        return in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read attribute value", e);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("Cannot read attribute value", e);
+    }
+  }
+
+  /**
+   * ObjectInputStream resolving only the allowed classes, so no other class is instantiated.
+   */
+  private static final class WhitelistObjectInputStream extends ObjectInputStream {
+    private final Set<String> allowedClasses;
+
+    WhitelistObjectInputStream(InputStream in, Set<String> allowedClasses) throws IOException {
+      super(in);
+      this.allowedClasses = allowedClasses;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      if (!this.allowedClasses.contains(desc.getName())) {
+        throw new InvalidClassException(desc.getName(), "Attribute value class not allowed");
+      }
+      return super.resolveClass(desc);
+    }
+
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+      throw new InvalidClassException("Proxy attribute values are not allowed");
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.services.persondir.support;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Deadline ordered queue of attribute cache entries.
+ *
+ * All entries of a cache share the same TTL, so insertion order equals expiry order.
+ * Scheduling an entry is a lock-free append, expiring one is a poll of the queue head.
+ * Both operations are O(1), independent of the number of cached entries.
+ *
+ * A queued entry is not removed when its cache entry is replaced or consumed. It only holds the key
+ * and the version of the cache entry, not the cached value, so a stale queue entry retains no attributes
+ * until its deadline. The consumer must check if the polled version still is the one held by the cache
+ * before evicting it.
+ *
+ * @author Robert Oschwald
+ */
+final class AttributeExpiryQueue {
+  private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+
+  /**
+   * Queue a cache entry for expiry.
+   *
+   * @param key      cache key (netid)
+   * @param version  version of the cache entry, unique per key. Used to detect stale queue entries
+   * @param deadline expiry time in milliseconds
+   */
+  void schedule(String key, long version, long deadline) {
+    this.queue.offer(new Entry(key, version, deadline));
+  }
+
+  /**
+   * Remove and return the queue head if it is expired.
+   *
+   * @param now current time in milliseconds
+   * @return the expired head entry, or null if the head is not yet expired
+   */
+  synchronized Entry pollExpired(long now) {
+    final Entry head = this.queue.peek();
+    if (head == null || head.deadline > now) {
+      return null;
+    }
+    return this.queue.poll();
+  }
+
+  /**
+   * Queue head, the entry expiring next. Used to pick the eviction victim of a size bounded cache.
+   *
+   * @return the head entry, or null if the queue is empty
+   */
+  synchronized Entry peek() {
+    return this.queue.peek();
+  }
+
+  /**
+   * Remove the queue head, if it still is the given entry.
+   *
+   * @param head entry obtained by {@link #peek()}
+   * @return true if removed
+   */
+  synchronized boolean removeHead(Entry head) {
+    if (this.queue.peek() != head) {
+      return false;
+    }
+    this.queue.poll();
+    return true;
+  }
+
+  /** Number of queued entries, including stale ones. O(n), for logging only. */
+  int size() {
+    return this.queue.size();
+  }
+
+  /**
+   * Queued expiry of a single cache entry.
+   */
+  static final class Entry {
+    final String key;
+    final long version;
+    final long deadline;
+
+    Entry(String key, long version, long deadline) {
+      this.key = key;
+      this.version = version;
+      this.deadline = deadline;
+    }
+  }
+}
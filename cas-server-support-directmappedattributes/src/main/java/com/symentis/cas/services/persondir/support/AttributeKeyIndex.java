@@ -0,0 +1,91 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.services.persondir.support;
+
+import org.jasig.services.persondir.IPersonAttributeDao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sorted index of the attribute cache keys, used for wildcard queries.
+ *
+ * Keys are held in natural order and reversed, so a wildcard seed with a literal prefix
+ * (e.g. "smith*") or a literal suffix (e.g. "*son") is resolved by a range scan.
+ *
+ * The index may briefly hold keys which are no longer cached. Callers must verify
+ * candidates against the cache.
+ *
+ * @author Robert Oschwald
+ */
+final class AttributeKeyIndex {
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<String>();
+  private final ConcurrentSkipListSet<String> reversedKeys = new ConcurrentSkipListSet<String>();
+
+  void add(String key) {
+    this.keys.add(key);
+    this.reversedKeys.add(reverse(key));
+  }
+
+  void remove(String key) {
+    this.keys.remove(key);
+    this.reversedKeys.remove(reverse(key));
+  }
+
+  /**
+   * Returns true if the wildcard seed has a literal prefix or suffix, so {@link #candidates(String)}
+   * is a range scan.
+   */
+  static boolean isIndexable(String seedValue) {
+    return !seedValue.startsWith(IPersonAttributeDao.WILDCARD) || !seedValue.endsWith(IPersonAttributeDao.WILDCARD);
+  }
+
+  /**
+   * Keys which may match the wildcard seed. Uses the literal prefix of the seed if present,
+   * otherwise the literal suffix. Callers still match the candidates against the full pattern.
+   *
+   * @param seedValue indexable wildcard seed, see {@link #isIndexable(String)}
+   * @return candidate keys
+   */
+  List<String> candidates(String seedValue) {
+    final int first = seedValue.indexOf(IPersonAttributeDao.WILDCARD);
+    if (first > 0) {
+      return startingWith(this.keys, seedValue.substring(0, first), false);
+    }
+    final int last = seedValue.lastIndexOf(IPersonAttributeDao.WILDCARD);
+    return startingWith(this.reversedKeys, reverse(seedValue.substring(last + 1)), true);
+  }
+
+  private static List<String> startingWith(ConcurrentSkipListSet<String> set, String prefix, boolean reversed) {
+    final List<String> result = new ArrayList<String>();
+    for (String key : set.tailSet(prefix)) {
+      if (!key.startsWith(prefix)) {
+        break;
+      }
+      result.add(reversed ? reverse(key) : key);
+    }
+    return result;
+  }
+
+  private static String reverse(String value) {
+    return new StringBuilder(value).reverse().toString();
+  }
+}
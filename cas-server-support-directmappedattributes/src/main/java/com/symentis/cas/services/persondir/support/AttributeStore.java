@@ -0,0 +1,81 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.services.persondir.support;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage SPI of the DirectMappedPersonAttributeDao.
+ *
+ * Holds the attributes handed off from the authentication to the first serviceValidate of a user.
+ * Implementations must be thread safe. A store shared by several CAS nodes (e.g. JdbcAttributeStore)
+ * allows the serviceValidate to be handled by another node than the login.
+ *
+ * @author Robert Oschwald
+ */
+public interface AttributeStore {
+
+  /**
+   * Store the attributes of netid, replacing an existing entry.
+   *
+   * @param netid      the users netid
+   * @param attributes the users attributes. Implementations store a copy.
+   * @param expiryTime expiry time of the entry in milliseconds
+   * @return false if the store rejected the entry, e.g. because it is full
+   */
+  boolean put(String netid, Map<String, List<Object>> attributes, long expiryTime);
+
+  /**
+   * Remove and return the attributes of netid. Each entry is returned at most once.
+   *
+   * @param netid the users netid
+   * @param now   current time in milliseconds
+   * @return the attributes, or null if there is no entry or it is expired
+   */
+  Map<String, List<Object>> take(String netid, long now);
+
+  /**
+   * Find the attributes of all netids matching the wildcard seed, without removing them.
+   *
+   * @param seedValue netid pattern containing {@link org.jasig.services.persondir.IPersonAttributeDao#WILDCARD}
+   * @param now       current time in milliseconds
+   * @return attributes by netid of the not expired matching entries. Never null.
+   */
+  Map<String, Map<String, List<Object>>> find(String seedValue, long now);
+
+  /**
+   * Remove expired entries. Called periodically by the sweeper of the DirectMappedPersonAttributeDao.
+   *
+   * @param now current time in milliseconds
+   * @return number of removed entries
+   */
+  int evictExpired(long now);
+
+  /**
+   * Number of stored entries, including expired entries not yet evicted.
+   */
+  int size();
+
+  /**
+   * Release resources held by the store.
+   */
+  void destroy();
+}
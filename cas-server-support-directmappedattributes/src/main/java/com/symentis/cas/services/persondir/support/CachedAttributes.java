@@ -0,0 +1,117 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.services.persondir.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable attribute cache entry of the DirectMappedPersonAttributeDao.
+ *
+ * Holds a snapshot of the users attributes and the primitive expiry time of the entry.
+ * The expiry time is not part of the attributes, so it is never released to services.
+ * The estimated heap weight of the entry is computed once, for size bounded caches.
+ * The version identifies the entry in the expiry queue, which does not reference the entry itself.
+ *
+ * @author Robert Oschwald
+ */
+final class CachedAttributes {
+  private final Map<String, List<Object>> attributes;
+  private final long expiryTime;
+  private final int weight;
+  private final long version;
+
+  /**
+   * Constructor. Takes a snapshot of the given attributes.
+   *
+   * @param attributes the users attributes. Later changes to the map are not reflected.
+   * @param expiryTime expiry time in milliseconds
+   * @param version    version of the entry, unique per netid
+   */
+  CachedAttributes(Map<String, List<Object>> attributes, long expiryTime, long version) {
+    this.attributes = snapshot(attributes);
+    this.expiryTime = expiryTime;
+    this.weight = weigh(this.attributes);
+    this.version = version;
+  }
+
+  /** Unmodifiable attributes of the entry. */
+  Map<String, List<Object>> getAttributes() {
+    return this.attributes;
+  }
+
+  /** Expiry time in milliseconds. */
+  long getExpiryTime() {
+    return this.expiryTime;
+  }
+
+  /** Estimated heap size of the entry in bytes. */
+  int getWeight() {
+    return this.weight;
+  }
+
+  /** Version of the entry, unique per netid. */
+  long getVersion() {
+    return this.version;
+  }
+
+  boolean isExpired(long now) {
+    return this.expiryTime <= now;
+  }
+
+  @Override
+  public String toString() {
+    return this.attributes.toString();
+  }
+
+  /* rough estimate of the retained heap size: object headers, map entries and string chars. */
+  private static int weigh(Map<String, List<Object>> attributes) {
+    int weight = 64;
+    for (Map.Entry<String, List<Object>> entry : attributes.entrySet()) {
+      weight += 48 + 40 + 2 * entry.getKey().length();
+      for (Object value : entry.getValue()) {
+        weight += value instanceof String ? 40 + 2 * ((String) value).length() : 16;
+      }
+    }
+    return weight;
+  }
+
+  private static Map<String, List<Object>> snapshot(Map<String, List<Object>> attributes) {
+    final Map<String, List<Object>> copy = new HashMap<String, List<Object>>(attributes.size() * 4 / 3 + 1);
+    for (Map.Entry<String, List<Object>> entry : attributes.entrySet()) {
+      if (DirectMappedPersonAttributeDao.ATTRIBUTE_CACHE_EXPIRY_TIME_KEY.equals(entry.getKey())) {
+        // never cache the legacy expiry attribute
+        continue;
+      }
+      final List<Object> values = entry.getValue();
+      if (values == null || values.isEmpty()) {
+        copy.put(entry.getKey(), Collections.emptyList());
+      } else if (values.size() == 1) {
+        copy.put(entry.getKey(), Collections.singletonList(values.get(0)));
+      } else {
+        copy.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<Object>(values)));
+      }
+    }
+    return Collections.unmodifiableMap(copy);
+  }
+}
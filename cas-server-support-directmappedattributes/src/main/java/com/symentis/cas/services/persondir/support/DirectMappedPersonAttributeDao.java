@@ -20,6 +20,11 @@
 
 package com.symentis.cas.services.persondir.support;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.symentis.cas.trace.LoginTrace;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jasig.services.persondir.IPersonAttributeDao;
@@ -28,22 +33,32 @@ import org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao;
 import org.jasig.services.persondir.support.AttributeNamedPersonImpl;
 import org.jasig.services.persondir.support.IUsernameAttributeProvider;
 import org.jasig.services.persondir.support.NamedPersonImpl;
-import org.jasig.services.persondir.util.PatternHelper;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
- * A IPersonAttributeDao backed by a single short-term ConcurrentHashMap.
+ * A IPersonAttributeDao backed by a short-term AttributeStore.
+ * By default, this is an InMemoryAttributeStore, a single ConcurrentHashMap local to the CAS node.
+ * A JdbcAttributeStore allows to hand off the attributes between CAS nodes.
  *
- * The users attributes additionally hold the cache insertion time
+ * Each cache entry holds an immutable snapshot of the users attributes and the cache expiry time
  * for later map entry cleanup if e.g. no serviceValidate phase happens
  * (which normally removes the users attributes from the cache).
+ * Expired entries are removed from the store by a background sweeper thread.
+ * So adding attributes never pays for the eviction of other entries.
+ *
+ * The maxEntries, maxWeight, wildcardIndex and parallelScanThreshold properties configure the
+ * default InMemoryAttributeStore, see there. They have no effect if another store is set.
+ *
+ * With a metricRegistry, the dao publishes the metrics size, hits, misses, rejected, expired and
+ * eviction (time of a sweeper run), named after this class.
  *
  * @author: Robert Oschwald
  *
@@ -67,6 +82,20 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  *       </property>
  *       <!-- Optional. Time to live of the cache entries (minutes). Default is 1 minute. -->
  *       <property name="TTL" value="2" />
+ *       <!-- Optional. Interval of the expired entries sweeper (seconds). Default is 10 seconds. -->
+ *       <property name="cleanupInterval" value="10" />
+ *       <!-- Optional. Maximum number of cache entries. Default is 0 (unbounded). -->
+ *       <property name="maxEntries" value="100000" />
+ *       <!-- Optional. Maximum estimated heap weight of the cache entries (bytes). Default is 0 (unbounded). -->
+ *       <property name="maxWeight" value="104857600" />
+ *       <!-- Optional. Sorted netid index for prefix/suffix wildcard queries. Default is false. -->
+ *       <property name="wildcardIndex" value="true" />
+ *       <!-- Optional. Cache size from which other wildcard queries scan in parallel. Default is 0 (never). -->
+ *       <property name="parallelScanThreshold" value="100000" />
+ *       <!-- Optional. Shared store, e.g. JdbcAttributeStore. Default is the InMemoryAttributeStore. -->
+ *       <property name="store" ref="jdbcAttributeStore" />
+ *       <!-- Optional. Dropwizard MetricRegistry, e.g. the "metrics" registry of CAS. -->
+ *       <property name="metricRegistry" ref="metrics" />
  *    </bean>
  * </p>
  *
@@ -87,23 +116,42 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * </p>
  */
 public class DirectMappedPersonAttributeDao extends AbstractQueryPersonAttributeDao<String> {
+  /**
+   * @deprecated The cache expiry time is no longer stored in the users attributes.
+   * An attribute with this name is removed from attributes added to the cache.
+   */
+  @Deprecated
   public static final String ATTRIBUTE_CACHE_EXPIRY_TIME_KEY = "USER_ATTRIB_CACHE_EXPIRY_TIME";
   private static Log log = LogFactory.getLog(DirectMappedPersonAttributeDao.class);
-  /* Cached Attribute Map for users. Can be updated by AuthenticationHandler this Dao is wired into */
-  private ConcurrentHashMap<String, Map<String, List<Object>>> backingMap;
+  /* Default store, configured by the bean properties of this dao. */
+  private final InMemoryAttributeStore inMemoryStore;
+  /* Cached Attributes for users. Can be updated by AuthenticationHandler this Dao is wired into */
+  private AttributeStore store;
+  /* Name of a configured InMemoryAttributeStore property, null if none. */
+  private String inMemoryStoreProperty;
   private long DEFAULT_CACHE_ENTRY_TTL = MILLISECONDS.convert(1, MINUTES);
+  private long DEFAULT_CLEANUP_INTERVAL = MILLISECONDS.convert(10, SECONDS);
   private long ttl = DEFAULT_CACHE_ENTRY_TTL;
+  private long cleanupInterval = DEFAULT_CLEANUP_INTERVAL;
+  private volatile ScheduledExecutorService sweeper;
   private Set<String> possibleUserAttributeNames = Collections.emptySet();
   private String queryAttributeName = null;
+  /* Metrics. Not registered, unless a metricRegistry is set. */
+  private volatile Meter hits = new Meter();
+  private volatile Meter misses = new Meter();
+  private volatile Meter rejected = new Meter();
+  private volatile Meter expired = new Meter();
+  private volatile Timer eviction = new Timer();
 
   /* Constructor. */
   public DirectMappedPersonAttributeDao() {
-    this.backingMap = new ConcurrentHashMap<String, Map<String, List<Object>>>();
+    this.inMemoryStore = new InMemoryAttributeStore();
+    this.store = this.inMemoryStore;
   }
 
   /**
    * Constructor.
-   * Creates a new, empty user backingMap with the specified initial capacity, load
+   * Creates a new, empty user backingMap of the InMemoryAttributeStore with the specified initial capacity, load
    * factor, and concurrency level.
    *
    * @param initialCapacity  - the initial capacity. The implementation
@@ -116,7 +164,8 @@ public class DirectMappedPersonAttributeDao extends AbstractQueryPersonAttribute
    *                         accommodate this many threads.
    */
   public DirectMappedPersonAttributeDao(String queryAttributeName, final int initialCapacity, final float loadFactor, final int concurrencyLevel) {
-    this.backingMap = new ConcurrentHashMap<String, Map<String, List<Object>>>(initialCapacity, loadFactor, concurrencyLevel);
+    this.inMemoryStore = new InMemoryAttributeStore(initialCapacity, loadFactor, concurrencyLevel);
+    this.store = this.inMemoryStore;
     this.setQueryAttributeName(queryAttributeName);
   }
 
@@ -131,6 +180,104 @@ public class DirectMappedPersonAttributeDao extends AbstractQueryPersonAttribute
     this.ttl = MILLISECONDS.convert(minutes, MINUTES);
   }
 
+  /*
+   * Sets the interval of the background sweeper which removes expired attribute entries.
+   * Expired entries are never returned, the interval only bounds how long they occupy memory.
+   */
+  public void setCleanupInterval(final int seconds) {
+    if (seconds < 1) {
+      throw new IllegalArgumentException("cleanupInterval must be a positive int value");
+    }
+    this.cleanupInterval = MILLISECONDS.convert(seconds, SECONDS);
+  }
+
+  /**
+   * Storage of the cached attributes. Default is an InMemoryAttributeStore.
+   */
+  public void setStore(final AttributeStore store) {
+    if (store == null) {
+      throw new IllegalArgumentException("store must not be null");
+    }
+    if (store != this.inMemoryStore && this.inMemoryStoreProperty != null) {
+      throw new IllegalStateException(this.inMemoryStoreProperty + " only applies to the default InMemoryAttributeStore, not to "
+          + store.getClass().getName());
+    }
+    this.store = store;
+  }
+
+  public AttributeStore getStore() {
+    return this.store;
+  }
+
+  /**
+   * Registry to publish the metrics of this dao to. Default is none.
+   */
+  public void setMetricRegistry(final MetricRegistry metricRegistry) {
+    metricRegistry.register(MetricRegistry.name(DirectMappedPersonAttributeDao.class, "size"), new Gauge<Integer>() {
+      public Integer getValue() {
+        return store.size();
+      }
+    });
+    this.hits = metricRegistry.meter(MetricRegistry.name(DirectMappedPersonAttributeDao.class, "hits"));
+    this.misses = metricRegistry.meter(MetricRegistry.name(DirectMappedPersonAttributeDao.class, "misses"));
+    this.rejected = metricRegistry.meter(MetricRegistry.name(DirectMappedPersonAttributeDao.class, "rejected"));
+    this.expired = metricRegistry.meter(MetricRegistry.name(DirectMappedPersonAttributeDao.class, "expired"));
+    this.eviction = metricRegistry.timer(MetricRegistry.name(DirectMappedPersonAttributeDao.class, "eviction"));
+  }
+
+  /**
+   * Maximum number of cache entries of the InMemoryAttributeStore. 0 (default) means unbounded.
+   * @see InMemoryAttributeStore#setMaxEntries(int)
+   */
+  public void setMaxEntries(final int maxEntries) {
+    inMemoryStore("maxEntries").setMaxEntries(maxEntries);
+  }
+
+  /**
+   * Maximum estimated heap weight of all cache entries of the InMemoryAttributeStore in bytes. 0 (default) means unbounded.
+   * @see InMemoryAttributeStore#setMaxWeight(long)
+   */
+  public void setMaxWeight(final long maxWeight) {
+    inMemoryStore("maxWeight").setMaxWeight(maxWeight);
+  }
+
+  /**
+   * Maintain a sorted netid index in the InMemoryAttributeStore for prefix and suffix wildcard queries.
+   * @see InMemoryAttributeStore#setWildcardIndex(boolean)
+   */
+  public void setWildcardIndex(final boolean wildcardIndex) {
+    inMemoryStore("wildcardIndex").setWildcardIndex(wildcardIndex);
+  }
+
+  /**
+   * Minimum number of cache entries from which the InMemoryAttributeStore matches wildcard queries in parallel.
+   * @see InMemoryAttributeStore#setParallelScanThreshold(int)
+   */
+  public void setParallelScanThreshold(final int parallelScanThreshold) {
+    inMemoryStore("parallelScanThreshold").setParallelScanThreshold(parallelScanThreshold);
+  }
+
+  /* the default store for configuring the property. Fails if another store is set. */
+  private InMemoryAttributeStore inMemoryStore(String property) {
+    if (this.store != this.inMemoryStore) {
+      throw new IllegalStateException(property + " only applies to the default InMemoryAttributeStore, not to "
+          + this.store.getClass().getName());
+    }
+    this.inMemoryStoreProperty = property;
+    return this.inMemoryStore;
+  }
+
+  /**
+   * Stops the background sweeper and releases the store. Configure as destroy-method of the bean.
+   */
+  public synchronized void destroy() {
+    if (this.sweeper != null) {
+      this.sweeper.shutdownNow();
+      this.sweeper = null;
+    }
+    this.store.destroy();
+  }
+
   public String getQueryAttributeName() {
     return this.queryAttributeName;
   }
@@ -194,36 +341,39 @@ public class DirectMappedPersonAttributeDao extends AbstractQueryPersonAttribute
      */
   @Override
   protected List<IPersonAttributes> getPeopleForQuery(String seedValue, String queryUserName) {
+    LoginTrace.begin(LoginTrace.Phase.ATTRIBUTES_GET);
+    try {
+      return findPeople(seedValue, queryUserName);
+    } finally {
+      LoginTrace.end(LoginTrace.Phase.ATTRIBUTES_GET, seedValue);
+    }
+  }
+
+  /* takes the attributes of seedValue from the store, or finds the attributes matching a wildcard seedValue. */
+  private List<IPersonAttributes> findPeople(String seedValue, String queryUserName) {
     if (seedValue != null && seedValue.contains(IPersonAttributeDao.WILDCARD)) {
-      final Pattern seedPattern = PatternHelper.compilePattern(seedValue);
-      final List<IPersonAttributes> results = new LinkedList<IPersonAttributes>();
-      for (final Map.Entry<String, Map<String, List<Object>>> attributesEntry : this.backingMap.entrySet()) {
-        final String attributesKey = attributesEntry.getKey();
-        final Matcher keyMatcher = seedPattern.matcher(attributesKey);
-        if (keyMatcher.matches()) {
-          final Map<String, List<Object>> attributes = attributesEntry.getValue();
-          if (attributes != null) {
-            final IPersonAttributes person = this.createPerson(null, queryUserName, attributes);
-            results.add(person);
-            if (log.isDebugEnabled()) {
-              log.debug("Found attributes for netid " + queryUserName);
-            }
-          }
-        }
-      }
-      if (results.size() == 0) {
+      final Map<String, Map<String, List<Object>>> found = this.store.find(seedValue, System.currentTimeMillis());
+      if (found.size() == 0) {
         return null;
       }
+      final List<IPersonAttributes> results = new ArrayList<IPersonAttributes>(found.size());
+      for (Map.Entry<String, Map<String, List<Object>>> attributesEntry : found.entrySet()) {
+        results.add(this.createPerson(null, queryUserName, attributesEntry.getValue()));
+        if (log.isDebugEnabled()) {
+          log.debug("Found attributes for netid " + attributesEntry.getKey());
+        }
+      }
       return results;
     }
-    // no wildcard in seedValue. Use straight seedValue to get the attribute from the backingMap
-    final Map<String, List<Object>> attributes = this.backingMap.remove(seedValue);
+    // no wildcard in seedValue. Use straight seedValue to take the attributes from the store
+    final Map<String, List<Object>> attributes = this.store.take(seedValue, System.currentTimeMillis());
     if (attributes == null) {
+      this.misses.mark();
       return null;
     }
+    this.hits.mark();
     if (log.isDebugEnabled()) {
       log.debug("Obtained attributes from cache for netid " + queryUserName);
-      log.debug("Attribute enries remaining in cache: " + this.backingMap.size());
     }
     final IPersonAttributes person = this.createPerson(seedValue, queryUserName, attributes);
     return Collections.singletonList(person);
@@ -250,19 +400,27 @@ public class DirectMappedPersonAttributeDao extends AbstractQueryPersonAttribute
     return person;
   }
 
-  /** Add attributes to the internal cache for netid **/
+  /**
+   * Add attributes to the internal cache for netid.
+   * The cache holds a snapshot, later changes to the given map are not reflected.
+   **/
   public void addAttributes(String netid, Map<String, List<Object>> attributes) {
-    cleanupCache();
-    // for later entry cleanup to avoid unlimited growth.
-    ArrayList<Object> attributeExpiryTime = new ArrayList<Object>();
-    attributeExpiryTime.add(new Date().getTime() + ttl);
-    attributes.put(ATTRIBUTE_CACHE_EXPIRY_TIME_KEY, attributeExpiryTime);
-    //
-    Map<String, List<Object>> existing = this.backingMap.putIfAbsent(netid, attributes);
-    if (existing != null) {
-      // replace pre-existing entry
-      this.backingMap.replace(netid, attributes);
+    // expiry time for later entry cleanup to avoid unlimited growth.
+    final boolean stored;
+    LoginTrace.enter(LoginTrace.Phase.ATTRIBUTES_ADD);
+    try {
+      stored = this.store.put(netid, attributes, System.currentTimeMillis() + ttl);
+    } finally {
+      LoginTrace.exit(LoginTrace.Phase.ATTRIBUTES_ADD);
     }
+    if (!stored) {
+      this.rejected.mark();
+      if (log.isDebugEnabled()) {
+        log.debug("Attribute cache full. Rejected attributes for netid: " + netid);
+      }
+      return;
+    }
+    startSweeper();
     if (log.isDebugEnabled()) {
       log.debug("Stored attributes for netid: " + netid + " :" + attributes);
     }
@@ -272,33 +430,44 @@ public class DirectMappedPersonAttributeDao extends AbstractQueryPersonAttribute
      This may occur when authentication is performed but no ticket validation happens.
   */
   private void cleanupCache() {
-    Iterator<Map.Entry<String, Map<String, List<Object>>>> iterator = this.backingMap.entrySet().iterator();
-    if (log.isDebugEnabled()){
-      log.debug("Entries in attribute cache: " + this.backingMap.size());
+    final Timer.Context timer = this.eviction.time();
+    final int removed;
+    try {
+      removed = this.store.evictExpired(System.currentTimeMillis());
+    } finally {
+      timer.stop();
     }
-    while (iterator.hasNext()) {
-      Map.Entry<String, Map<String, List<Object>>> entry = iterator.next();
-      Map<String, List<Object>> attribute = entry.getValue();
-      if (!attribute.containsKey(ATTRIBUTE_CACHE_EXPIRY_TIME_KEY)) return;
-      List<Object> cacheInsertMapValues = attribute.get(ATTRIBUTE_CACHE_EXPIRY_TIME_KEY);
-      if (cacheInsertMapValues.size() < 1) {
-        // empty attribute value list
-        log.warn("Attribute entry in cache has no values. Removing.");
-        iterator.remove();
-        continue;
-      }
-      Date expiryDate = new Date((Long)cacheInsertMapValues.get(0));
-      if (expiryDate == null) {
-        log.warn("Cannot obtain cache expiry date for netid" + entry.getKey());
-        continue;
+    this.expired.mark(removed);
+    if (log.isDebugEnabled() && removed > 0) {
+      log.debug("Removed " + removed + " expired entries from attribute cache");
+    }
+  }
+
+  /* lazily starts the background sweeper on first use. */
+  private void startSweeper() {
+    if (this.sweeper != null) {
+      return;
+    }
+    synchronized (this) {
+      if (this.sweeper != null) {
+        return;
       }
-      if (new Date().after(expiryDate)) {
-        if (log.isDebugEnabled()) {
-          log.debug("Removing expired attributes from cache for netid: " + entry.getKey());
+      this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          final Thread thread = new Thread(runnable, "DirectMappedPersonAttributeDao-sweeper");
+          thread.setDaemon(true);
+          return thread;
         }
-        iterator.remove();
-      }
+      });
+      this.sweeper.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            cleanupCache();
+          } catch (RuntimeException e) {
+            log.warn("Attribute cache cleanup failed", e);
+          }
+        }
+      }, this.cleanupInterval, this.cleanupInterval, MILLISECONDS);
     }
   }
 }
-
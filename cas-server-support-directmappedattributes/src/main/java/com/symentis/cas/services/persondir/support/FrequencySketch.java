@@ -0,0 +1,118 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.services.persondir.support;
+
+/**
+ * Count-Min sketch estimating how often a key was seen recently, used as TinyLFU admission filter.
+ *
+ * Four 4-bit counters per key are packed into a long[] table, so the memory footprint does not
+ * depend on the number of distinct keys. All counters are halved after a sample period of ten times
+ * the table size, so the frequencies age out and the sketch follows changing popularity.
+ *
+ * Inspired by the FrequencySketch of the Caffeine cache library.
+ *
+ * @author Robert Oschwald
+ */
+final class FrequencySketch {
+  private static final long[] SEED = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long ONE_MASK = 0x1111111111111111L;
+
+  private final long[] table;
+  private final int tableMask;
+  private final int sampleSize;
+  private int size;
+
+  /**
+   * Constructor.
+   *
+   * @param expectedEntries number of cache entries the sketch has to distinguish
+   */
+  FrequencySketch(int expectedEntries) {
+    final int maximum = Math.max(2, Math.min(expectedEntries, 1 << 30));
+    this.table = new long[1 << -Integer.numberOfLeadingZeros(maximum - 1)];
+    this.tableMask = this.table.length - 1;
+    // 10 * maximum overflows beyond 214M entries
+    this.sampleSize = (int) Math.min(10L * maximum, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Estimated recent frequency of the key, 0 to 15.
+   */
+  synchronized int frequency(Object key) {
+    final int hash = spread(key.hashCode());
+    final int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < 4; i++) {
+      final int index = indexOf(hash, i);
+      final int count = (int) ((this.table[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  /**
+   * Increments the frequency of the key, if not already at the maximum.
+   */
+  synchronized void increment(Object key) {
+    final int hash = spread(key.hashCode());
+    final int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+    if (added && ++this.size == this.sampleSize) {
+      reset();
+    }
+  }
+
+  private boolean incrementAt(int index, int counter) {
+    final int offset = counter << 2;
+    final long mask = 0xfL << offset;
+    if ((this.table[index] & mask) != mask) {
+      this.table[index] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  /* halves all counters. */
+  private void reset() {
+    int odd = 0;
+    for (int i = 0; i < this.table.length; i++) {
+      odd += Long.bitCount(this.table[i] & ONE_MASK);
+      this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+    }
+    this.size = (this.size >>> 1) - (odd >>> 2);
+  }
+
+  private int indexOf(int hash, int i) {
+    long h = (hash + SEED[i]) * SEED[i];
+    h += h >>> 32;
+    return ((int) h) & this.tableMask;
+  }
+
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.services.persondir.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.services.persondir.util.PatternHelper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Default AttributeStore of the DirectMappedPersonAttributeDao, backed by a ConcurrentHashMap
+ * of immutable {@link CachedAttributes} entries. Local to the CAS node.
+ *
+ * Expired entries are evicted in expiry order from a deadline ordered expiry queue,
+ * so eviction never scans the whole map.
+ *
+ * The store can be bounded by entry count and/or estimated heap weight. When full, the entry closest
+ * to expiry is the eviction victim. A TinyLFU frequency sketch of recently seen netids decides if the new
+ * entry is admitted at the cost of the victim: a new entry is rejected unless its netid was seen more often
+ * than the victims netid. Netids are counted on put and on take, so users which actually
+ * validate tickets keep their attributes during a flood of logins which are never validated.
+ * Admission and the put of the admitted entry are not atomic, so under concurrent puts the store
+ * may exceed maxEntries (and maxWeight) by up to the number of concurrent writers.
+ *
+ * Optionally, a sorted netid index resolves wildcard queries with a literal prefix or suffix
+ * by a range scan, and other wildcard queries on large stores are matched in parallel.
+ *
+ * @author Robert Oschwald
+ */
+public class InMemoryAttributeStore implements AttributeStore {
+  private static Log log = LogFactory.getLog(InMemoryAttributeStore.class);
+  private final ConcurrentHashMap<String, CachedAttributes> backingMap;
+  /* Expiry order of the backingMap entries. */
+  private final AttributeExpiryQueue expiryQueue = new AttributeExpiryQueue();
+  /* Source of the entry versions. */
+  private final AtomicLong versions = new AtomicLong();
+  private int maxEntries = 0;
+  private long maxWeight = 0;
+  /* Estimated heap weight of the backingMap entries. */
+  private final AtomicLong weight = new AtomicLong();
+  /* TinyLFU admission filter, created on first use of a bounded store. */
+  private volatile FrequencySketch sketch;
+  private final Object evictionLock = new Object();
+  /* Sorted netid index for wildcard queries. Only maintained if enabled. */
+  private volatile AttributeKeyIndex keyIndex;
+  private int parallelScanThreshold = 0;
+  private ExecutorService scanExecutor;
+
+  /* Constructor. */
+  public InMemoryAttributeStore() {
+    this.backingMap = new ConcurrentHashMap<String, CachedAttributes>();
+  }
+
+  /**
+   * Constructor.
+   * Creates a new, empty store with the specified initial capacity, load factor, and concurrency level
+   * of the backing ConcurrentHashMap.
+   */
+  public InMemoryAttributeStore(final int initialCapacity, final float loadFactor, final int concurrencyLevel) {
+    this.backingMap = new ConcurrentHashMap<String, CachedAttributes>(initialCapacity, loadFactor, concurrencyLevel);
+  }
+
+  /**
+   * Maximum number of entries. 0 (default) means unbounded.
+   */
+  public void setMaxEntries(final int maxEntries) {
+    if (maxEntries < 0) {
+      throw new IllegalArgumentException("maxEntries must not be negative");
+    }
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Maximum estimated heap weight of all entries in bytes. 0 (default) means unbounded.
+   */
+  public void setMaxWeight(final long maxWeight) {
+    if (maxWeight < 0) {
+      throw new IllegalArgumentException("maxWeight must not be negative");
+    }
+    this.maxWeight = maxWeight;
+  }
+
+  /**
+   * Maintain a sorted netid index, so wildcard queries with a literal prefix or suffix
+   * (e.g. "smith*" or "*son") are resolved by a range scan instead of matching all netids.
+   * Adds O(log n) to each update. Default is false.
+   */
+  public void setWildcardIndex(final boolean wildcardIndex) {
+    if (!wildcardIndex) {
+      this.keyIndex = null;
+      return;
+    }
+    final AttributeKeyIndex index = new AttributeKeyIndex();
+    for (String netid : this.backingMap.keySet()) {
+      index.add(netid);
+    }
+    this.keyIndex = index;
+  }
+
+  /**
+   * Minimum number of entries from which wildcard queries which can not use the index
+   * match the netids in parallel on all cores. 0 (default) disables parallel matching.
+   */
+  public void setParallelScanThreshold(final int parallelScanThreshold) {
+    if (parallelScanThreshold < 0) {
+      throw new IllegalArgumentException("parallelScanThreshold must not be negative");
+    }
+    this.parallelScanThreshold = parallelScanThreshold;
+  }
+
+  public boolean put(String netid, Map<String, List<Object>> attributes, long expiryTime) {
+    final CachedAttributes entry = new CachedAttributes(attributes, expiryTime, this.versions.incrementAndGet());
+    if (isBounded() && !admit(netid, entry)) {
+      return false;
+    }
+    // replaces a pre-existing entry. Its expiry queue entry gets stale.
+    final CachedAttributes previous = this.backingMap.put(netid, entry);
+    this.weight.addAndGet(weigh(netid, entry) - (previous == null ? 0 : weigh(netid, previous)));
+    final AttributeKeyIndex index = this.keyIndex;
+    if (index != null) {
+      index.add(netid);
+      // a concurrent take may have removed the entry and unindexed it before the add
+      if (!this.backingMap.containsKey(netid)) {
+        unindex(netid);
+      }
+    }
+    this.expiryQueue.schedule(netid, entry.getVersion(), entry.getExpiryTime());
+    return true;
+  }
+
+  public Map<String, List<Object>> take(String netid, long now) {
+    final CachedAttributes attributes = this.backingMap.remove(netid);
+    if (attributes == null) {
+      return null;
+    }
+    this.weight.addAndGet(-weigh(netid, attributes));
+    unindex(netid);
+    if (attributes.isExpired(now)) {
+      // not yet evicted
+      return null;
+    }
+    if (isBounded()) {
+      // validated netids win admission against never validated ones
+      getSketch().increment(netid);
+    }
+    return attributes.getAttributes();
+  }
+
+  /*
+   * Uses a range scan of the key index for seeds with a literal prefix or suffix.
+   * Otherwise matches all keys, in parallel for large stores if configured.
+   */
+  public Map<String, Map<String, List<Object>>> find(String seedValue, long now) {
+    final Pattern seedPattern = PatternHelper.compilePattern(seedValue);
+    final AttributeKeyIndex index = this.keyIndex;
+    if (index != null && AttributeKeyIndex.isIndexable(seedValue)) {
+      return match(index.candidates(seedValue), seedPattern, now);
+    }
+    if (this.parallelScanThreshold > 0 && this.backingMap.size() >= this.parallelScanThreshold) {
+      return matchParallel(seedPattern, now);
+    }
+    return match(this.backingMap.keySet(), seedPattern, now);
+  }
+
+  /* Only touches expired entries, in expiry order. */
+  public int evictExpired(long now) {
+    int removed = 0;
+    AttributeExpiryQueue.Entry expired;
+    while ((expired = this.expiryQueue.pollExpired(now)) != null) {
+      // entry may already be taken by serviceValidate or replaced by a new login
+      final CachedAttributes current = current(expired);
+      if (current != null && removeEntry(expired.key, current)) {
+        if (log.isDebugEnabled()) {
+          log.debug("Removing expired attributes for netid: " + expired.key);
+        }
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  public int size() {
+    return this.backingMap.size();
+  }
+
+  /** Estimated heap weight of all entries in bytes. */
+  public long getWeight() {
+    return this.weight.get();
+  }
+
+  public synchronized void destroy() {
+    if (this.scanExecutor != null) {
+      this.scanExecutor.shutdownNow();
+      this.scanExecutor = null;
+    }
+  }
+
+  private Map<String, Map<String, List<Object>>> match(Collection<String> netids, Pattern seedPattern, long now) {
+    final Map<String, Map<String, List<Object>>> results = new LinkedHashMap<String, Map<String, List<Object>>>();
+    for (final String netid : netids) {
+      if (seedPattern.matcher(netid).matches()) {
+        final CachedAttributes attributes = this.backingMap.get(netid);
+        if (attributes != null && !attributes.isExpired(now)) {
+          results.put(netid, attributes.getAttributes());
+        }
+      }
+    }
+    return results;
+  }
+
+  /* matches slices of a key snapshot on the scan executor. */
+  private Map<String, Map<String, List<Object>>> matchParallel(final Pattern seedPattern, final long now) {
+    final List<String> netids = new ArrayList<String>(this.backingMap.keySet());
+    final int slices = Runtime.getRuntime().availableProcessors();
+    final int sliceSize = Math.max(1, (netids.size() + slices - 1) / slices);
+    final List<Callable<Map<String, Map<String, List<Object>>>>> tasks =
+        new ArrayList<Callable<Map<String, Map<String, List<Object>>>>>(slices);
+    for (int from = 0; from < netids.size(); from += sliceSize) {
+      final List<String> slice = netids.subList(from, Math.min(from + sliceSize, netids.size()));
+      tasks.add(new Callable<Map<String, Map<String, List<Object>>>>() {
+        public Map<String, Map<String, List<Object>>> call() {
+          return match(slice, seedPattern, now);
+        }
+      });
+    }
+    final Map<String, Map<String, List<Object>>> results = new LinkedHashMap<String, Map<String, List<Object>>>();
+    try {
+      for (Future<Map<String, Map<String, List<Object>>>> slice : getScanExecutor().invokeAll(tasks)) {
+        results.putAll(slice.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while scanning the attribute store", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Attribute store scan failed", e.getCause());
+    }
+    return results;
+  }
+
+  /*
+   * TinyLFU admission. Makes room for the new entry by evicting the entries closest to expiry,
+   * unless such a victim was seen at least as often as the new netid. On a tie the victim stays.
+   * Returns false if the new entry must not be stored.
+   * Not atomic with the following put: concurrent writers admitted against the same free room
+   * may each store their entry, exceeding maxEntries by up to the number of concurrent writers.
+   */
+  private boolean admit(String netid, CachedAttributes entry) {
+    final FrequencySketch frequencies = getSketch();
+    frequencies.increment(netid);
+    final CachedAttributes existing = this.backingMap.get(netid);
+    final long entryWeight = weigh(netid, entry) - (existing == null ? 0 : weigh(netid, existing));
+    final int entryCount = existing == null ? 1 : 0;
+    synchronized (this.evictionLock) {
+      final long now = System.currentTimeMillis();
+      while (isOverCapacity(entryCount, entryWeight)) {
+        final AttributeExpiryQueue.Entry victim = this.expiryQueue.peek();
+        if (victim == null) {
+          break;
+        }
+        final CachedAttributes victimEntry = current(victim);
+        if (victimEntry == null) {
+          // stale queue entry
+          this.expiryQueue.removeHead(victim);
+          continue;
+        }
+        if (!victim.key.equals(netid) && !victimEntry.isExpired(now)
+            && frequencies.frequency(netid) <= frequencies.frequency(victim.key)) {
+          return false;
+        }
+        this.expiryQueue.removeHead(victim);
+        if (removeEntry(victim.key, victimEntry) && log.isDebugEnabled()) {
+          log.debug("Evicted attributes from full store for netid: " + victim.key);
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean isOverCapacity(int entryCount, long entryWeight) {
+    return (this.maxEntries > 0 && this.backingMap.size() + entryCount > this.maxEntries)
+        || (this.maxWeight > 0 && this.weight.get() + entryWeight > this.maxWeight);
+  }
+
+  private boolean isBounded() {
+    return this.maxEntries > 0 || this.maxWeight > 0;
+  }
+
+  private FrequencySketch getSketch() {
+    FrequencySketch frequencies = this.sketch;
+    if (frequencies == null) {
+      synchronized (this.evictionLock) {
+        frequencies = this.sketch;
+        if (frequencies == null) {
+          // size the sketch by the expected number of entries
+          frequencies = new FrequencySketch(this.maxEntries > 0 ? this.maxEntries : (int) Math.min(this.maxWeight / 512, 1 << 20));
+          this.sketch = frequencies;
+        }
+      }
+    }
+    return frequencies;
+  }
+
+  /* the stored entry of a queued expiry, or null if the queue entry is stale. */
+  private CachedAttributes current(AttributeExpiryQueue.Entry queued) {
+    final CachedAttributes entry = this.backingMap.get(queued.key);
+    return entry != null && entry.getVersion() == queued.version ? entry : null;
+  }
+
+  /* removes the entry for netid if it still is the given one. */
+  private boolean removeEntry(String netid, CachedAttributes entry) {
+    if (this.backingMap.remove(netid, entry)) {
+      this.weight.addAndGet(-weigh(netid, entry));
+      unindex(netid);
+      return true;
+    }
+    return false;
+  }
+
+  /* removes a no longer stored netid from the key index. Re-adds it if a concurrent login stored it again. */
+  private void unindex(String netid) {
+    final AttributeKeyIndex index = this.keyIndex;
+    if (index != null) {
+      index.remove(netid);
+      if (this.backingMap.containsKey(netid)) {
+        index.add(netid);
+      }
+    }
+  }
+
+  /* estimated heap weight of a backingMap entry, including the key. */
+  private static long weigh(String netid, CachedAttributes entry) {
+    return entry.getWeight() + 40 + 2 * netid.length();
+  }
+
+  private synchronized ExecutorService getScanExecutor() {
+    if (this.scanExecutor == null) {
+      this.scanExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          final Thread thread = new Thread(runnable, "InMemoryAttributeStore-scan");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return this.scanExecutor;
+  }
+}
@@ -0,0 +1,401 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.services.persondir.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.services.persondir.IPersonAttributeDao;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * AttributeStore backed by a database table, shared by all CAS nodes using the same DataSource.
+ * So the serviceValidate may be handled by another node than the login, without sticky sessions.
+ *
+ * Table layout: NETID (primary key), EXPIRES (indexed expiry time in milliseconds) and
+ * ATTRIBUTES (attributes in the {@link AttributeCodec} form). The table and index are created on first use, if missing.
+ * As any writer of the database can change the rows, attribute values Java serialized by the codec are only read
+ * for Numbers, Dates and byte arrays, and the classes configured by allowedValueClasses.
+ *
+ * An entry is taken by deleting it with its expiry time as precondition, so concurrent
+ * serviceValidates on several nodes obtain the attributes at most once.
+ * Expired entries are deleted in JDBC batches of evictionBatchSize rows, selected by the EXPIRES index.
+ *
+ * Configuration, using the dataSource of ticketRegistry.xml:
+ * <p>
+ *   <bean id="attributeRepository" class="com.symentis.cas.services.persondir.support.DirectMappedPersonAttributeDao">
+ *     <property name="store">
+ *       <bean class="com.symentis.cas.services.persondir.support.JdbcAttributeStore" p:dataSource-ref="dataSource"/>
+ *     </property>
+ *   </bean>
+ * </p>
+ *
+ * @author Robert Oschwald
+ */
+public class JdbcAttributeStore implements AttributeStore {
+  private static Log log = LogFactory.getLog(JdbcAttributeStore.class);
+  private static final String DEFAULT_TABLE_NAME = "CAS_ATTRIBUTE_HANDOFF";
+  private DataSource dataSource;
+  private String tableName = DEFAULT_TABLE_NAME;
+  private String binaryType = "VARBINARY(16384)";
+  private boolean createTable = true;
+  private int evictionBatchSize = 500;
+  private Set<String> allowedValueClasses = AttributeCodec.SAFE_VALUE_CLASSES;
+  private volatile boolean initialized;
+
+  public void setDataSource(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /** Name of the table. Default is CAS_ATTRIBUTE_HANDOFF. */
+  public void setTableName(String tableName) {
+    this.tableName = tableName;
+  }
+
+  /** SQL type of the ATTRIBUTES column used to create the table. Default is VARBINARY(16384), use e.g. BYTEA for PostgreSQL. */
+  public void setBinaryType(String binaryType) {
+    this.binaryType = binaryType;
+  }
+
+  /** Create the table and index on first use, if missing. Default is true. */
+  public void setCreateTable(boolean createTable) {
+    this.createTable = createTable;
+  }
+
+  /** Maximum number of expired rows deleted per JDBC batch. Default is 500. */
+  public void setEvictionBatchSize(int evictionBatchSize) {
+    if (evictionBatchSize < 1) {
+      throw new IllegalArgumentException("evictionBatchSize must be a positive int value");
+    }
+    this.evictionBatchSize = evictionBatchSize;
+  }
+
+  /**
+   * Names of further classes of attribute values read from the table, beside Strings, Numbers, Booleans,
+   * Dates and byte arrays. Superclasses and field classes of Serializable values must be listed as well.
+   */
+  public void setAllowedValueClasses(List<String> allowedValueClasses) {
+    final Set<String> allowed = new HashSet<String>(AttributeCodec.SAFE_VALUE_CLASSES);
+    allowed.addAll(allowedValueClasses);
+    this.allowedValueClasses = allowed;
+  }
+
+  public boolean put(String netid, Map<String, List<Object>> attributes, long expiryTime) {
+    final byte[] serialized = AttributeCodec.encode(attributes);
+    Connection connection = null;
+    try {
+      connection = getConnection();
+      if (update(connection, netid, serialized, expiryTime) == 0) {
+        try {
+          insert(connection, netid, serialized, expiryTime);
+        } catch (SQLException e) {
+          // concurrent insert of the same netid
+          if (update(connection, netid, serialized, expiryTime) == 0) {
+            throw e;
+          }
+        }
+      }
+      return true;
+    } catch (SQLException e) {
+      throw new IllegalStateException("Cannot store attributes for netid " + netid, e);
+    } finally {
+      close(null, null, connection);
+    }
+  }
+
+  public Map<String, List<Object>> take(String netid, long now) {
+    Connection connection = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    try {
+      connection = getConnection();
+      statement = connection.prepareStatement("SELECT EXPIRES, ATTRIBUTES FROM " + this.tableName + " WHERE NETID = ?");
+      statement.setString(1, netid);
+      resultSet = statement.executeQuery();
+      if (!resultSet.next()) {
+        return null;
+      }
+      final long expiryTime = resultSet.getLong(1);
+      final byte[] serialized = resultSet.getBytes(2);
+      close(resultSet, statement, null);
+      resultSet = null;
+      // only the node deleting the row hands off the attributes
+      statement = connection.prepareStatement("DELETE FROM " + this.tableName + " WHERE NETID = ? AND EXPIRES = ?");
+      statement.setString(1, netid);
+      statement.setLong(2, expiryTime);
+      if (statement.executeUpdate() == 0 || expiryTime <= now) {
+        return null;
+      }
+      return deserialize(netid, serialized);
+    } catch (SQLException e) {
+      throw new IllegalStateException("Cannot take attributes for netid " + netid, e);
+    } finally {
+      close(resultSet, statement, connection);
+    }
+  }
+
+  public Map<String, Map<String, List<Object>>> find(String seedValue, long now) {
+    final Map<String, Map<String, List<Object>>> results = new LinkedHashMap<String, Map<String, List<Object>>>();
+    Connection connection = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    try {
+      connection = getConnection();
+      statement = connection.prepareStatement("SELECT NETID, ATTRIBUTES FROM " + this.tableName
+          + " WHERE NETID LIKE ? ESCAPE '\\' AND EXPIRES > ?");
+      statement.setString(1, toLikePattern(seedValue));
+      statement.setLong(2, now);
+      resultSet = statement.executeQuery();
+      while (resultSet.next()) {
+        final String netid = resultSet.getString(1);
+        final Map<String, List<Object>> attributes = deserialize(netid, resultSet.getBytes(2));
+        if (attributes != null) {
+          results.put(netid, attributes);
+        }
+      }
+      return results;
+    } catch (SQLException e) {
+      throw new IllegalStateException("Cannot find attributes for " + seedValue, e);
+    } finally {
+      close(resultSet, statement, connection);
+    }
+  }
+
+  /* Selects expired netids by the EXPIRES index and deletes them in batches. */
+  public int evictExpired(long now) {
+    int removed = 0;
+    Connection connection = null;
+    try {
+      connection = getConnection();
+      List<String> expired;
+      do {
+        expired = selectExpired(connection, now);
+        if (!expired.isEmpty()) {
+          removed += deleteExpired(connection, expired, now);
+        }
+      } while (expired.size() == this.evictionBatchSize);
+    } catch (SQLException e) {
+      throw new IllegalStateException("Cannot evict expired attributes", e);
+    } finally {
+      close(null, null, connection);
+    }
+    if (log.isDebugEnabled() && removed > 0) {
+      log.debug("Removed " + removed + " expired attribute entries from " + this.tableName);
+    }
+    return removed;
+  }
+
+  public int size() {
+    Connection connection = null;
+    Statement statement = null;
+    ResultSet resultSet = null;
+    try {
+      connection = getConnection();
+      statement = connection.createStatement();
+      resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + this.tableName);
+      return resultSet.next() ? resultSet.getInt(1) : 0;
+    } catch (SQLException e) {
+      throw new IllegalStateException("Cannot count attribute entries", e);
+    } finally {
+      close(resultSet, statement, connection);
+    }
+  }
+
+  public void destroy() {
+    // connections are owned by the DataSource
+  }
+
+  private int update(Connection connection, String netid, byte[] serialized, long expiryTime) throws SQLException {
+    PreparedStatement statement = null;
+    try {
+      statement = connection.prepareStatement("UPDATE " + this.tableName + " SET EXPIRES = ?, ATTRIBUTES = ? WHERE NETID = ?");
+      statement.setLong(1, expiryTime);
+      statement.setBytes(2, serialized);
+      statement.setString(3, netid);
+      return statement.executeUpdate();
+    } finally {
+      close(null, statement, null);
+    }
+  }
+
+  private void insert(Connection connection, String netid, byte[] serialized, long expiryTime) throws SQLException {
+    PreparedStatement statement = null;
+    try {
+      statement = connection.prepareStatement("INSERT INTO " + this.tableName + " (NETID, EXPIRES, ATTRIBUTES) VALUES (?, ?, ?)");
+      statement.setString(1, netid);
+      statement.setLong(2, expiryTime);
+      statement.setBytes(3, serialized);
+      statement.executeUpdate();
+    } finally {
+      close(null, statement, null);
+    }
+  }
+
+  private List<String> selectExpired(Connection connection, long now) throws SQLException {
+    final List<String> expired = new ArrayList<String>(this.evictionBatchSize);
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    try {
+      statement = connection.prepareStatement("SELECT NETID FROM " + this.tableName + " WHERE EXPIRES <= ?");
+      statement.setMaxRows(this.evictionBatchSize);
+      statement.setLong(1, now);
+      resultSet = statement.executeQuery();
+      while (resultSet.next()) {
+        expired.add(resultSet.getString(1));
+      }
+      return expired;
+    } finally {
+      close(resultSet, statement, null);
+    }
+  }
+
+  private int deleteExpired(Connection connection, List<String> netids, long now) throws SQLException {
+    PreparedStatement statement = null;
+    try {
+      // the EXPIRES condition keeps entries renewed in the meantime
+      statement = connection.prepareStatement("DELETE FROM " + this.tableName + " WHERE NETID = ? AND EXPIRES <= ?");
+      for (String netid : netids) {
+        statement.setString(1, netid);
+        statement.setLong(2, now);
+        statement.addBatch();
+      }
+      int removed = 0;
+      for (int count : statement.executeBatch()) {
+        // drivers may report SUCCESS_NO_INFO
+        removed += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+      }
+      return removed;
+    } finally {
+      close(null, statement, null);
+    }
+  }
+
+  private Connection getConnection() throws SQLException {
+    final Connection connection = this.dataSource.getConnection();
+    if (!this.initialized) {
+      try {
+        initialize(connection);
+      } catch (SQLException e) {
+        close(null, null, connection);
+        throw e;
+      }
+    }
+    return connection;
+  }
+
+  /* creates the table and expiry index, if missing. */
+  private synchronized void initialize(Connection connection) throws SQLException {
+    if (this.initialized) {
+      return;
+    }
+    if (this.createTable && !tableExists(connection)) {
+      Statement statement = null;
+      try {
+        statement = connection.createStatement();
+        statement.executeUpdate("CREATE TABLE " + this.tableName + " (NETID VARCHAR(255) NOT NULL PRIMARY KEY, "
+            + "EXPIRES BIGINT NOT NULL, ATTRIBUTES " + this.binaryType + " NOT NULL)");
+        statement.executeUpdate("CREATE INDEX " + this.tableName + "_EXP_IDX ON " + this.tableName + " (EXPIRES)");
+        log.info("Created attribute store table " + this.tableName);
+      } finally {
+        close(null, statement, null);
+      }
+    }
+    this.initialized = true;
+  }
+
+  private boolean tableExists(Connection connection) throws SQLException {
+    final DatabaseMetaData metaData = connection.getMetaData();
+    final String[] names = {this.tableName, this.tableName.toUpperCase(), this.tableName.toLowerCase()};
+    for (String name : names) {
+      ResultSet tables = null;
+      try {
+        tables = metaData.getTables(null, null, name, null);
+        if (tables.next()) {
+          return true;
+        }
+      } finally {
+        close(tables, null, null);
+      }
+    }
+    return false;
+  }
+
+  /* translates the persondir wildcard to a SQL LIKE pattern, escaping LIKE metacharacters. */
+  private static String toLikePattern(String seedValue) {
+    final StringBuilder pattern = new StringBuilder(seedValue.length() + 8);
+    for (int i = 0; i < seedValue.length(); i++) {
+      final char c = seedValue.charAt(i);
+      if (c == '%' || c == '_' || c == '\\') {
+        pattern.append('\\').append(c);
+      } else if (seedValue.startsWith(IPersonAttributeDao.WILDCARD, i)) {
+        pattern.append('%');
+      } else {
+        pattern.append(c);
+      }
+    }
+    return pattern.toString();
+  }
+
+  /* decodes the attributes of a row. Returns null for unreadable rows, e.g. of a previous version or not allowed classes. */
+  private Map<String, List<Object>> deserialize(String netid, byte[] serialized) {
+    try {
+      return AttributeCodec.decode(serialized, this.allowedValueClasses);
+    } catch (RuntimeException e) {
+      log.warn("Ignoring unreadable stored attributes for netid " + netid + ": " + e);
+      return null;
+    }
+  }
+
+  private static void close(ResultSet resultSet, Statement statement, Connection connection) {
+    try {
+      if (resultSet != null) {
+        resultSet.close();
+      }
+    } catch (SQLException e) {
+      log.debug("Cannot close ResultSet", e);
+    }
+    try {
+      if (statement != null) {
+        statement.close();
+      }
+    } catch (SQLException e) {
+      log.debug("Cannot close Statement", e);
+    }
+    try {
+      if (connection != null) {
+        connection.close();
+      }
+    } catch (SQLException e) {
+      log.debug("Cannot close Connection", e);
+    }
+  }
+}
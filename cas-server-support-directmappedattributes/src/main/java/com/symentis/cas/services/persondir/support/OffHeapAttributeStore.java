@@ -0,0 +1,328 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.services.persondir.support;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.services.persondir.util.PatternHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * AttributeStore keeping the attributes serialized outside of the Java heap. Local to the CAS node.
+ *
+ * Attributes are written in a compact binary form ({@link AttributeCodec}) into fixed size direct
+ * ByteBuffer slabs, or memory mapped files if a mappedDirectory is configured. The heap only holds the
+ * netid index with a small slot per entry, so a large number of pending logins does not grow the old
+ * generation and the GC pauses of the CAS node. Attributes are deserialized once, when they are taken.
+ *
+ * Slabs are filled by bump allocation. A slab is recycled as soon as all its entries are taken or expired.
+ * As all entries share the same TTL, slabs empty in allocation order. The store is bounded by maxSlabs;
+ * when all slabs are in use, new entries are rejected after evicting the expired ones.
+ *
+ * @author Robert Oschwald
+ */
+public class OffHeapAttributeStore implements AttributeStore {
+  private static Log log = LogFactory.getLog(OffHeapAttributeStore.class);
+  private final ConcurrentHashMap<String, Slot> index = new ConcurrentHashMap<String, Slot>();
+  private final AttributeExpiryQueue expiryQueue = new AttributeExpiryQueue();
+  private int slabSize = 4 * 1024 * 1024;
+  private int maxSlabs = 64;
+  private File mappedDirectory;
+  /* Slab currently filled by bump allocation. Guarded by this. */
+  private Slab current;
+  /* Emptied slabs ready for reuse. Guarded by this. */
+  private final ArrayDeque<Slab> freeSlabs = new ArrayDeque<Slab>();
+  private int allocatedSlabs = 0;
+  /* Version of the last allocated slot. Guarded by this. */
+  private long versions = 0;
+
+  /**
+   * Size of a slab in bytes. Entries larger than a slab are rejected. Default is 4 MB.
+   */
+  public synchronized void setSlabSize(final int slabSize) {
+    if (slabSize <= 0) {
+      throw new IllegalArgumentException("slabSize must be positive");
+    }
+    if (this.allocatedSlabs > 0) {
+      throw new IllegalStateException("slabSize can not be changed after the first put");
+    }
+    this.slabSize = slabSize;
+  }
+
+  /**
+   * Maximum number of slabs. The store holds at most maxSlabs * slabSize bytes outside of the heap.
+   * Default is 64 (256 MB with the default slab size). Direct slabs count against -XX:MaxDirectMemorySize.
+   */
+  public synchronized void setMaxSlabs(final int maxSlabs) {
+    if (maxSlabs <= 0) {
+      throw new IllegalArgumentException("maxSlabs must be positive");
+    }
+    this.maxSlabs = maxSlabs;
+  }
+
+  /**
+   * Directory for memory mapped slab files. If not set (default), slabs are direct ByteBuffers.
+   * The files are deleted on exit.
+   */
+  public synchronized void setMappedDirectory(final String mappedDirectory) {
+    this.mappedDirectory = mappedDirectory == null ? null : new File(mappedDirectory);
+  }
+
+  public boolean put(String netid, Map<String, List<Object>> attributes, long expiryTime) {
+    final byte[] data = AttributeCodec.encode(attributes);
+    Slot slot = allocate(data.length, expiryTime);
+    if (slot == null) {
+      // make room from expired entries once
+      evictExpired(System.currentTimeMillis());
+      slot = allocate(data.length, expiryTime);
+      if (slot == null) {
+        if (log.isDebugEnabled()) {
+          log.debug("Off-heap attribute store full. Rejecting attributes for netid: " + netid);
+        }
+        return false;
+      }
+    }
+    slot.write(data);
+    final Slot previous = this.index.put(netid, slot);
+    if (previous != null) {
+      // its expiry queue entry gets stale
+      release(previous);
+    }
+    this.expiryQueue.schedule(netid, slot.version, expiryTime);
+    return true;
+  }
+
+  public Map<String, List<Object>> take(String netid, long now) {
+    final Slot slot = this.index.remove(netid);
+    if (slot == null) {
+      return null;
+    }
+    try {
+      if (slot.deadline <= now) {
+        // not yet evicted
+        return null;
+      }
+      return AttributeCodec.decode(slot.read());
+    } finally {
+      release(slot);
+    }
+  }
+
+  public Map<String, Map<String, List<Object>>> find(String seedValue, long now) {
+    final Pattern seedPattern = PatternHelper.compilePattern(seedValue);
+    final Map<String, Map<String, List<Object>>> results = new LinkedHashMap<String, Map<String, List<Object>>>();
+    for (Map.Entry<String, Slot> entry : this.index.entrySet()) {
+      final Slot slot = entry.getValue();
+      if (slot.deadline <= now || !seedPattern.matcher(entry.getKey()).matches()) {
+        continue;
+      }
+      final byte[] data = slot.read();
+      // a slot is only released after its removal from the index. If it is still indexed,
+      // its bytes were not recycled while reading them.
+      if (this.index.get(entry.getKey()) == slot) {
+        results.put(entry.getKey(), AttributeCodec.decode(data));
+      }
+    }
+    return results;
+  }
+
+  public int evictExpired(long now) {
+    int removed = 0;
+    AttributeExpiryQueue.Entry expired;
+    while ((expired = this.expiryQueue.pollExpired(now)) != null) {
+      // entry may already be taken by serviceValidate or replaced by a new login
+      final Slot slot = this.index.get(expired.key);
+      if (slot != null && slot.version == expired.version && this.index.remove(expired.key, slot)) {
+        release(slot);
+        if (log.isDebugEnabled()) {
+          log.debug("Removing expired attributes for netid: " + expired.key);
+        }
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  public int size() {
+    return this.index.size();
+  }
+
+  /** Number of slabs allocated outside of the heap. */
+  public synchronized int getAllocatedSlabs() {
+    return this.allocatedSlabs;
+  }
+
+  public synchronized void destroy() {
+    this.index.clear();
+    this.freeSlabs.clear();
+    this.current = null;
+    this.allocatedSlabs = 0;
+  }
+
+  /* reserves length bytes. Returns null if all slabs are in use. */
+  private synchronized Slot allocate(int length, long deadline) {
+    if (length > this.slabSize) {
+      log.warn("Attributes of " + length + " bytes exceed the slab size of the off-heap attribute store");
+      return null;
+    }
+    if (this.current == null || this.current.remaining() < length) {
+      if (this.current != null) {
+        seal(this.current);
+      }
+      this.current = nextSlab();
+      if (this.current == null) {
+        return null;
+      }
+    }
+    return this.current.reserve(length, deadline, ++this.versions);
+  }
+
+  /* takes a free slab or allocates a new one. Guarded by this. */
+  private Slab nextSlab() {
+    final Slab free = this.freeSlabs.poll();
+    if (free != null) {
+      free.reset();
+      return free;
+    }
+    if (this.allocatedSlabs >= this.maxSlabs) {
+      return null;
+    }
+    this.allocatedSlabs++;
+    return new Slab(createBuffer());
+  }
+
+  private ByteBuffer createBuffer() {
+    if (this.mappedDirectory == null) {
+      return ByteBuffer.allocateDirect(this.slabSize);
+    }
+    try {
+      final File file = File.createTempFile("cas-attributes-", ".slab", this.mappedDirectory);
+      file.deleteOnExit();
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        // the mapping stays valid after the channel is closed
+        return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.slabSize);
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot map attribute slab in " + this.mappedDirectory, e);
+    }
+  }
+
+  /* no further allocation from the slab. Recycles it if all its entries are already released. */
+  private synchronized void seal(Slab slab) {
+    slab.sealed = true;
+    if (slab.live.get() == 0) {
+      this.freeSlabs.push(slab);
+    }
+  }
+
+  /* called once per slot, by the thread which removed it from the index. */
+  private void release(Slot slot) {
+    final Slab slab = slot.slab;
+    if (slab.live.decrementAndGet() == 0) {
+      synchronized (this) {
+        // the current slab is never recycled. Sealing re-checks the live count.
+        if (slab.sealed && slab != this.current && slab.live.get() == 0 && !this.freeSlabs.contains(slab)) {
+          this.freeSlabs.push(slab);
+        }
+      }
+    }
+  }
+
+  /**
+   * Fixed size buffer filled by bump allocation.
+   */
+  private static final class Slab {
+    final ByteBuffer buffer;
+    /* Number of not yet released slots. */
+    final AtomicInteger live = new AtomicInteger();
+    /* Next free offset. Guarded by the store. */
+    int position;
+    /* Guarded by the store. */
+    boolean sealed;
+
+    Slab(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    int remaining() {
+      return this.buffer.capacity() - this.position;
+    }
+
+    Slot reserve(int length, long deadline, long version) {
+      final Slot slot = new Slot(this, this.position, length, deadline, version);
+      this.position += length;
+      this.live.incrementAndGet();
+      return slot;
+    }
+
+    void reset() {
+      this.position = 0;
+      this.sealed = false;
+    }
+  }
+
+  /**
+   * Location and expiry of a stored entry. The only per entry object on the heap.
+   */
+  private static final class Slot {
+    final Slab slab;
+    final int offset;
+    final int length;
+    final long deadline;
+    final long version;
+
+    Slot(Slab slab, int offset, int length, long deadline, long version) {
+      this.slab = slab;
+      this.offset = offset;
+      this.length = length;
+      this.deadline = deadline;
+      this.version = version;
+    }
+
+    void write(byte[] data) {
+      final ByteBuffer target = this.slab.buffer.duplicate();
+      target.position(this.offset);
+      target.put(data, 0, this.length);
+    }
+
+    byte[] read() {
+      final byte[] data = new byte[this.length];
+      final ByteBuffer source = this.slab.buffer.duplicate();
+      source.position(this.offset);
+      source.get(data);
+      return data;
+    }
+  }
+}
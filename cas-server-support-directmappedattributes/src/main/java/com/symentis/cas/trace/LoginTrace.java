@@ -0,0 +1,275 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.trace;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sampled per-login trace of the phases of the webservice authentication and the attribute hand-off.
+ *
+ * A trace is started by the root phase of a request: the authentication of a login, or the attribute lookup of a
+ * serviceValidate. One in sampling requests is traced. All phases entered by the same thread until the root phase
+ * ends are recorded, and one line with the time of each phase in microseconds is logged at INFO, e.g.
+ * <pre>
+ * root=AUTHENTICATION subject=jdoe AUTHENTICATION_us=5210 MARSHAL_us=180 WSSE_us=650 SEND_us=3900 UNMARSHAL_us=95 ATTRIBUTES_ADD_us=12
+ * </pre>
+ * Phases entered several times sum up, e.g. a retried SEND. A trace is handed to a worker thread with
+ * {@link #capture} and {@link #attach}, as done by the ExecutorWebserviceClient. The worker records into its own
+ * buffer, which is added to the trace on {@link #detach}; phases of a worker still running when the root phase ends
+ * are not logged. Other work handed off to other threads (hedged or batched requests) is not traced.
+ *
+ * Recording reuses one buffer per thread and allocates nothing; only the log line of a sampled request is built.
+ * With sampling 0 (default) and no trace running, tracing is off and costs a volatile read per phase.
+ * Enable the logger com.symentis.cas.trace.LoginTrace at INFO to write the traces.
+ *
+ * @author Robert Oschwald
+ */
+public final class LoginTrace {
+  /**
+   * Traced phases.
+   */
+  public enum Phase {
+    /** WebserviceAuthenticationHandler, whole authentication of a login. */
+    AUTHENTICATION,
+    /** Creation of the request message and marshalling of its payload. */
+    MARSHAL,
+    /** Adding the WSSE security header. */
+    WSSE,
+    /** Sending the request and receiving the response message. */
+    SEND,
+    /** Unmarshalling the response payload. */
+    UNMARSHAL,
+    /** DirectMappedPersonAttributeDao.addAttributes on login. */
+    ATTRIBUTES_ADD,
+    /** DirectMappedPersonAttributeDao lookup on serviceValidate. */
+    ATTRIBUTES_GET
+  }
+
+  private static final Log log = LogFactory.getLog(LoginTrace.class);
+  private static final Phase[] PHASES = Phase.values();
+  private static final ThreadLocal<LoginTrace> traces = new ThreadLocal<LoginTrace>() {
+    @Override
+    protected LoginTrace initialValue() {
+      return new LoginTrace();
+    }
+  };
+  private static volatile int sampling = 0;
+  /* Number of traces between begin and end of their root phase, so end is skipped while none is running. */
+  private static final AtomicInteger running = new AtomicInteger();
+
+  /* State of the thread's trace. Only accessed by its thread; elapsed also by merges of workers, guarded by this. */
+  private final long[] started = new long[PHASES.length];
+  private final long[] elapsed = new long[PHASES.length];
+  private Phase root;
+  private int requests;
+  /* Captured for another thread, which may still record after the root phase ended. */
+  private volatile boolean captured;
+  /* Captured trace of another thread this worker trace is merged into, null for the own trace of a thread. */
+  private final LoginTrace parent;
+
+  private LoginTrace() {
+    this.parent = null;
+  }
+
+  private LoginTrace(LoginTrace parent) {
+    this.parent = parent;
+    this.root = parent.root;
+  }
+
+  /**
+   * Trace one in sampling requests. 0 disables tracing, 1 traces every request.
+   */
+  public static void setSampling(final int sampling) {
+    if (sampling < 0) {
+      throw new IllegalArgumentException("sampling must not be negative");
+    }
+    LoginTrace.sampling = sampling;
+  }
+
+  public static int getSampling() {
+    return sampling;
+  }
+
+  /**
+   * Starts a trace with the root phase, if this request is sampled. Only enters the phase, if a trace is already
+   * running on this thread. Call {@link #end} with the same phase in a finally block.
+   */
+  public static void begin(final Phase root) {
+    final int rate = sampling;
+    if (rate == 0) {
+      return;
+    }
+    final LoginTrace trace = traces.get();
+    if (trace.root != null) {
+      trace.enterPhase(root);
+    } else if (++trace.requests >= rate) {
+      trace.requests = 0;
+      trace.root = root;
+      running.incrementAndGet();
+      trace.enterPhase(root);
+    }
+  }
+
+  /**
+   * Ends the phase started by {@link #begin}. If it is the root phase of the trace, logs the trace.
+   *
+   * @param subject e.g. the username of the login
+   */
+  public static void end(final Phase root, final String subject) {
+    // a running trace must end, also if tracing was disabled meanwhile
+    if (sampling == 0 && running.get() == 0) {
+      return;
+    }
+    final LoginTrace trace = traces.get();
+    if (trace.root == null) {
+      return;
+    }
+    trace.exitPhase(root);
+    if (trace.root == root && trace.parent == null) {
+      running.decrementAndGet();
+      if (log.isInfoEnabled()) {
+        log.info(trace.format(subject));
+      }
+      if (trace.captured) {
+        // leave the trace to a late worker thread
+        final LoginTrace fresh = new LoginTrace();
+        fresh.requests = trace.requests;
+        traces.set(fresh);
+      } else {
+        trace.reset();
+      }
+    }
+  }
+
+  /**
+   * The trace running on this thread, to be continued by another thread with {@link #attach}.
+   *
+   * @return the trace, or null if none is running
+   */
+  public static LoginTrace capture() {
+    if (sampling == 0) {
+      return null;
+    }
+    final LoginTrace trace = traces.get();
+    if (trace.root == null) {
+      return null;
+    }
+    trace.captured = true;
+    return trace;
+  }
+
+  /**
+   * Records the phases of this thread for the captured trace, until {@link #detach}.
+   *
+   * @param trace captured trace, or null
+   * @return the previous trace of this thread, to be passed to detach
+   */
+  public static LoginTrace attach(final LoginTrace trace) {
+    if (trace == null) {
+      return null;
+    }
+    final LoginTrace previous = traces.get();
+    traces.set(new LoginTrace(trace));
+    return previous;
+  }
+
+  /**
+   * Adds the phases recorded since {@link #attach} to the captured trace and restores the trace of this thread.
+   *
+   * @param previous the result of attach
+   */
+  public static void detach(final LoginTrace previous) {
+    if (previous != null) {
+      final LoginTrace worker = traces.get();
+      if (worker.parent != null) {
+        worker.parent.merge(worker);
+      }
+      traces.set(previous);
+    }
+  }
+
+  /** Enters the phase, if a trace is running on this thread. */
+  public static void enter(final Phase phase) {
+    if (sampling == 0) {
+      return;
+    }
+    final LoginTrace trace = traces.get();
+    if (trace.root != null) {
+      trace.enterPhase(phase);
+    }
+  }
+
+  /** Exits the phase, if it was entered. */
+  public static void exit(final Phase phase) {
+    if (sampling == 0) {
+      return;
+    }
+    final LoginTrace trace = traces.get();
+    if (trace.root != null) {
+      trace.exitPhase(phase);
+    }
+  }
+
+  private void enterPhase(Phase phase) {
+    this.started[phase.ordinal()] = System.nanoTime();
+  }
+
+  /* synchronized with the merge of a late worker. Only called on sampled requests, so uncontended. */
+  private synchronized void exitPhase(Phase phase) {
+    final int i = phase.ordinal();
+    if (this.started[i] != 0) {
+      this.elapsed[i] += System.nanoTime() - this.started[i];
+      this.started[i] = 0;
+    }
+  }
+
+  /* adds the elapsed times of an attached worker. Synchronized with format. */
+  private synchronized void merge(LoginTrace worker) {
+    for (int i = 0; i < PHASES.length; i++) {
+      if (worker.elapsed[i] > 0) {
+        this.elapsed[i] += worker.elapsed[i];
+      }
+    }
+  }
+
+  private synchronized String format(String subject) {
+    final StringBuilder line = new StringBuilder(160);
+    line.append("root=").append(this.root).append(" subject=").append(subject);
+    for (Phase phase : PHASES) {
+      final long nanos = this.elapsed[phase.ordinal()];
+      if (nanos > 0) {
+        line.append(' ').append(phase).append("_us=").append(nanos / 1000);
+      }
+    }
+    return line.toString();
+  }
+
+  /* only called if not captured, so no worker merges concurrently. */
+  private void reset() {
+    this.root = null;
+    for (int i = 0; i < PHASES.length; i++) {
+      this.started[i] = 0;
+      this.elapsed[i] = 0;
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.services.persondir.support;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JdbcAttributeStore on an in-memory HSQLDB.
+ *
+ * @author Robert Oschwald
+ */
+public class JdbcAttributeStoreTest {
+  private static final AtomicInteger DATABASES = new AtomicInteger();
+  private JDBCDataSource dataSource;
+  private JdbcAttributeStore store;
+  private long now;
+
+  @Before
+  public void setUp() {
+    this.dataSource = new JDBCDataSource();
+    this.dataSource.setUrl("jdbc:hsqldb:mem:attributes" + DATABASES.incrementAndGet());
+    this.dataSource.setUser("SA");
+    this.dataSource.setPassword("");
+    this.store = new JdbcAttributeStore();
+    this.store.setDataSource(this.dataSource);
+    this.now = System.currentTimeMillis();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    final Connection connection = this.dataSource.getConnection();
+    try {
+      final Statement statement = connection.createStatement();
+      statement.execute("SHUTDOWN");
+      statement.close();
+    } finally {
+      connection.close();
+    }
+  }
+
+  @Test
+  public void takeReturnsTheAttributesOnce() {
+    assertTrue(this.store.put("jdoe", attributes("jdoe"), this.now + 60000));
+    assertEquals(1, this.store.size());
+
+    final Map<String, List<Object>> attributes = this.store.take("jdoe", this.now);
+    assertNotNull(attributes);
+    assertEquals(Collections.<Object>singletonList("jdoe"), attributes.get("netid"));
+    assertEquals(Arrays.<Object>asList(42L, 7), attributes.get("numbers"));
+    assertNull(this.store.take("jdoe", this.now));
+    assertEquals(0, this.store.size());
+  }
+
+  @Test
+  public void putReplacesTheEntry() {
+    this.store.put("jdoe", attributes("first"), this.now + 60000);
+    this.store.put("jdoe", attributes("second"), this.now + 60000);
+
+    assertEquals(1, this.store.size());
+    assertEquals(Collections.<Object>singletonList("second"), this.store.take("jdoe", this.now).get("netid"));
+  }
+
+  @Test
+  public void takeOfAnExpiredEntryRemovesIt() {
+    this.store.put("jdoe", attributes("jdoe"), this.now - 1);
+
+    assertNull(this.store.take("jdoe", this.now));
+    assertEquals(0, this.store.size());
+  }
+
+  @Test
+  public void concurrentTakesSucceedExactlyOnce() throws Exception {
+    final int threads = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int round = 0; round < 50; round++) {
+        final String netid = "user" + round;
+        this.store.put(netid, attributes(netid), this.now + 60000);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Map<String, List<Object>>>> takes = new ArrayList<Future<Map<String, List<Object>>>>();
+        for (int i = 0; i < threads; i++) {
+          takes.add(executor.submit(new Callable<Map<String, List<Object>>>() {
+            public Map<String, List<Object>> call() throws Exception {
+              start.await();
+              return store.take(netid, now);
+            }
+          }));
+        }
+        start.countDown();
+        int taken = 0;
+        for (Future<Map<String, List<Object>>> take : takes) {
+          if (take.get(10, TimeUnit.SECONDS) != null) {
+            taken++;
+          }
+        }
+        assertEquals("takes of " + netid, 1, taken);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void findEscapesLikeMetacharacters() {
+    for (String netid : new String[]{"a_b", "axb", "a%c", "abc", "a\\d", "xa_b"}) {
+      this.store.put(netid, attributes(netid), this.now + 60000);
+    }
+
+    assertEquals(Collections.singleton("a_b"), this.store.find("a_*", this.now).keySet());
+    assertEquals(Collections.singleton("a%c"), this.store.find("a%*", this.now).keySet());
+    assertEquals(Collections.singleton("a\\d"), this.store.find("a\\*", this.now).keySet());
+    assertEquals(2, this.store.find("*a_b", this.now).size());
+    assertEquals(6, this.store.find("*", this.now).size());
+  }
+
+  @Test
+  public void findSkipsExpiredEntries() {
+    this.store.put("live", attributes("live"), this.now + 60000);
+    this.store.put("expired", attributes("expired"), this.now - 1);
+
+    assertEquals(Collections.singleton("live"), this.store.find("*", this.now).keySet());
+  }
+
+  @Test
+  public void evictExpiredDeletesInBatches() {
+    this.store.setEvictionBatchSize(3);
+    for (int i = 0; i < 10; i++) {
+      this.store.put("expired" + i, attributes("expired" + i), this.now - 1000 + i);
+    }
+    this.store.put("live1", attributes("live1"), this.now + 60000);
+    this.store.put("live2", attributes("live2"), this.now + 60000);
+
+    assertEquals(10, this.store.evictExpired(this.now));
+    assertEquals(2, this.store.size());
+    assertEquals(0, this.store.evictExpired(this.now));
+    assertNotNull(this.store.take("live1", this.now));
+  }
+
+  @Test
+  public void valuesOfNotAllowedClassesAreNotRead() {
+    final Map<String, List<Object>> attributes = attributes("jdoe");
+    attributes.put("list", Collections.<Object>singletonList(new ArrayList<Object>()));
+    this.store.put("jdoe", attributes, this.now + 60000);
+    this.store.put("jdoe2", attributes, this.now + 60000);
+
+    assertNull(this.store.take("jdoe", this.now));
+    this.store.setAllowedValueClasses(Collections.singletonList("java.util.ArrayList"));
+    assertEquals(Collections.<Object>singletonList(new ArrayList<Object>()), this.store.take("jdoe2", this.now).get("list"));
+  }
+
+  private static Map<String, List<Object>> attributes(String netid) {
+    final Map<String, List<Object>> attributes = new HashMap<String, List<Object>>();
+    attributes.put("netid", new ArrayList<Object>(Collections.singletonList(netid)));
+    attributes.put("numbers", new ArrayList<Object>(Arrays.<Object>asList(42L, 7)));
+    return attributes;
+  }
+}
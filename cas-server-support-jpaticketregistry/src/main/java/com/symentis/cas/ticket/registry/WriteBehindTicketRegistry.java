@@ -0,0 +1,494 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ticket.registry;
+
+import org.jasig.cas.ticket.ServiceTicketImpl;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.validation.constraints.NotNull;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Write-behind ticket registry on the JPA ticket tables of the JpaTicketRegistry.
+ * <p/>
+ * Tickets added or changed on this node are kept in a local ConcurrentHashMap, so the login and validation
+ * path reads and writes no database. Adds, updates and deletes are queued and written by a background thread
+ * every flushInterval, in transactions of up to batchSize writes. Several writes of the same ticket before
+ * its flush are coalesced into one, e.g. the add of a service ticket and its update on validation.
+ * Tickets unknown to this node are read from the database.
+ * <p/>
+ * The queue is bounded by maxPendingWrites. If it is full, the calling thread flushes the queue itself,
+ * so the requests are slowed down to the database throughput instead of growing the queue.
+ * Written tickets stay in the local map until it holds more than maxHotTickets tickets. Then each flush
+ * removes written tickets from it until it is back at maxHotTickets.
+ * <p/>
+ * A ticket is in the database up to flushInterval after its change, and lost on a crash of the node before.
+ * The queue is flushed on destroy.
+ * <p/>
+ * For a single CAS node only. Other nodes do not see a new service ticket before its flush, so a
+ * serviceValidate on another node fails, and they keep serving tickets from their local map after
+ * a logout on this node. Sticky sessions do not help, as the validation is not sent by the browser.
+ * <p/>
+ * Configuration, replacing the JpaTicketRegistry of ticketRegistry.xml:
+ * <p>
+ *   <bean id="ticketRegistry" class="com.symentis.cas.ticket.registry.WriteBehindTicketRegistry"
+ *         p:transactionManager-ref="transactionManager"
+ *         p:batchSize="50"
+ *         destroy-method="destroy"/>
+ * </p>
+ * Set hibernate.jdbc.batch_size to the batchSize, so the writes of a transaction are sent in JDBC batches.
+ *
+ * @author Robert Oschwald
+ */
+public class WriteBehindTicketRegistry extends AbstractDistributedTicketRegistry {
+  private static final Logger log = LoggerFactory.getLogger(WriteBehindTicketRegistry.class);
+  private static final String TICKET_GRANTING_TICKET_PREFIX = "TGT";
+  private static final String PROXY_GRANTING_TICKET_PREFIX = "PGT";
+  /* Tickets added or changed on this node. */
+  private final ConcurrentHashMap<String, Ticket> hot = new ConcurrentHashMap<String, Ticket>();
+  /* Latest not yet written change per ticket id. */
+  private final ConcurrentHashMap<String, PendingWrite> pending = new ConcurrentHashMap<String, PendingWrite>();
+  /* Ticket ids in order of their first pending write. Bounded by maxPendingWrites. */
+  private volatile LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>(10000);
+  /* Ids changed again while being written. Guarded by flushLock. */
+  private final ArrayDeque<String> requeued = new ArrayDeque<String>();
+  private final Object flushLock = new Object();
+  @PersistenceContext
+  private EntityManager entityManager;
+  @NotNull
+  private TransactionTemplate writeTemplate;
+  @NotNull
+  private TransactionTemplate readTemplate;
+  private int batchSize = 50;
+  private int maxHotTickets = 100000;
+  private long flushInterval = 100;
+  private volatile ScheduledExecutorService writer;
+
+  /**
+   * Transaction manager of the ticket EntityManager, e.g. the transactionManager of ticketRegistry.xml.
+   */
+  public void setTransactionManager(final PlatformTransactionManager transactionManager) {
+    this.writeTemplate = new TransactionTemplate(transactionManager);
+    this.readTemplate = new TransactionTemplate(transactionManager);
+    this.readTemplate.setReadOnly(true);
+  }
+
+  /** Maximum number of writes per transaction. Default is 50. */
+  public void setBatchSize(final int batchSize) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batchSize must be positive");
+    }
+    this.batchSize = batchSize;
+  }
+
+  /** Maximum number of queued ticket writes before callers flush themselves. Default is 10000. */
+  public void setMaxPendingWrites(final int maxPendingWrites) {
+    if (maxPendingWrites <= 0) {
+      throw new IllegalArgumentException("maxPendingWrites must be positive");
+    }
+    if (this.writer != null) {
+      throw new IllegalStateException("maxPendingWrites can not be changed after the first write");
+    }
+    this.queue = new LinkedBlockingQueue<String>(maxPendingWrites);
+  }
+
+  /** Number of written tickets kept in the local map. Default is 100000. */
+  public void setMaxHotTickets(final int maxHotTickets) {
+    if (maxHotTickets < 0) {
+      throw new IllegalArgumentException("maxHotTickets must not be negative");
+    }
+    this.maxHotTickets = maxHotTickets;
+  }
+
+  /** Interval in milliseconds of the background flush. Default is 100 ms. */
+  public void setFlushInterval(final long flushInterval) {
+    if (flushInterval <= 0) {
+      throw new IllegalArgumentException("flushInterval must be positive");
+    }
+    this.flushInterval = flushInterval;
+  }
+
+  public void addTicket(final Ticket ticket) {
+    if (log.isDebugEnabled()) {
+      log.debug("Adding ticket " + ticket.getId());
+    }
+    this.hot.put(ticket.getId(), ticket);
+    enqueue(ticket.getId(), new PendingWrite(ticket, true));
+  }
+
+  public Ticket getTicket(final String ticketId) {
+    if (ticketId == null) {
+      return null;
+    }
+    Ticket ticket = this.hot.get(ticketId);
+    if (ticket == null) {
+      final PendingWrite write = this.pending.get(ticketId);
+      // null for a pending delete
+      ticket = write != null ? write.ticket : load(ticketId);
+    }
+    return getProxiedTicketInstance(ticket);
+  }
+
+  public boolean deleteTicket(final String ticketId) {
+    if (ticketId == null) {
+      return false;
+    }
+    final PendingWrite previous = this.pending.get(ticketId);
+    boolean exists = this.hot.containsKey(ticketId) || (previous != null && previous.ticket != null);
+    if (!exists && previous == null) {
+      exists = load(ticketId) != null;
+    }
+    // queued before the local removal, so concurrent reads do not fall back to the database
+    enqueue(ticketId, new PendingWrite(null, false));
+    this.hot.remove(ticketId);
+    if (log.isDebugEnabled()) {
+      log.debug("Deleting ticket " + ticketId);
+    }
+    return exists;
+  }
+
+  /**
+   * All tickets of the database and of this node. Flushes the queue first.
+   */
+  public Collection<Ticket> getTickets() {
+    flush();
+    final Map<String, Ticket> tickets = this.readTemplate.execute(new TransactionCallback<Map<String, Ticket>>() {
+      public Map<String, Ticket> doInTransaction(final TransactionStatus status) {
+        final Map<String, Ticket> stored = new HashMap<String, Ticket>();
+        for (Ticket ticket : entityManager.createQuery("select t from TicketGrantingTicketImpl t", TicketGrantingTicketImpl.class).getResultList()) {
+          stored.put(ticket.getId(), ticket);
+        }
+        for (Ticket ticket : entityManager.createQuery("select s from ServiceTicketImpl s", ServiceTicketImpl.class).getResultList()) {
+          stored.put(ticket.getId(), ticket);
+        }
+        return stored;
+      }
+    });
+    // local instances are more recent
+    tickets.putAll(this.hot);
+    return tickets.values();
+  }
+
+  /** Number of ticket granting tickets in the database. Flushes the queue first. */
+  public int sessionCount() {
+    return count("select count(t) from TicketGrantingTicketImpl t");
+  }
+
+  /** Number of service tickets in the database. Flushes the queue first. */
+  public int serviceTicketCount() {
+    return count("select count(s) from ServiceTicketImpl s");
+  }
+
+  /** Number of tickets with not yet written changes. */
+  public int getPendingWrites() {
+    return this.pending.size();
+  }
+
+  /** Number of tickets in the local map. */
+  public int getHotTickets() {
+    return this.hot.size();
+  }
+
+  /**
+   * Writes all queued changes.
+   *
+   * @return number of written changes
+   */
+  public int flush() {
+    synchronized (this.flushLock) {
+      int written = 0;
+      final List<String> ids = new ArrayList<String>(this.batchSize);
+      while (true) {
+        while (ids.size() < this.batchSize && !this.requeued.isEmpty()) {
+          ids.add(this.requeued.poll());
+        }
+        this.queue.drainTo(ids, this.batchSize - ids.size());
+        if (ids.isEmpty()) {
+          evictWritten();
+          return written;
+        }
+        final Map<String, PendingWrite> batch = new LinkedHashMap<String, PendingWrite>(ids.size() * 2);
+        for (String id : ids) {
+          final PendingWrite write = this.pending.get(id);
+          if (write != null) {
+            batch.put(id, write);
+          }
+        }
+        ids.clear();
+        written += write(batch);
+        for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+          // kept pending until written, so reads do not see the database state before the write
+          if (!this.pending.remove(entry.getKey(), entry.getValue())) {
+            // changed again while writing. The newer change has no queue slot of its own.
+            this.requeued.add(entry.getKey());
+            if (entry.getValue().insert) {
+              markInserted(entry.getKey());
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /* Removes written tickets from the local map until it holds maxHotTickets. Reads of removed tickets
+     go to the database. Tickets with a pending write stay, they are not in the database yet. */
+  private void evictWritten() {
+    if (this.hot.size() <= this.maxHotTickets) {
+      return;
+    }
+    int evicted = 0;
+    final Iterator<Map.Entry<String, Ticket>> it = this.hot.entrySet().iterator();
+    while (it.hasNext() && this.hot.size() > this.maxHotTickets) {
+      final Map.Entry<String, Ticket> entry = it.next();
+      if (!this.pending.containsKey(entry.getKey()) && this.hot.remove(entry.getKey(), entry.getValue())) {
+        evicted++;
+      }
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("Evicted " + evicted + " written tickets from the local map");
+    }
+  }
+
+  /**
+   * Stops the background writer and flushes the queue. Configure as destroy-method of the bean.
+   */
+  public void destroy() {
+    synchronized (this) {
+      if (this.writer != null) {
+        this.writer.shutdown();
+        this.writer = null;
+      }
+    }
+    final int written = flush();
+    if (written > 0) {
+      log.info("Wrote " + written + " pending ticket changes on shutdown");
+    }
+  }
+
+  @Override
+  protected void updateTicket(final Ticket ticket) {
+    this.hot.put(ticket.getId(), ticket);
+    enqueue(ticket.getId(), new PendingWrite(ticket, false));
+  }
+
+  /* Changes are reported by the ticket delegators. */
+  @Override
+  protected boolean needsCallback() {
+    return true;
+  }
+
+  private void enqueue(final String ticketId, final PendingWrite write) {
+    while (true) {
+      final PendingWrite previous = this.pending.get(ticketId);
+      if (previous == null) {
+        if (this.pending.putIfAbsent(ticketId, write) == null) {
+          break;
+        }
+      } else {
+        // an update of a not yet inserted ticket is still an insert. Merged before it is published, so flush
+        // either writes the previous change and finds this one new, or turns the merged insert into an update.
+        final PendingWrite merged = previous.insert && write.ticket != null && !write.insert
+            ? new PendingWrite(write.ticket, true) : write;
+        if (this.pending.replace(ticketId, previous, merged)) {
+          // coalesced into the queued write of the ticket
+          return;
+        }
+      }
+      // changed or written concurrently, retry
+    }
+    startWriter();
+    while (!this.queue.offer(ticketId)) {
+      // writer behind the callers. Throttle this thread to the database throughput.
+      flush();
+    }
+  }
+
+  /* the pending change of an inserted ticket must be merged. */
+  private void markInserted(final String ticketId) {
+    PendingWrite current;
+    while ((current = this.pending.get(ticketId)) != null && current.insert
+        && !this.pending.replace(ticketId, current, new PendingWrite(current.ticket, false))) {
+      // replaced concurrently, retry
+    }
+  }
+
+  /* writes the batch in one transaction. On failure, the writes are retried one by one. */
+  private int write(final Map<String, PendingWrite> batch) {
+    if (batch.isEmpty()) {
+      return 0;
+    }
+    try {
+      this.writeTemplate.execute(new TransactionCallbackWithoutResult() {
+        @Override
+        protected void doInTransactionWithoutResult(final TransactionStatus status) {
+          for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+            apply(entry.getKey(), entry.getValue());
+          }
+        }
+      });
+      if (log.isDebugEnabled()) {
+        log.debug("Wrote " + batch.size() + " ticket changes");
+      }
+      return batch.size();
+    } catch (RuntimeException e) {
+      log.warn("Writing " + batch.size() + " ticket changes failed, retrying them one by one", e);
+    }
+    int written = 0;
+    for (final Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+      try {
+        this.writeTemplate.execute(new TransactionCallbackWithoutResult() {
+          @Override
+          protected void doInTransactionWithoutResult(final TransactionStatus status) {
+            apply(entry.getKey(), entry.getValue());
+          }
+        });
+        written++;
+      } catch (RuntimeException e) {
+        log.error("Cannot write change of ticket " + entry.getKey() + ". The database state of the ticket is stale.", e);
+      }
+    }
+    return written;
+  }
+
+  private void apply(final String ticketId, final PendingWrite write) {
+    if (write.ticket == null) {
+      delete(ticketId);
+    } else if (write.insert) {
+      this.entityManager.persist(write.ticket);
+    } else {
+      // grantServiceTicket synchronizes on the ticket. Merge copies a consistent state.
+      synchronized (write.ticket) {
+        this.entityManager.merge(write.ticket);
+      }
+    }
+  }
+
+  /* deletes the ticket and the tickets granted by it, like the JpaTicketRegistry. */
+  private void delete(final String ticketId) {
+    if (!isTicketGrantingTicket(ticketId)) {
+      this.entityManager.createQuery("delete from ServiceTicketImpl s where s.id = :id")
+          .setParameter("id", ticketId).executeUpdate();
+      return;
+    }
+    final List<String> proxyGrantingTickets = this.entityManager
+        .createQuery("select t.id from TicketGrantingTicketImpl t where t.ticketGrantingTicket.id = :id", String.class)
+        .setParameter("id", ticketId).getResultList();
+    for (String proxyGrantingTicket : proxyGrantingTickets) {
+      delete(proxyGrantingTicket);
+    }
+    this.entityManager.createQuery("delete from ServiceTicketImpl s where s.ticketGrantingTicket.id = :id")
+        .setParameter("id", ticketId).executeUpdate();
+    this.entityManager.createQuery("delete from TicketGrantingTicketImpl t where t.id = :id")
+        .setParameter("id", ticketId).executeUpdate();
+  }
+
+  private Ticket load(final String ticketId) {
+    return this.readTemplate.execute(new TransactionCallback<Ticket>() {
+      public Ticket doInTransaction(final TransactionStatus status) {
+        if (isTicketGrantingTicket(ticketId)) {
+          return entityManager.find(TicketGrantingTicketImpl.class, ticketId);
+        }
+        return entityManager.find(ServiceTicketImpl.class, ticketId);
+      }
+    });
+  }
+
+  private int count(final String query) {
+    flush();
+    final Number count = this.readTemplate.execute(new TransactionCallback<Number>() {
+      public Number doInTransaction(final TransactionStatus status) {
+        return (Number) entityManager.createQuery(query).getSingleResult();
+      }
+    });
+    return count.intValue();
+  }
+
+  private static boolean isTicketGrantingTicket(final String ticketId) {
+    return ticketId.startsWith(TICKET_GRANTING_TICKET_PREFIX) || ticketId.startsWith(PROXY_GRANTING_TICKET_PREFIX);
+  }
+
+  /* lazily starts the background writer on the first write. */
+  private void startWriter() {
+    if (this.writer != null) {
+      return;
+    }
+    synchronized (this) {
+      if (this.writer != null) {
+        return;
+      }
+      this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          final Thread thread = new Thread(runnable, "WriteBehindTicketRegistry-writer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      this.writer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            flush();
+          } catch (RuntimeException e) {
+            // keep the writer scheduled
+            log.error("Flushing ticket changes failed", e);
+          }
+        }
+      }, this.flushInterval, this.flushInterval, MILLISECONDS);
+    }
+  }
+
+  /**
+   * Latest change of a ticket. A null ticket is a delete.
+   */
+  private static final class PendingWrite {
+    final Ticket ticket;
+    /* the ticket is not yet in the database */
+    final boolean insert;
+
+    PendingWrite(Ticket ticket, boolean insert) {
+      this.ticket = ticket;
+      this.insert = insert;
+    }
+  }
+}
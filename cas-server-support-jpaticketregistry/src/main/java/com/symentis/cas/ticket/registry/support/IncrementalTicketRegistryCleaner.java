@@ -0,0 +1,325 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ticket.registry.support;
+
+import org.jasig.cas.CentralAuthenticationService;
+import org.jasig.cas.ticket.AbstractTicket;
+import org.jasig.cas.ticket.registry.RegistryCleaner;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.jasig.cas.ticket.registry.support.LockingStrategy;
+import org.jasig.cas.ticket.registry.support.NoOpLockingStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+import javax.validation.constraints.NotNull;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ticket registry cleaner for the JPA ticket tables, replacing the DefaultTicketRegistryCleaner.
+ * <p/>
+ * The DefaultTicketRegistryCleaner loads all tickets of the registry to find the expired ones. This cleaner only
+ * selects candidates by indexed columns: service tickets unused for serviceTicketTimeToKill, ticket granting tickets
+ * unused for ticketGrantingTicketTimeToKill or older than ticketGrantingTicketMaxTimeToLive. Set them to the timeouts
+ * of the expiration policies. Candidates are checked by their expiration policy, so tickets with a longer policy,
+ * e.g. remember-me, are kept. The cost of a run depends on the number of expired tickets, not on the registry size.
+ * <p/>
+ * Candidates are read in chunks of chunkSize tickets, each in its own short read-only transaction, with chunkPause
+ * milliseconds between the chunks. A run removes at most maxRemovalsPerRun tickets, the rest is left to the next run.
+ * Expired ticket granting tickets are destroyed by the CentralAuthenticationService, so their users are logged out
+ * of their services. Service tickets are deleted from the ticket registry.
+ * <p/>
+ * The indexes TICKETGRANTINGTICKET(LAST_TIME_USED), TICKETGRANTINGTICKET(CREATION_TIME) and
+ * SERVICETICKET(LAST_TIME_USED) are created on the first run, if missing and a dataSource is set.
+ *
+ * @author Robert Oschwald
+ */
+public class IncrementalTicketRegistryCleaner implements RegistryCleaner {
+  private static final Logger log = LoggerFactory.getLogger(IncrementalTicketRegistryCleaner.class);
+  private static final String TICKET_GRANTING_TICKET = "TicketGrantingTicketImpl";
+  private static final String SERVICE_TICKET = "ServiceTicketImpl";
+  @NotNull
+  private final CentralAuthenticationService centralAuthenticationService;
+  @NotNull
+  private final TicketRegistry ticketRegistry;
+  @PersistenceContext
+  private EntityManager entityManager;
+  @NotNull
+  private TransactionTemplate readTemplate;
+  @NotNull
+  private LockingStrategy lock = new NoOpLockingStrategy();
+  private DataSource dataSource;
+  private int chunkSize = 100;
+  private int maxRemovalsPerRun = 5000;
+  private long chunkPause = 0;
+  private long serviceTicketTimeToKill = TimeUnit.SECONDS.toMillis(10);
+  private long ticketGrantingTicketTimeToKill = TimeUnit.HOURS.toMillis(2);
+  private long ticketGrantingTicketMaxTimeToLive = TimeUnit.HOURS.toMillis(8);
+  private volatile boolean indexesChecked;
+
+  public IncrementalTicketRegistryCleaner(final CentralAuthenticationService centralAuthenticationService,
+                                          final TicketRegistry ticketRegistry) {
+    this.centralAuthenticationService = centralAuthenticationService;
+    this.ticketRegistry = ticketRegistry;
+  }
+
+  /**
+   * Transaction manager of the ticket EntityManager. The chunks are read in new transactions of their own.
+   */
+  public void setTransactionManager(final PlatformTransactionManager transactionManager) {
+    this.readTemplate = new TransactionTemplate(transactionManager);
+    this.readTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    this.readTemplate.setReadOnly(true);
+  }
+
+  /** Lock of the cleaner, so only one CAS node cleans at a time. Default is no lock. */
+  public void setLock(final LockingStrategy lock) {
+    this.lock = lock;
+  }
+
+  /** DataSource of the ticket tables, to create the expiry indexes. If not set, no indexes are created. */
+  public void setDataSource(final DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /** Number of candidates read per transaction. Default is 100. */
+  public void setChunkSize(final int chunkSize) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize must be positive");
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  /** Maximum number of tickets removed per run. Default is 5000. */
+  public void setMaxRemovalsPerRun(final int maxRemovalsPerRun) {
+    if (maxRemovalsPerRun <= 0) {
+      throw new IllegalArgumentException("maxRemovalsPerRun must be positive");
+    }
+    this.maxRemovalsPerRun = maxRemovalsPerRun;
+  }
+
+  /** Pause in milliseconds between two chunks, limiting the database load of a run. Default is 0. */
+  public void setChunkPause(final long chunkPause) {
+    this.chunkPause = chunkPause;
+  }
+
+  /** Idle timeout of service tickets in seconds. Default is 10 seconds. */
+  public void setServiceTicketTimeToKill(final long seconds) {
+    this.serviceTicketTimeToKill = TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  /** Idle timeout of ticket granting tickets in seconds. Default is 2 hours. */
+  public void setTicketGrantingTicketTimeToKill(final long seconds) {
+    this.ticketGrantingTicketTimeToKill = TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  /** Maximum lifetime of ticket granting tickets in seconds. Default is 8 hours. */
+  public void setTicketGrantingTicketMaxTimeToLive(final long seconds) {
+    this.ticketGrantingTicketMaxTimeToLive = TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  public void clean() {
+    if (!this.lock.acquire()) {
+      log.info("Ticket registry cleanup skipped, the cleaner lock is held by another node");
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    int removed = 0;
+    try {
+      if (!this.indexesChecked) {
+        createIndexes();
+      }
+      // ticket granting tickets first, as their destruction removes their service tickets
+      removed += clean(TICKET_GRANTING_TICKET, "creationTime", now - this.ticketGrantingTicketMaxTimeToLive, this.maxRemovalsPerRun);
+      removed += clean(TICKET_GRANTING_TICKET, "lastTimeUsed", now - this.ticketGrantingTicketTimeToKill, this.maxRemovalsPerRun - removed);
+      removed += clean(SERVICE_TICKET, "lastTimeUsed", now - this.serviceTicketTimeToKill, this.maxRemovalsPerRun - removed);
+    } finally {
+      this.lock.release();
+    }
+    if (removed >= this.maxRemovalsPerRun) {
+      log.info("Removed " + removed + " expired tickets in " + (System.currentTimeMillis() - now)
+          + " ms. Limit per run reached, the remaining expired tickets are removed by the next runs.");
+    } else if (removed > 0) {
+      log.info("Removed " + removed + " expired tickets in " + (System.currentTimeMillis() - now) + " ms");
+    }
+  }
+
+  /* removes up to limit expired tickets with the column before the cutoff, in order of the column. */
+  private int clean(final String entity, final String column, final long cutoff, final int limit) {
+    int removed = 0;
+    Chunk chunk = new Chunk(Long.MIN_VALUE, "");
+    while (removed < limit) {
+      chunk = readChunk(entity, column, cutoff, chunk);
+      for (String ticketId : chunk.expired) {
+        if (removed >= limit) {
+          break;
+        }
+        if (remove(entity, ticketId)) {
+          removed++;
+        }
+      }
+      if (chunk.size < this.chunkSize) {
+        break;
+      }
+      pause();
+    }
+    return removed;
+  }
+
+  /* next chunk of candidates after the previous one. Keyset paging, so kept tickets are not read again. */
+  private Chunk readChunk(final String entity, final String column, final long cutoff, final Chunk previous) {
+    return this.readTemplate.execute(new TransactionCallback<Chunk>() {
+      public Chunk doInTransaction(final TransactionStatus status) {
+        final List<AbstractTicket> candidates = entityManager.createQuery("select t from " + entity + " t"
+            + " where t." + column + " < :cutoff"
+            + " and (t." + column + " > :lastValue or (t." + column + " = :lastValue and t.id > :lastId))"
+            + " order by t." + column + ", t.id", AbstractTicket.class)
+            .setParameter("cutoff", cutoff)
+            .setParameter("lastValue", previous.lastValue)
+            .setParameter("lastId", previous.lastId)
+            .setMaxResults(chunkSize)
+            .getResultList();
+        if (candidates.isEmpty()) {
+          return new Chunk(previous.lastValue, previous.lastId);
+        }
+        final AbstractTicket last = candidates.get(candidates.size() - 1);
+        final Chunk chunk = new Chunk("creationTime".equals(column) ? last.getCreationTime() : last.getLastTimeUsed(), last.getId());
+        chunk.size = candidates.size();
+        for (AbstractTicket candidate : candidates) {
+          if (candidate.isExpired()) {
+            chunk.expired.add(candidate.getId());
+          }
+        }
+        return chunk;
+      }
+    });
+  }
+
+  private boolean remove(final String entity, final String ticketId) {
+    try {
+      if (TICKET_GRANTING_TICKET.equals(entity)) {
+        if (log.isDebugEnabled()) {
+          log.debug("Cleaning up expired ticket-granting ticket " + ticketId);
+        }
+        this.centralAuthenticationService.destroyTicketGrantingTicket(ticketId);
+      } else {
+        if (log.isDebugEnabled()) {
+          log.debug("Cleaning up expired service ticket " + ticketId);
+        }
+        this.ticketRegistry.deleteTicket(ticketId);
+      }
+      return true;
+    } catch (RuntimeException e) {
+      // continue with the next ticket, this one is a candidate of the next run again
+      log.warn("Cannot remove expired ticket " + ticketId, e);
+      return false;
+    }
+  }
+
+  private void pause() {
+    if (this.chunkPause <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(this.chunkPause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /* creates the expiry indexes, if missing. */
+  private synchronized void createIndexes() {
+    if (this.indexesChecked || this.dataSource == null) {
+      this.indexesChecked = true;
+      return;
+    }
+    Connection connection = null;
+    try {
+      connection = this.dataSource.getConnection();
+      createIndex(connection, "TICKETGRANTINGTICKET", "LAST_TIME_USED", "TGT_LAST_TIME_USED_IDX");
+      createIndex(connection, "TICKETGRANTINGTICKET", "CREATION_TIME", "TGT_CREATION_TIME_IDX");
+      createIndex(connection, "SERVICETICKET", "LAST_TIME_USED", "ST_LAST_TIME_USED_IDX");
+      this.indexesChecked = true;
+    } catch (SQLException e) {
+      // the cleaner works without the indexes, only slower. Retried on the next run.
+      log.warn("Cannot create the expiry indexes of the ticket tables", e);
+    } finally {
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (SQLException e) {
+          log.debug("Cannot close Connection", e);
+        }
+      }
+    }
+  }
+
+  private void createIndex(final Connection connection, final String table, final String column, final String index) throws SQLException {
+    final DatabaseMetaData metaData = connection.getMetaData();
+    for (String name : new String[]{table, table.toLowerCase()}) {
+      final ResultSet indexes = metaData.getIndexInfo(null, null, name, false, true);
+      try {
+        while (indexes.next()) {
+          if (indexes.getShort("ORDINAL_POSITION") == 1 && column.equalsIgnoreCase(indexes.getString("COLUMN_NAME"))) {
+            return;
+          }
+        }
+      } finally {
+        indexes.close();
+      }
+    }
+    final Statement statement = connection.createStatement();
+    try {
+      statement.executeUpdate("CREATE INDEX " + index + " ON " + table + " (" + column + ")");
+      log.info("Created index " + index + " on " + table + "(" + column + ")");
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Candidates of a chunk, and the position of its last candidate.
+   */
+  private static final class Chunk {
+    final long lastValue;
+    final String lastId;
+    final List<String> expired = new ArrayList<String>();
+    int size;
+
+    Chunk(long lastValue, String lastId) {
+      this.lastValue = lastValue;
+      this.lastId = lastId;
+    }
+  }
+}
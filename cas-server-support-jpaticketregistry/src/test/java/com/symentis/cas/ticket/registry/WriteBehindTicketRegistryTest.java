@@ -0,0 +1,322 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.symentis.cas.ticket.registry;
+
+import org.jasig.cas.authentication.AcceptUsersAuthenticationHandler;
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.AuthenticationBuilder;
+import org.jasig.cas.authentication.BasicCredentialMetaData;
+import org.jasig.cas.authentication.DefaultHandlerResult;
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.DefaultPrincipalFactory;
+import org.jasig.cas.authentication.principal.Principal;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * WriteBehindTicketRegistry on the JPA ticket tables in an in-memory HSQLDB.
+ * The background writer is not due during a test, the tests flush themselves.
+ *
+ * @author Robert Oschwald
+ */
+public class WriteBehindTicketRegistryTest {
+  private static final Service SERVICE = new SimpleWebApplicationServiceImpl("https://app.example.org/login/cas");
+  private final List<WriteBehindTicketRegistry> registries = new ArrayList<WriteBehindTicketRegistry>();
+  private ClassPathXmlApplicationContext context;
+  private PlatformTransactionManager transactionManager;
+  private Authentication authentication;
+
+  @Before
+  public void setUp() {
+    this.context = new ClassPathXmlApplicationContext("writeBehindTicketRegistryTest.xml");
+    this.transactionManager = this.context.getBean("transactionManager", PlatformTransactionManager.class);
+    this.authentication = newAuthentication();
+  }
+
+  @After
+  public void tearDown() {
+    for (WriteBehindTicketRegistry registry : this.registries) {
+      registry.destroy();
+    }
+    this.context.close();
+  }
+
+  @Test
+  public void coalescesChangesOfATicket() {
+    final WriteBehindTicketRegistry registry = newRegistry(this.transactionManager);
+    registry.addTicket(newTicketGrantingTicket("TGT-1"));
+    final TicketGrantingTicket tgt = (TicketGrantingTicket) registry.getTicket("TGT-1");
+    registry.addTicket(tgt.grantServiceTicket("ST-1", SERVICE, new NeverExpiresExpirationPolicy(), true));
+    registry.addTicket(tgt.grantServiceTicket("ST-2", SERVICE, new NeverExpiresExpirationPolicy(), false));
+    assertTrue(registry.deleteTicket("ST-2"));
+    // add and two updates of TGT-1, add of ST-1, add and delete of ST-2
+    assertEquals(3, registry.getPendingWrites());
+    assertNull(stored("TGT-1"));
+
+    assertEquals(3, registry.flush());
+    assertEquals(0, registry.getPendingWrites());
+    assertEquals(1, registry.sessionCount());
+    assertEquals(1, registry.serviceTicketCount());
+    assertEquals(2, stored("TGT-1").getCountOfUses());
+    assertNotNull(stored("ST-1"));
+    assertNull(stored("ST-2"));
+
+    // update and delete of a written ticket
+    tgt.grantServiceTicket("ST-3", SERVICE, new NeverExpiresExpirationPolicy(), false);
+    tgt.grantServiceTicket("ST-4", SERVICE, new NeverExpiresExpirationPolicy(), false);
+    assertTrue(registry.deleteTicket("ST-1"));
+    assertEquals(2, registry.flush());
+    assertEquals(4, stored("TGT-1").getCountOfUses());
+    assertNull(stored("ST-1"));
+  }
+
+  @Test
+  public void mergesAnUpdateDuringTheInsert() {
+    final CommitHook hook = new CommitHook(this.transactionManager);
+    final WriteBehindTicketRegistry registry = newRegistry(hook);
+    registry.addTicket(newTicketGrantingTicket("TGT-1"));
+    // validation of a service ticket while the add of its ticket granting ticket is written
+    hook.beforeNextCommit = new Runnable() {
+      public void run() {
+        ((TicketGrantingTicket) registry.getTicket("TGT-1"))
+            .grantServiceTicket("ST-1", SERVICE, new NeverExpiresExpirationPolicy(), true);
+      }
+    };
+
+    // the insert, then the requeued change as update. A second insert would fail on the primary key.
+    assertEquals(2, registry.flush());
+    assertNull(hook.beforeNextCommit);
+    assertEquals(0, registry.getPendingWrites());
+    assertEquals(1, stored("TGT-1").getCountOfUses());
+  }
+
+  @Test
+  public void concurrentUpdatesDuringFlushesAreWrittenOnce() throws Exception {
+    final CommitHook hook = new CommitHook(this.transactionManager);
+    final WriteBehindTicketRegistry registry = newRegistry(hook);
+    final int threads = 4;
+    final int ticketsPerThread = 200;
+    final AtomicBoolean stop = new AtomicBoolean();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+    try {
+      // the background writer of the registry, flushing while the tickets are added and used
+      final Future<?> writer = executor.submit(new Callable<Void>() {
+        public Void call() {
+          while (!stop.get()) {
+            registry.flush();
+          }
+          return null;
+        }
+      });
+      final CountDownLatch start = new CountDownLatch(1);
+      final List<Future<?>> logins = new ArrayList<Future<?>>();
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+        logins.add(executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            start.await();
+            for (int i = 0; i < ticketsPerThread; i++) {
+              // login and first service ticket, the update races with the write of the insert
+              registry.addTicket(newTicketGrantingTicket("TGT-" + thread + "-" + i));
+              ((TicketGrantingTicket) registry.getTicket("TGT-" + thread + "-" + i))
+                  .grantServiceTicket("ST-" + thread + "-" + i, SERVICE, new NeverExpiresExpirationPolicy(), true);
+            }
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<?> login : logins) {
+        login.get(60, TimeUnit.SECONDS);
+      }
+      stop.set(true);
+      writer.get(60, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+    registry.flush();
+
+    // a second insert of a written ticket fails on the primary key and rolls back
+    assertEquals(0, hook.rollbacks.get());
+    assertEquals(0, registry.getPendingWrites());
+    assertEquals(threads * ticketsPerThread, registry.sessionCount());
+    for (int t = 0; t < threads; t++) {
+      for (int i = 0; i < ticketsPerThread; i += 20) {
+        assertEquals(1, stored("TGT-" + t + "-" + i).getCountOfUses());
+      }
+    }
+  }
+
+  @Test
+  public void deletesTheTicketsGrantedByATicketGrantingTicket() {
+    final WriteBehindTicketRegistry registry = newRegistry(this.transactionManager);
+    final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1");
+    registry.addTicket(tgt);
+    final ServiceTicket st = tgt.grantServiceTicket("ST-1", SERVICE, new NeverExpiresExpirationPolicy(), true);
+    registry.addTicket(st);
+    final TicketGrantingTicket pgt = st.grantProxyGrantingTicket("PGT-1", this.authentication, new NeverExpiresExpirationPolicy());
+    registry.addTicket(pgt);
+    registry.addTicket(pgt.grantServiceTicket("ST-2", SERVICE, new NeverExpiresExpirationPolicy(), false));
+    registry.addTicket(newTicketGrantingTicket("TGT-2"));
+    registry.flush();
+    assertEquals(3, registry.sessionCount());
+    assertEquals(2, registry.serviceTicketCount());
+
+    assertTrue(registry.deleteTicket("TGT-1"));
+    assertNull(registry.getTicket("TGT-1"));
+    registry.flush();
+    assertEquals(1, registry.sessionCount());
+    assertEquals(0, registry.serviceTicketCount());
+    assertNull(stored("TGT-1"));
+    assertNull(stored("PGT-1"));
+    assertNull(stored("ST-1"));
+    assertNull(stored("ST-2"));
+    assertNotNull(stored("TGT-2"));
+    assertFalse(registry.deleteTicket("TGT-1"));
+  }
+
+  @Test
+  public void callersFlushAFullQueue() {
+    final WriteBehindTicketRegistry registry = newRegistry(this.transactionManager);
+    registry.setMaxPendingWrites(5);
+    final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1");
+    registry.addTicket(tgt);
+    for (int i = 1; i <= 11; i++) {
+      registry.addTicket(tgt.grantServiceTicket("ST-" + i, SERVICE, new NeverExpiresExpirationPolicy(), false));
+      assertTrue(registry.getPendingWrites() <= 5);
+    }
+    // the adds of ST-5 and ST-10 found the queue full and wrote it
+    assertEquals(2, registry.getPendingWrites());
+    assertNotNull(stored("TGT-1"));
+    assertNotNull(stored("ST-9"));
+    assertNull(stored("ST-10"));
+
+    assertEquals(2, registry.flush());
+    assertEquals(11, registry.serviceTicketCount());
+  }
+
+  @Test
+  public void evictsWrittenTicketsAboveMaxHotTickets() {
+    final WriteBehindTicketRegistry registry = newRegistry(this.transactionManager);
+    registry.setMaxHotTickets(2);
+    final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1");
+    registry.addTicket(tgt);
+    for (int i = 1; i <= 4; i++) {
+      registry.addTicket(tgt.grantServiceTicket("ST-" + i, SERVICE, new NeverExpiresExpirationPolicy(), false));
+    }
+    assertEquals(5, registry.getHotTickets());
+    registry.flush();
+    assertEquals(2, registry.getHotTickets());
+    assertNotNull(registry.getTicket("TGT-1"));
+    for (int i = 1; i <= 4; i++) {
+      assertNotNull(registry.getTicket("ST-" + i));
+    }
+  }
+
+  /* a registry on the test database, flushed by the test only. */
+  private WriteBehindTicketRegistry newRegistry(final PlatformTransactionManager transactionManager) {
+    final WriteBehindTicketRegistry registry = new WriteBehindTicketRegistry();
+    registry.setTransactionManager(transactionManager);
+    registry.setFlushInterval(TimeUnit.HOURS.toMillis(1));
+    this.context.getAutowireCapableBeanFactory().autowireBean(registry);
+    this.registries.add(registry);
+    return registry;
+  }
+
+  /* the ticket in the database, read by a registry without local tickets. */
+  private Ticket stored(final String ticketId) {
+    return newRegistry(this.transactionManager).getTicket(ticketId);
+  }
+
+  private TicketGrantingTicket newTicketGrantingTicket(final String id) {
+    return new TicketGrantingTicketImpl(id, this.authentication, new NeverExpiresExpirationPolicy());
+  }
+
+  private static Authentication newAuthentication() {
+    final UsernamePasswordCredential credential = new UsernamePasswordCredential("casuser", "Mellon");
+    final AcceptUsersAuthenticationHandler handler = new AcceptUsersAuthenticationHandler();
+    final Principal principal = new DefaultPrincipalFactory().createPrincipal("casuser");
+    return new AuthenticationBuilder(principal)
+        .addCredential(new BasicCredentialMetaData(credential))
+        .addSuccess(handler.getName(), new DefaultHandlerResult(handler, new BasicCredentialMetaData(credential), principal))
+        .build();
+  }
+
+  /**
+   * Runs a task once before the next commit, i.e. while the registry is writing. Counts the rollbacks.
+   */
+  private static class CommitHook implements PlatformTransactionManager {
+    private final PlatformTransactionManager delegate;
+    private volatile Runnable beforeNextCommit;
+    private final AtomicInteger rollbacks = new AtomicInteger();
+
+    CommitHook(final PlatformTransactionManager delegate) {
+      this.delegate = delegate;
+    }
+
+    public TransactionStatus getTransaction(final TransactionDefinition definition) {
+      return this.delegate.getTransaction(definition);
+    }
+
+    public void commit(final TransactionStatus status) {
+      final Runnable task = this.beforeNextCommit;
+      this.beforeNextCommit = null;
+      if (task != null) {
+        task.run();
+      }
+      this.delegate.commit(status);
+    }
+
+    public void rollback(final TransactionStatus status) {
+      this.rollbacks.incrementAndGet();
+      this.delegate.rollback(status);
+    }
+  }
+}
@@ -0,0 +1,661 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ticket.registry;
+
+import com.symentis.cas.ticket.registry.replication.ReplicationEvent;
+import com.symentis.cas.ticket.registry.replication.ReplicationListener;
+import com.symentis.cas.ticket.registry.replication.ReplicationTransport;
+import com.symentis.cas.ticket.registry.support.JavaTicketSerializer;
+import com.symentis.cas.ticket.registry.support.TicketSerializer;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketState;
+import org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * In-memory ticket registry for one or several CAS nodes.
+ * <p/>
+ * Tickets are held in shardCount shards, each a HashMap with its own lock and a deadline ordered expiry queue.
+ * The deadline of a ticket is derived from the timeouts of the expiration policies, see the timeToKill properties.
+ * A background sweeper removes the expired tickets of each shard from its queue head, without scanning the shard.
+ * Tickets still valid by their expiration policy (e.g. remember-me) are rescheduled. Expired tickets are removed
+ * without single logout, like by the MemCacheTicketRegistry.
+ * <p/>
+ * With a transport, each add, update and delete is appended to the replication log of the node, which is sent to
+ * the other nodes in batches every replicationInterval. So every node holds all tickets, and a node loss does not log
+ * out its users. A restarted node receives the current tickets from another node on init. Concurrent changes of the
+ * same ticket on several nodes are resolved by their timestamp, the last change wins. Deletes are kept as tombstones
+ * for tombstoneTtl, so late updates do not revive a ticket. Tickets are serialized by the serializer, default
+ * is Java serialization.
+ * <p/>
+ * Replicated tickets name the classes to instantiate. The serializers only read the classes of their
+ * TicketClassFilter, the CAS ticket classes and JDK values. Still, the transport should only deliver events of
+ * the CAS nodes, e.g. on a private network with authenticated connections, as any node can change any ticket.
+ * <p/>
+ * The replication log is bounded by maxLogSize. If it is full, the calling thread sends the log itself.
+ * <p/>
+ * Configuration:
+ * <p>
+ *   <bean id="ticketRegistry" class="com.symentis.cas.ticket.registry.ShardedTicketRegistry"
+ *         c:shardCount="32"
+ *         p:nodeId="${host.name}"
+ *         p:transport-ref="replicationTransport"
+ *         init-method="init" destroy-method="destroy"/>
+ * </p>
+ *
+ * @author Robert Oschwald
+ */
+public class ShardedTicketRegistry extends AbstractDistributedTicketRegistry implements ReplicationListener {
+  private static final Logger log = LoggerFactory.getLogger(ShardedTicketRegistry.class);
+  private final Shard[] shards;
+  private final int shardMask;
+  private String nodeId = UUID.randomUUID().toString();
+  private ReplicationTransport transport;
+  private TicketSerializer serializer = new JavaTicketSerializer();
+  /* Changes of this node not yet sent. Bounded by maxLogSize. */
+  private volatile LinkedBlockingQueue<LogEntry> replicationLog = new LinkedBlockingQueue<LogEntry>(100000);
+  /* Sequence of the last sent event. Guarded by replicationLock. */
+  private long sequence = 0;
+  private final Object replicationLock = new Object();
+  /* Last received sequence per origin node. */
+  private final ConcurrentHashMap<String, Long> receivedSequences = new ConcurrentHashMap<String, Long>();
+  private int replicationBatchSize = 500;
+  private long replicationInterval = 20;
+  private long sweepInterval = TimeUnit.SECONDS.toMillis(10);
+  private long tombstoneTtl = TimeUnit.MINUTES.toMillis(1);
+  private long serviceTicketTimeToKill = TimeUnit.SECONDS.toMillis(10);
+  private long ticketGrantingTicketTimeToKill = TimeUnit.HOURS.toMillis(2);
+  private long ticketGrantingTicketMaxTimeToLive = TimeUnit.HOURS.toMillis(8);
+  private ScheduledExecutorService executor;
+
+  /**
+   * Creates a registry with 16 shards.
+   */
+  public ShardedTicketRegistry() {
+    this(16);
+  }
+
+  /**
+   * @param shardCount number of shards, rounded up to a power of two. More shards reduce the lock contention.
+   */
+  public ShardedTicketRegistry(final int shardCount) {
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("shardCount must be positive");
+    }
+    final int count = Integer.highestOneBit(shardCount) == shardCount ? shardCount : Integer.highestOneBit(shardCount) << 1;
+    this.shards = new Shard[count];
+    for (int i = 0; i < count; i++) {
+      this.shards[i] = new Shard();
+    }
+    this.shardMask = count - 1;
+  }
+
+  /** Unique id of this node in the cluster, e.g. the host.name. Default is a random id. */
+  public void setNodeId(final String nodeId) {
+    this.nodeId = nodeId;
+  }
+
+  /**
+   * Transport of the replication log. If not set, the registry is local to the node.
+   * The transport should only accept events of the CAS nodes, as the received tickets replace the local ones.
+   */
+  public void setTransport(final ReplicationTransport transport) {
+    this.transport = transport;
+  }
+
+  /** Serializer of the replicated tickets. Must be the same on all nodes. Default is Java serialization. */
+  public void setSerializer(final TicketSerializer serializer) {
+    this.serializer = serializer;
+  }
+
+  /** Maximum number of not yet sent changes. Default is 100000. */
+  public void setMaxLogSize(final int maxLogSize) {
+    if (maxLogSize <= 0) {
+      throw new IllegalArgumentException("maxLogSize must be positive");
+    }
+    this.replicationLog = new LinkedBlockingQueue<LogEntry>(maxLogSize);
+  }
+
+  /** Maximum number of events per published batch. Default is 500. */
+  public void setReplicationBatchSize(final int replicationBatchSize) {
+    if (replicationBatchSize <= 0) {
+      throw new IllegalArgumentException("replicationBatchSize must be positive");
+    }
+    this.replicationBatchSize = replicationBatchSize;
+  }
+
+  /** Interval in milliseconds of sending the replication log. Default is 20 ms. */
+  public void setReplicationInterval(final long replicationInterval) {
+    this.replicationInterval = replicationInterval;
+  }
+
+  /** Interval in milliseconds of removing expired tickets. Default is 10 seconds. */
+  public void setSweepInterval(final long sweepInterval) {
+    this.sweepInterval = sweepInterval;
+  }
+
+  /** Time in milliseconds a deleted ticket id is remembered. Should exceed the replication delay. Default is 1 minute. */
+  public void setTombstoneTtl(final long tombstoneTtl) {
+    this.tombstoneTtl = tombstoneTtl;
+  }
+
+  /** Idle timeout of service tickets in seconds. Default is 10 seconds. */
+  public void setServiceTicketTimeToKill(final long seconds) {
+    this.serviceTicketTimeToKill = TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  /** Idle timeout of ticket granting tickets in seconds. Default is 2 hours. */
+  public void setTicketGrantingTicketTimeToKill(final long seconds) {
+    this.ticketGrantingTicketTimeToKill = TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  /** Maximum lifetime of ticket granting tickets in seconds. Default is 8 hours. */
+  public void setTicketGrantingTicketMaxTimeToLive(final long seconds) {
+    this.ticketGrantingTicketMaxTimeToLive = TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  /**
+   * Joins the transport and starts the sweeper and the replication. Configure as init-method of the bean.
+   */
+  public synchronized void init() {
+    if (this.executor != null) {
+      return;
+    }
+    this.executor = Executors.newScheduledThreadPool(this.transport == null ? 1 : 2, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, "ShardedTicketRegistry-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          sweep(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+          log.warn("Removing expired tickets failed", e);
+        }
+      }
+    }, this.sweepInterval, this.sweepInterval, MILLISECONDS);
+    if (this.transport != null) {
+      this.transport.join(this.nodeId, this);
+      log.info("Node " + this.nodeId + " joined the ticket replication with " + size() + " tickets");
+      this.executor.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            replicate();
+          } catch (RuntimeException e) {
+            log.error("Replicating tickets failed", e);
+          }
+        }
+      }, this.replicationInterval, this.replicationInterval, MILLISECONDS);
+    }
+  }
+
+  /**
+   * Sends the replication log, leaves the transport and stops the background threads.
+   * Configure as destroy-method of the bean.
+   */
+  public synchronized void destroy() {
+    if (this.executor == null) {
+      return;
+    }
+    this.executor.shutdownNow();
+    this.executor = null;
+    if (this.transport != null) {
+      replicate();
+      this.transport.leave(this.nodeId);
+    }
+  }
+
+  public void addTicket(final Ticket ticket) {
+    if (log.isDebugEnabled()) {
+      log.debug("Adding ticket " + ticket.getId());
+    }
+    put(ticket);
+  }
+
+  public Ticket getTicket(final String ticketId) {
+    if (ticketId == null) {
+      return null;
+    }
+    final Shard shard = shard(ticketId);
+    final Ticket ticket;
+    synchronized (shard) {
+      final Entry entry = shard.tickets.get(ticketId);
+      ticket = entry == null ? null : entry.ticket;
+    }
+    return getProxiedTicketInstance(ticket);
+  }
+
+  public boolean deleteTicket(final String ticketId) {
+    if (ticketId == null) {
+      return false;
+    }
+    final Shard shard = shard(ticketId);
+    final boolean exists;
+    final long timestamp;
+    synchronized (shard) {
+      final Entry entry = shard.tickets.get(ticketId);
+      exists = entry != null && entry.ticket != null;
+      timestamp = nextTimestamp(entry);
+      // a tombstone, even for unknown tickets, as other nodes may hold the ticket
+      shard.put(ticketId, entry, null, timestamp, this.nodeId, System.currentTimeMillis() + this.tombstoneTtl);
+    }
+    append(new LogEntry(ReplicationEvent.Type.DELETE, ticketId, null, timestamp));
+    if (log.isDebugEnabled()) {
+      log.debug("Deleting ticket " + ticketId);
+    }
+    return exists;
+  }
+
+  public Collection<Ticket> getTickets() {
+    final List<Ticket> tickets = new ArrayList<Ticket>();
+    for (Shard shard : this.shards) {
+      synchronized (shard) {
+        for (Entry entry : shard.tickets.values()) {
+          if (entry.ticket != null) {
+            tickets.add(entry.ticket);
+          }
+        }
+      }
+    }
+    return tickets;
+  }
+
+  public int sessionCount() {
+    return count(TicketGrantingTicket.class);
+  }
+
+  public int serviceTicketCount() {
+    return count(ServiceTicket.class);
+  }
+
+  /** Number of tickets, including tombstones of deleted tickets. */
+  public int size() {
+    int size = 0;
+    for (Shard shard : this.shards) {
+      synchronized (shard) {
+        size += shard.tickets.size();
+      }
+    }
+    return size;
+  }
+
+  /** Number of changes not yet sent to the other nodes. */
+  public int getReplicationBacklog() {
+    return this.replicationLog.size();
+  }
+
+  public void onEvents(final List<ReplicationEvent> events) {
+    for (ReplicationEvent event : events) {
+      if (event.getSequence() != ReplicationEvent.UNSEQUENCED) {
+        if (this.nodeId.equals(event.getOrigin())) {
+          // own event, echoed by the transport
+          continue;
+        }
+        checkSequence(event);
+      }
+      apply(event);
+    }
+  }
+
+  public List<ReplicationEvent> snapshot() {
+    final List<Entry> entries = new ArrayList<Entry>();
+    final List<String> ids = new ArrayList<String>();
+    for (Shard shard : this.shards) {
+      synchronized (shard) {
+        for (Map.Entry<String, Entry> entry : shard.tickets.entrySet()) {
+          ids.add(entry.getKey());
+          entries.add(entry.getValue().copy());
+        }
+      }
+    }
+    final List<ReplicationEvent> events = new ArrayList<ReplicationEvent>(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      final Entry entry = entries.get(i);
+      final ReplicationEvent event = toEvent(entry.origin, ReplicationEvent.UNSEQUENCED,
+          entry.ticket == null ? ReplicationEvent.Type.DELETE : ReplicationEvent.Type.PUT, ids.get(i), entry.ticket, entry.timestamp);
+      if (event != null) {
+        events.add(event);
+      }
+    }
+    return events;
+  }
+
+  /**
+   * Sends the replication log to the other nodes.
+   *
+   * @return number of sent events
+   */
+  public int replicate() {
+    if (this.transport == null) {
+      return 0;
+    }
+    synchronized (this.replicationLock) {
+      int sent = 0;
+      final List<LogEntry> entries = new ArrayList<LogEntry>(this.replicationBatchSize);
+      while (this.replicationLog.drainTo(entries, this.replicationBatchSize) > 0) {
+        final List<ReplicationEvent> events = new ArrayList<ReplicationEvent>(entries.size());
+        for (LogEntry entry : entries) {
+          final ReplicationEvent event = toEvent(this.nodeId, this.sequence + 1, entry.type, entry.ticketId, entry.ticket, entry.timestamp);
+          if (event != null) {
+            this.sequence++;
+            events.add(event);
+          }
+        }
+        entries.clear();
+        try {
+          this.transport.publish(this.nodeId, events);
+          sent += events.size();
+        } catch (RuntimeException e) {
+          log.error("Cannot replicate " + events.size() + " ticket changes", e);
+        }
+      }
+      return sent;
+    }
+  }
+
+  /**
+   * Removes the expired tickets and tombstones.
+   *
+   * @return number of removed tickets
+   */
+  public int sweep(final long now) {
+    int removed = 0;
+    for (Shard shard : this.shards) {
+      synchronized (shard) {
+        removed += sweep(shard, now);
+      }
+    }
+    if (removed > 0 && log.isDebugEnabled()) {
+      log.debug("Removed " + removed + " expired tickets");
+    }
+    return removed;
+  }
+
+  @Override
+  protected void updateTicket(final Ticket ticket) {
+    put(ticket);
+  }
+
+  /* Changes are reported by the ticket delegators. */
+  @Override
+  protected boolean needsCallback() {
+    return true;
+  }
+
+  private void put(final Ticket ticket) {
+    final Shard shard = shard(ticket.getId());
+    final long timestamp;
+    synchronized (shard) {
+      final Entry entry = shard.tickets.get(ticket.getId());
+      timestamp = nextTimestamp(entry);
+      shard.put(ticket.getId(), entry, ticket, timestamp, this.nodeId, deadline(ticket));
+    }
+    append(new LogEntry(ReplicationEvent.Type.PUT, ticket.getId(), ticket, timestamp));
+  }
+
+  /* applies the change of another node, unless the local state is newer. */
+  private void apply(final ReplicationEvent event) {
+    Ticket ticket = null;
+    if (event.getType() == ReplicationEvent.Type.PUT) {
+      try {
+        ticket = this.serializer.deserialize(event.getTicket());
+      } catch (RuntimeException e) {
+        log.warn("Cannot apply replicated ticket " + event, e);
+        return;
+      }
+    }
+    final Shard shard = shard(event.getTicketId());
+    synchronized (shard) {
+      final Entry entry = shard.tickets.get(event.getTicketId());
+      if (entry != null && !isNewer(event, entry)) {
+        return;
+      }
+      final long deadline = ticket == null ? System.currentTimeMillis() + this.tombstoneTtl : deadline(ticket);
+      shard.put(event.getTicketId(), entry, ticket, event.getTimestamp(), event.getOrigin(), deadline);
+    }
+  }
+
+  private void checkSequence(final ReplicationEvent event) {
+    final Long previous = this.receivedSequences.put(event.getOrigin(), event.getSequence());
+    if (previous == null || event.getSequence() == previous + 1) {
+      return;
+    }
+    if (event.getSequence() <= previous) {
+      log.info("Node " + event.getOrigin() + " restarted its replication log");
+    } else {
+      log.warn("Missed " + (event.getSequence() - previous - 1) + " replication events of node " + event.getOrigin());
+    }
+  }
+
+  /* the change of the event is later than the one of the entry. The origin breaks ties. */
+  private static boolean isNewer(final ReplicationEvent event, final Entry entry) {
+    if (event.getTimestamp() != entry.timestamp) {
+      return event.getTimestamp() > entry.timestamp;
+    }
+    return event.getOrigin().compareTo(entry.origin) > 0;
+  }
+
+  private void append(final LogEntry entry) {
+    if (this.transport == null) {
+      return;
+    }
+    while (!this.replicationLog.offer(entry)) {
+      // replication behind the callers. Throttle this thread to the transport throughput.
+      replicate();
+    }
+  }
+
+  /* serializes the ticket of a PUT. Returns null if it cannot be serialized. */
+  private ReplicationEvent toEvent(final String origin, final long sequence, final ReplicationEvent.Type type,
+                                   final String ticketId, final Ticket ticket, final long timestamp) {
+    byte[] data = null;
+    if (type == ReplicationEvent.Type.PUT) {
+      try {
+        // grantServiceTicket synchronizes on the ticket
+        synchronized (ticket) {
+          data = this.serializer.serialize(ticket);
+        }
+      } catch (RuntimeException e) {
+        log.warn("Cannot replicate ticket " + ticketId, e);
+        return null;
+      }
+    }
+    return new ReplicationEvent(origin, sequence, type, ticketId, timestamp, data);
+  }
+
+  /* removes the expired entries from the head of the expiry queue. Guarded by the shard. */
+  private int sweep(final Shard shard, final long now) {
+    int removed = 0;
+    Expiry head;
+    while ((head = shard.expiries.peek()) != null && head.deadline <= now) {
+      shard.expiries.poll();
+      final Entry entry = shard.tickets.get(head.ticketId);
+      if (entry != head.entry || entry.scheduled != head.deadline) {
+        // entry removed or rescheduled
+        continue;
+      }
+      if (entry.deadline > now) {
+        // used since it was scheduled
+        shard.schedule(head.ticketId, entry, entry.deadline);
+      } else if (entry.ticket == null || entry.ticket.isExpired()) {
+        shard.tickets.remove(head.ticketId);
+        if (entry.ticket != null) {
+          removed++;
+        }
+      } else {
+        // longer expiration policy, e.g. remember-me
+        entry.deadline = now + timeToKill(entry.ticket);
+        shard.schedule(head.ticketId, entry, entry.deadline);
+      }
+    }
+    return removed;
+  }
+
+  /* expected expiry of the ticket by the configured timeouts. */
+  private long deadline(final Ticket ticket) {
+    final long lastTimeUsed = ticket instanceof TicketState ? ((TicketState) ticket).getLastTimeUsed() : ticket.getCreationTime();
+    final long deadline = Math.max(lastTimeUsed, ticket.getCreationTime()) + timeToKill(ticket);
+    if (ticket instanceof TicketGrantingTicket) {
+      return Math.min(deadline, ticket.getCreationTime() + this.ticketGrantingTicketMaxTimeToLive);
+    }
+    return deadline;
+  }
+
+  private long timeToKill(final Ticket ticket) {
+    return ticket instanceof TicketGrantingTicket ? this.ticketGrantingTicketTimeToKill : this.serviceTicketTimeToKill;
+  }
+
+  private int count(final Class<? extends Ticket> type) {
+    int count = 0;
+    for (Shard shard : this.shards) {
+      synchronized (shard) {
+        for (Entry entry : shard.tickets.values()) {
+          if (type.isInstance(entry.ticket)) {
+            count++;
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  private Shard shard(final String ticketId) {
+    int hash = ticketId.hashCode();
+    // spread the high bits, as ticket ids share their prefix
+    hash ^= (hash >>> 16);
+    return this.shards[hash & this.shardMask];
+  }
+
+  /* timestamp of a local change, after the previous change of the ticket even on clock skew. */
+  private static long nextTimestamp(final Entry previous) {
+    final long now = System.currentTimeMillis();
+    return previous == null ? now : Math.max(now, previous.timestamp + 1);
+  }
+
+  /**
+   * Tickets of a shard with their expiry queue. Guarded by the shard.
+   */
+  private static final class Shard {
+    final HashMap<String, Entry> tickets = new HashMap<String, Entry>();
+    final PriorityQueue<Expiry> expiries = new PriorityQueue<Expiry>();
+
+    /* stores the ticket, or a tombstone if ticket is null, in the entry of the id. */
+    void put(String ticketId, Entry entry, Ticket ticket, long timestamp, String origin, long deadline) {
+      if (entry == null) {
+        entry = new Entry();
+        this.tickets.put(ticketId, entry);
+      }
+      entry.ticket = ticket;
+      entry.timestamp = timestamp;
+      entry.origin = origin;
+      entry.deadline = deadline;
+      // deadlines mostly grow. A later deadline is picked up when the scheduled one is reached.
+      if (entry.scheduled == 0 || deadline < entry.scheduled) {
+        schedule(ticketId, entry, deadline);
+      }
+    }
+
+    void schedule(String ticketId, Entry entry, long deadline) {
+      entry.scheduled = deadline;
+      this.expiries.add(new Expiry(ticketId, entry, deadline));
+    }
+  }
+
+  /**
+   * State of a ticket id. A null ticket is a tombstone.
+   */
+  private static final class Entry {
+    Ticket ticket;
+    long timestamp;
+    String origin;
+    long deadline;
+    /* Deadline of the valid queued Expiry, 0 if none. */
+    long scheduled;
+
+    Entry copy() {
+      final Entry copy = new Entry();
+      copy.ticket = this.ticket;
+      copy.timestamp = this.timestamp;
+      copy.origin = this.origin;
+      return copy;
+    }
+  }
+
+  /**
+   * Expiry queue element. Stale if the entry was removed or rescheduled meanwhile.
+   */
+  private static final class Expiry implements Comparable<Expiry> {
+    final String ticketId;
+    final Entry entry;
+    final long deadline;
+
+    Expiry(String ticketId, Entry entry, long deadline) {
+      this.ticketId = ticketId;
+      this.entry = entry;
+      this.deadline = deadline;
+    }
+
+    public int compareTo(Expiry other) {
+      return this.deadline < other.deadline ? -1 : (this.deadline == other.deadline ? 0 : 1);
+    }
+  }
+
+  /**
+   * Not yet sent change of this node. The ticket is serialized when sent, with its state at that time.
+   */
+  private static final class LogEntry {
+    final ReplicationEvent.Type type;
+    final String ticketId;
+    final Ticket ticket;
+    final long timestamp;
+
+    LogEntry(ReplicationEvent.Type type, String ticketId, Ticket ticket, long timestamp) {
+      this.type = type;
+      this.ticketId = ticketId;
+      this.ticket = ticket;
+      this.timestamp = timestamp;
+    }
+  }
+}
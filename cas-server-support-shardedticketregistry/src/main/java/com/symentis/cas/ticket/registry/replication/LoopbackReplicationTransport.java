@@ -0,0 +1,64 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ticket.registry.replication;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process ReplicationTransport connecting the registries of one JVM which share this transport.
+ * Events are delivered synchronously on the publishing thread.
+ *
+ * For tests of the replication and for several registries in one webapp, e.g. during a migration.
+ *
+ * @author Robert Oschwald
+ */
+public class LoopbackReplicationTransport implements ReplicationTransport {
+  private final ConcurrentHashMap<String, ReplicationListener> nodes = new ConcurrentHashMap<String, ReplicationListener>();
+
+  public void join(String nodeId, ReplicationListener listener) {
+    // joined first, so no event is missed. Events both in the state and published are applied once by timestamp.
+    this.nodes.put(nodeId, listener);
+    for (Map.Entry<String, ReplicationListener> node : this.nodes.entrySet()) {
+      if (!node.getKey().equals(nodeId)) {
+        listener.onEvents(node.getValue().snapshot());
+        break;
+      }
+    }
+  }
+
+  public void publish(String nodeId, List<ReplicationEvent> events) {
+    for (Map.Entry<String, ReplicationListener> node : this.nodes.entrySet()) {
+      if (!node.getKey().equals(nodeId)) {
+        node.getValue().onEvents(events);
+      }
+    }
+  }
+
+  public void leave(String nodeId) {
+    this.nodes.remove(nodeId);
+  }
+
+  /** Number of joined nodes. */
+  public int size() {
+    return this.nodes.size();
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ticket.registry.replication;
+
+import java.io.Serializable;
+
+/**
+ * Entry of the replication log of a CAS node: a ticket put or delete.
+ *
+ * Events of a node are numbered by sequence, so receivers detect lost events.
+ * Changes of the same ticket on several nodes are ordered by timestamp, then by origin.
+ *
+ * @author Robert Oschwald
+ */
+public final class ReplicationEvent implements Serializable {
+  private static final long serialVersionUID = 1L;
+  /** Sequence of events which are not part of the replication log, e.g. the state sent to a joining node. */
+  public static final long UNSEQUENCED = -1;
+  private final String origin;
+  private final long sequence;
+  private final Type type;
+  private final String ticketId;
+  private final long timestamp;
+  private final byte[] ticket;
+
+  public ReplicationEvent(String origin, long sequence, Type type, String ticketId, long timestamp, byte[] ticket) {
+    this.origin = origin;
+    this.sequence = sequence;
+    this.type = type;
+    this.ticketId = ticketId;
+    this.timestamp = timestamp;
+    this.ticket = ticket;
+  }
+
+  /** @return node id of the node which changed the ticket */
+  public String getOrigin() {
+    return this.origin;
+  }
+
+  /** @return position in the replication log of the origin, or {@link #UNSEQUENCED} */
+  public long getSequence() {
+    return this.sequence;
+  }
+
+  public Type getType() {
+    return this.type;
+  }
+
+  public String getTicketId() {
+    return this.ticketId;
+  }
+
+  /** @return time of the change in milliseconds */
+  public long getTimestamp() {
+    return this.timestamp;
+  }
+
+  /** @return the serialized ticket of a PUT, null for a DELETE */
+  public byte[] getTicket() {
+    return this.ticket;
+  }
+
+  @Override
+  public String toString() {
+    return this.type + " " + this.ticketId + " from " + this.origin + "#" + this.sequence;
+  }
+
+  /**
+   * Kind of change.
+   */
+  public enum Type {
+    PUT, DELETE
+  }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ticket.registry.replication;
+
+import java.util.List;
+
+/**
+ * Receiving side of the replication, implemented by the ticket registry of a node.
+ *
+ * @author Robert Oschwald
+ */
+public interface ReplicationListener {
+
+  /**
+   * Applies the events of another node. Called by the transport, in the order of the events of each origin.
+   */
+  void onEvents(List<ReplicationEvent> events);
+
+  /**
+   * Current state of this node as {@link ReplicationEvent#UNSEQUENCED} events, sent to a joining node.
+   */
+  List<ReplicationEvent> snapshot();
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ticket.registry.replication;
+
+import java.util.List;
+
+/**
+ * Exchanges the replication logs of the CAS nodes of a cluster.
+ *
+ * A transport delivers the published events of a node to all other joined nodes, in publishing order.
+ * Delivery is at most once; receivers detect lost events by their sequence.
+ * See {@link LoopbackReplicationTransport} for an in-process implementation.
+ *
+ * @author Robert Oschwald
+ */
+public interface ReplicationTransport {
+
+  /**
+   * Joins the cluster. The listener first receives the current state of another node, if any,
+   * then the events published by the other nodes.
+   */
+  void join(String nodeId, ReplicationListener listener);
+
+  /**
+   * Sends events of the node to the other nodes.
+   *
+   * @throws IllegalStateException if the events cannot be sent
+   */
+  void publish(String nodeId, List<ReplicationEvent> events);
+
+  /**
+   * Leaves the cluster. The listener receives no further events.
+   */
+  void leave(String nodeId);
+}
@@ -0,0 +1,717 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ticket.registry.support;
+
+import org.jasig.cas.ticket.Ticket;
+
+import java.io.Externalizable;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact binary TicketSerializer for ticket granting, proxy granting and service tickets with their
+ * Authentication, Principal and attributes.
+ * <p/>
+ * Objects are written field by field, without the class descriptors of Java serialization:
+ * <ul>
+ *   <li>Strings are interned per ticket. Repeated attribute names, service ids and class names are written once
+ *   and then referenced by a varint index.</li>
+ *   <li>Numbers are zigzag varints. Timestamps are written relative to the creation time of the ticket,
+ *   if that is shorter.</li>
+ *   <li>Lists, sets and maps of java.util are written as size and elements.</li>
+ *   <li>Shared objects and collections, e.g. the ticket granting ticket of a proxy chain, are written once.</li>
+ * </ul>
+ * Each ticket starts with a format version, and each class with a fingerprint of its fields. So reading a ticket
+ * written by a different CAS version fails instead of corrupting it; all nodes must run the same CAS version.
+ * Objects with custom Java serialization (writeObject, writeReplace, Externalizable) or without no-arg constructor
+ * are embedded in Java serialization, as are classes of the JDK. Unlike Java serialization, transient fields keep
+ * the value of the no-arg constructor. Data written by Java serialization, e.g. by the JavaTicketSerializer before
+ * an upgrade, is read as well.
+ * <p/>
+ * The codec instantiates the classes named in the data and sets their fields, bypassing readObject checks.
+ * So only the classes of the TicketClassFilter are read, also in embedded Java serialization. Other classes are
+ * rejected before they are loaded.
+ *
+ * @author Robert Oschwald
+ */
+public class CompactTicketCodec implements TicketSerializer {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int MAGIC = 0xC7;
+  private static final int VERSION = 1;
+  /* first byte of Java serialization streams */
+  private static final int JAVA_MAGIC = 0xAC;
+
+  private static final int NULL = 0;
+  private static final int STRING = 1;
+  private static final int TRUE = 2;
+  private static final int FALSE = 3;
+  private static final int INT = 4;
+  private static final int LONG = 5;
+  private static final int TIME = 6;
+  private static final int SHORT = 7;
+  private static final int BYTE = 8;
+  private static final int CHAR = 9;
+  private static final int FLOAT = 10;
+  private static final int DOUBLE = 11;
+  private static final int BYTES = 12;
+  private static final int DATE = 13;
+  private static final int ENUM = 14;
+  private static final int CLASS = 15;
+  private static final int LIST = 16;
+  private static final int SET = 17;
+  private static final int MAP = 18;
+  private static final int ARRAY = 19;
+  private static final int OBJECT = 20;
+  private static final int REF = 21;
+  private static final int JAVA = 22;
+
+  /* collection kinds */
+  private static final int PLAIN = 0;
+  private static final int LINKED = 1;
+  private static final int SORTED = 2;
+  private static final int UNMODIFIABLE = 3;
+
+  private final ConcurrentHashMap<Class<?>, Schema> schemas = new ConcurrentHashMap<Class<?>, Schema>();
+  private volatile TicketClassFilter classFilter = new TicketClassFilter();
+  private final JavaTicketSerializer javaSerializer = new JavaTicketSerializer();
+
+  /**
+   * Classes read in addition to the CAS ticket classes and the JDK values of the TicketClassFilter,
+   * e.g. attribute values of an extension. Names ending with a dot allow a package.
+   */
+  public void setAllowedClasses(final List<String> allowedClasses) {
+    this.classFilter = new TicketClassFilter(allowedClasses);
+    this.javaSerializer.setAllowedClasses(allowedClasses);
+  }
+
+  public byte[] serialize(Ticket ticket) {
+    final Output out = new Output(ticket.getCreationTime());
+    out.writeByte(MAGIC);
+    out.writeByte(VERSION);
+    out.writeVarLong(out.base);
+    try {
+      writeValue(out, ticket);
+    } catch (IllegalAccessException e) {
+      throw new IllegalArgumentException("Cannot serialize ticket " + ticket.getId(), e);
+    }
+    return out.toByteArray();
+  }
+
+  public Ticket deserialize(byte[] data) {
+    if (data.length > 0 && (data[0] & 0xFF) == JAVA_MAGIC) {
+      return this.javaSerializer.deserialize(data);
+    }
+    if (data.length < 2 || (data[0] & 0xFF) != MAGIC) {
+      throw new IllegalArgumentException("Not a compact ticket");
+    }
+    if (data[1] != VERSION) {
+      throw new IllegalArgumentException("Unsupported compact ticket version " + data[1]);
+    }
+    final Input in = new Input(data, 2);
+    final Object value;
+    try {
+      in.base = in.readVarLong();
+      value = readValue(in);
+    } catch (IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Truncated compact ticket", e);
+    } catch (IllegalArgumentException e) {
+      throw e;
+    } catch (Exception e) {
+      // reflection and class loading
+      throw new IllegalArgumentException("Cannot deserialize ticket", e);
+    }
+    if (!(value instanceof Ticket)) {
+      throw new IllegalArgumentException("Not a ticket: " + (value == null ? null : value.getClass().getName()));
+    }
+    return (Ticket) value;
+  }
+
+  private void writeValue(Output out, Object value) throws IllegalAccessException {
+    if (value == null) {
+      out.writeByte(NULL);
+      return;
+    }
+    final Class<?> type = value.getClass();
+    if (type == String.class) {
+      out.writeByte(STRING);
+      out.writeString((String) value);
+    } else if (type == Boolean.class) {
+      out.writeByte((Boolean) value ? TRUE : FALSE);
+    } else if (type == Integer.class) {
+      out.writeByte(INT);
+      out.writeZigZag((Integer) value);
+    } else if (type == Long.class) {
+      writeLong(out, LONG, (Long) value);
+    } else if (type == Date.class) {
+      out.writeByte(DATE);
+      out.writeZigZag(((Date) value).getTime() - out.base);
+    } else if (type == Short.class) {
+      out.writeByte(SHORT);
+      out.writeZigZag((Short) value);
+    } else if (type == Byte.class) {
+      out.writeByte(BYTE);
+      out.writeByte((Byte) value);
+    } else if (type == Character.class) {
+      out.writeByte(CHAR);
+      out.writeVarLong((Character) value);
+    } else if (type == Float.class) {
+      out.writeByte(FLOAT);
+      out.writeFixed(Float.floatToIntBits((Float) value), 4);
+    } else if (type == Double.class) {
+      out.writeByte(DOUBLE);
+      out.writeFixed(Double.doubleToLongBits((Double) value), 8);
+    } else if (type == byte[].class) {
+      final byte[] bytes = (byte[]) value;
+      out.writeByte(BYTES);
+      out.writeVarLong(bytes.length);
+      out.writeBytes(bytes, bytes.length);
+    } else if (value instanceof Enum) {
+      out.writeByte(ENUM);
+      out.writeString(((Enum<?>) value).getDeclaringClass().getName());
+      out.writeString(((Enum<?>) value).name());
+    } else if (type == Class.class) {
+      out.writeByte(CLASS);
+      out.writeString(((Class<?>) value).getName());
+    } else if (out.objects.containsKey(value)) {
+      out.writeByte(REF);
+      out.writeVarLong(out.objects.get(value));
+    } else if (value instanceof Map && collectionKind(value) >= 0) {
+      final Map<?, ?> map = (Map<?, ?>) value;
+      out.objects.put(value, out.objects.size());
+      out.writeByte(MAP);
+      out.writeByte(collectionKind(value));
+      out.writeVarLong(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        writeValue(out, entry.getKey());
+        writeValue(out, entry.getValue());
+      }
+    } else if (value instanceof Collection && collectionKind(value) >= 0) {
+      final Collection<?> collection = (Collection<?>) value;
+      out.objects.put(value, out.objects.size());
+      out.writeByte(value instanceof Set ? SET : LIST);
+      out.writeByte(collectionKind(value));
+      out.writeVarLong(collection.size());
+      for (Object element : collection) {
+        writeValue(out, element);
+      }
+    } else if (type.isArray() && !type.getComponentType().isPrimitive()) {
+      final Object[] array = (Object[]) value;
+      out.objects.put(value, out.objects.size());
+      out.writeByte(ARRAY);
+      out.writeString(type.getComponentType().getName());
+      out.writeVarLong(array.length);
+      for (Object element : array) {
+        writeValue(out, element);
+      }
+    } else {
+      writeObject(out, value);
+    }
+  }
+
+  /* long as plain varint or relative to the base time, whichever is shorter. */
+  private static void writeLong(Output out, int tag, long value) {
+    final long relative = value - out.base;
+    if (varLength(zigZag(relative)) < varLength(zigZag(value))) {
+      out.writeByte(TIME);
+      out.writeZigZag(relative);
+    } else {
+      out.writeByte(tag);
+      out.writeZigZag(value);
+    }
+  }
+
+  private void writeObject(Output out, Object value) throws IllegalAccessException {
+    final Schema schema = schema(value.getClass());
+    // registered before the fields, so cycles are written as references
+    out.objects.put(value, out.objects.size());
+    if (schema.constructor == null) {
+      // custom serialization
+      final byte[] bytes = javaSerialize(value);
+      out.writeByte(JAVA);
+      out.writeVarLong(bytes.length);
+      out.writeBytes(bytes, bytes.length);
+      return;
+    }
+    out.writeByte(OBJECT);
+    out.writeString(schema.type.getName());
+    out.writeFixed(schema.fingerprint, 4);
+    for (Field field : schema.fields) {
+      writeValue(out, field.get(value));
+    }
+  }
+
+  private Object readValue(Input in) throws Exception {
+    final int tag = in.readByte();
+    switch (tag) {
+      case NULL:
+        return null;
+      case STRING:
+        return in.readString();
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      case INT:
+        return (int) in.readZigZag();
+      case LONG:
+        return in.readZigZag();
+      case TIME:
+        return in.base + in.readZigZag();
+      case DATE:
+        return new Date(in.base + in.readZigZag());
+      case SHORT:
+        return (short) in.readZigZag();
+      case BYTE:
+        return (byte) in.readByte();
+      case CHAR:
+        return (char) in.readVarLong();
+      case FLOAT:
+        return Float.intBitsToFloat((int) in.readFixed(4));
+      case DOUBLE:
+        return Double.longBitsToDouble(in.readFixed(8));
+      case BYTES:
+        return in.readBytes((int) in.readVarLong());
+      case ENUM:
+        return readEnum(in);
+      case CLASS:
+        return loadClass(in.readString());
+      case MAP:
+        return readMap(in);
+      case LIST:
+      case SET:
+        return readCollection(in, tag);
+      case ARRAY:
+        return readArray(in);
+      case OBJECT:
+        return readObject(in);
+      case REF:
+        return in.objects.get((int) in.readVarLong());
+      case JAVA:
+        final Object embedded = javaDeserialize(in.readBytes((int) in.readVarLong()));
+        in.objects.add(embedded);
+        return embedded;
+      default:
+        throw new IllegalArgumentException("Unknown tag " + tag + " in compact ticket");
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Object readEnum(Input in) throws Exception {
+    final Class type = loadClass(in.readString());
+    return Enum.valueOf(type, in.readString());
+  }
+
+  private Object readMap(Input in) throws Exception {
+    final int kind = in.readByte();
+    final int size = in.readSize();
+    final Map<Object, Object> map;
+    if (kind == SORTED) {
+      map = new TreeMap<Object, Object>();
+    } else if (kind == PLAIN) {
+      map = new HashMap<Object, Object>(Math.max(16, size * 4 / 3 + 1));
+    } else {
+      map = new LinkedHashMap<Object, Object>(Math.max(16, size * 4 / 3 + 1));
+    }
+    // the unmodifiable view is filled through the backing map
+    final Map<Object, Object> result = kind == UNMODIFIABLE ? Collections.unmodifiableMap(map) : map;
+    in.objects.add(result);
+    for (int i = 0; i < size; i++) {
+      Object key = readValue(in);
+      if (key instanceof String) {
+        // attribute names are shared by all tickets of the node
+        key = ((String) key).intern();
+      }
+      map.put(key, readValue(in));
+    }
+    return result;
+  }
+
+  private Object readCollection(Input in, int tag) throws Exception {
+    final int kind = in.readByte();
+    final int size = in.readSize();
+    final Collection<Object> collection;
+    if (tag == SET) {
+      collection = kind == SORTED ? new TreeSet<Object>()
+          : kind == PLAIN ? new HashSet<Object>(Math.max(16, size * 4 / 3 + 1)) : new LinkedHashSet<Object>(Math.max(16, size * 4 / 3 + 1));
+    } else {
+      collection = kind == LINKED ? new LinkedList<Object>() : new ArrayList<Object>(size);
+    }
+    final Collection<Object> result = kind != UNMODIFIABLE ? collection
+        : tag == SET ? Collections.unmodifiableSet((Set<Object>) collection) : Collections.unmodifiableList((List<Object>) collection);
+    in.objects.add(result);
+    for (int i = 0; i < size; i++) {
+      collection.add(readValue(in));
+    }
+    return result;
+  }
+
+  private Object readArray(Input in) throws Exception {
+    final Class<?> componentType = loadClass(in.readString());
+    final int length = in.readSize();
+    final Object[] array = (Object[]) Array.newInstance(componentType, length);
+    in.objects.add(array);
+    for (int i = 0; i < length; i++) {
+      array[i] = readValue(in);
+    }
+    return array;
+  }
+
+  private Object readObject(Input in) throws Exception {
+    final String className = in.readString();
+    final int fingerprint = (int) in.readFixed(4);
+    final Schema schema = schema(loadClass(className));
+    if (schema.constructor == null) {
+      throw new IllegalArgumentException("Class " + className + " is not field serializable");
+    }
+    if (schema.fingerprint != fingerprint) {
+      throw new IllegalArgumentException("Fields of class " + className + " differ from the writing node");
+    }
+    final Object value = schema.constructor.newInstance();
+    in.objects.add(value);
+    for (Field field : schema.fields) {
+      field.set(value, readValue(in));
+    }
+    return value;
+  }
+
+  /* kind of a java.util collection written as elements, -1 for other collections. */
+  private static int collectionKind(Object collection) {
+    final Class<?> type = collection.getClass();
+    if (type == HashMap.class || type == HashSet.class || type == ArrayList.class) {
+      return PLAIN;
+    }
+    if (type == LinkedHashMap.class || type == LinkedHashSet.class || type == LinkedList.class) {
+      return LINKED;
+    }
+    if (type == TreeMap.class || type == TreeSet.class) {
+      // only the natural order can be restored
+      final Comparator<?> comparator = collection instanceof TreeMap ? ((TreeMap<?, ?>) collection).comparator() : ((TreeSet<?>) collection).comparator();
+      return comparator == null ? SORTED : -1;
+    }
+    final String name = type.getName();
+    if (name.startsWith("java.util.Collections$UnmodifiableSorted") || name.startsWith("java.util.Collections$UnmodifiableNavigable")) {
+      // would be read as unsorted view, and the comparator is not accessible
+      return -1;
+    }
+    if (name.startsWith("java.util.Collections$Unmodifiable") || name.startsWith("java.util.Collections$Empty")
+        || name.startsWith("java.util.Collections$Singleton") || type == Arrays.asList().getClass()) {
+      return UNMODIFIABLE;
+    }
+    return -1;
+  }
+
+  private Schema schema(Class<?> type) {
+    Schema schema = this.schemas.get(type);
+    if (schema == null) {
+      schema = new Schema(type);
+      this.schemas.putIfAbsent(type, schema);
+    }
+    return schema;
+  }
+
+  private Class<?> loadClass(String name) throws ClassNotFoundException {
+    if (!this.classFilter.isAllowed(name)) {
+      throw new IllegalArgumentException("Class " + name + " is not allowed in tickets");
+    }
+    final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    return Class.forName(name, false, classLoader != null ? classLoader : CompactTicketCodec.class.getClassLoader());
+  }
+
+  private static byte[] javaSerialize(Object value) {
+    if (!(value instanceof Serializable)) {
+      throw new IllegalArgumentException("Class " + value.getClass().getName() + " is not Serializable");
+    }
+    try {
+      final java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream(256);
+      final ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(value);
+      out.close();
+      return bytes.toByteArray();
+    } catch (java.io.IOException e) {
+      throw new IllegalArgumentException("Cannot serialize " + value.getClass().getName(), e);
+    }
+  }
+
+  private Object javaDeserialize(byte[] data) throws ClassNotFoundException {
+    try {
+      final ObjectInputStream in = this.classFilter.newObjectInputStream(data, 0, data.length);
+      try {
+        return in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (java.io.IOException e) {
+      throw new IllegalArgumentException("Cannot deserialize embedded object", e);
+    }
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static int varLength(long value) {
+    int length = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      length++;
+    }
+    return length;
+  }
+
+  /**
+   * Fields of a class written by the codec. A null constructor marks classes embedded in Java serialization.
+   */
+  private static final class Schema {
+    final Class<?> type;
+    final Field[] fields;
+    final int fingerprint;
+    final Constructor<?> constructor;
+
+    Schema(Class<?> type) {
+      if (!Serializable.class.isAssignableFrom(type)) {
+        throw new IllegalArgumentException("Class " + type.getName() + " is not Serializable");
+      }
+      this.type = type;
+      final List<Field> fields = new ArrayList<Field>();
+      final StringBuilder signature = new StringBuilder(type.getName());
+      final List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+      // private fields of the JDK differ between Java versions and are not accessible on Java 9+
+      boolean custom = Externalizable.class.isAssignableFrom(type) || type.getName().startsWith("java.") || type.getName().startsWith("javax.");
+      for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+        hierarchy.add(0, c);
+        custom |= hasCustomSerialization(c);
+      }
+      for (Class<?> c : custom ? new ArrayList<Class<?>>() : hierarchy) {
+        final Field[] declared = c.getDeclaredFields();
+        // declaration order is not specified
+        Arrays.sort(declared, new Comparator<Field>() {
+          public int compare(Field a, Field b) {
+            return a.getName().compareTo(b.getName());
+          }
+        });
+        for (Field field : declared) {
+          final int modifiers = field.getModifiers();
+          if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+            continue;
+          }
+          try {
+            field.setAccessible(true);
+          } catch (RuntimeException e) {
+            // security manager or module restrictions
+            custom = true;
+          }
+          fields.add(field);
+          signature.append(';').append(c.getName()).append('.').append(field.getName()).append(':').append(field.getType().getName());
+        }
+      }
+      this.fields = fields.toArray(new Field[fields.size()]);
+      this.fingerprint = signature.toString().hashCode();
+      this.constructor = custom ? null : noArgConstructor(type);
+    }
+
+    private static boolean hasCustomSerialization(Class<?> c) {
+      for (String method : new String[]{"writeObject", "readObject", "writeReplace", "readResolve"}) {
+        for (java.lang.reflect.Method declared : c.getDeclaredMethods()) {
+          if (declared.getName().equals(method) && !Modifier.isStatic(declared.getModifiers())) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    private static Constructor<?> noArgConstructor(Class<?> type) {
+      try {
+        final Constructor<?> constructor = type.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor;
+      } catch (NoSuchMethodException e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Growable buffer with the interned strings and written objects of a ticket.
+   */
+  private static final class Output {
+    final long base;
+    final HashMap<String, Integer> strings = new HashMap<String, Integer>();
+    final IdentityHashMap<Object, Integer> objects = new IdentityHashMap<Object, Integer>();
+    byte[] buffer = new byte[256];
+    int position;
+
+    Output(long base) {
+      this.base = base;
+    }
+
+    void writeByte(int value) {
+      ensure(1);
+      this.buffer[this.position++] = (byte) value;
+    }
+
+    void writeBytes(byte[] bytes, int length) {
+      ensure(length);
+      System.arraycopy(bytes, 0, this.buffer, this.position, length);
+      this.position += length;
+    }
+
+    void writeVarLong(long value) {
+      ensure(10);
+      while ((value & ~0x7FL) != 0) {
+        this.buffer[this.position++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      this.buffer[this.position++] = (byte) value;
+    }
+
+    void writeZigZag(long value) {
+      writeVarLong(zigZag(value));
+    }
+
+    void writeFixed(long value, int bytes) {
+      ensure(bytes);
+      for (int i = bytes - 1; i >= 0; i--) {
+        this.buffer[this.position++] = (byte) (value >>> (i * 8));
+      }
+    }
+
+    /* index + 1 of an already written string, or 0 followed by the UTF-8 bytes. */
+    void writeString(String value) {
+      final Integer index = this.strings.get(value);
+      if (index != null) {
+        writeVarLong(index + 1);
+        return;
+      }
+      this.strings.put(value, this.strings.size());
+      final byte[] bytes = value.getBytes(UTF8);
+      writeVarLong(0);
+      writeVarLong(bytes.length);
+      writeBytes(bytes, bytes.length);
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(this.buffer, this.position);
+    }
+
+    private void ensure(int length) {
+      if (this.position + length > this.buffer.length) {
+        this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.position + length));
+      }
+    }
+  }
+
+  /**
+   * Read position with the strings and objects read so far.
+   */
+  private static final class Input {
+    final byte[] data;
+    final List<String> strings = new ArrayList<String>();
+    final List<Object> objects = new ArrayList<Object>();
+    int position;
+    long base;
+
+    Input(byte[] data, int position) {
+      this.data = data;
+      this.position = position;
+    }
+
+    int readByte() {
+      return this.data[this.position++] & 0xFF;
+    }
+
+    byte[] readBytes(int length) {
+      if (length < 0 || this.position + length > this.data.length) {
+        throw new IndexOutOfBoundsException("length " + length);
+      }
+      final byte[] bytes = Arrays.copyOfRange(this.data, this.position, this.position + length);
+      this.position += length;
+      return bytes;
+    }
+
+    long readVarLong() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        final int b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Malformed varint in compact ticket");
+    }
+
+    /* element count of a map, collection or array. Each element takes at least one byte. */
+    int readSize() {
+      final long size = readVarLong();
+      if (size < 0 || size > this.data.length - this.position) {
+        throw new IllegalArgumentException("Invalid size " + size + " in compact ticket");
+      }
+      return (int) size;
+    }
+
+    long readZigZag() {
+      final long value = readVarLong();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    long readFixed(int bytes) {
+      long value = 0;
+      for (int i = 0; i < bytes; i++) {
+        value = (value << 8) | readByte();
+      }
+      return value;
+    }
+
+    String readString() {
+      final int index = (int) readVarLong();
+      if (index > 0) {
+        return this.strings.get(index - 1);
+      }
+      final String value = new String(readBytes((int) readVarLong()), UTF8);
+      this.strings.add(value);
+      return value;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ticket.registry.support;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+import org.jasig.cas.ticket.Ticket;
+
+/**
+ * Memcached Transcoder writing tickets with the {@link CompactTicketCodec}, for the MemCacheTicketRegistry
+ * of CAS instead of the KryoTranscoder. Other values are written by the SerializingTranscoder of spymemcached.
+ *
+ * @author Robert Oschwald
+ */
+public class CompactTicketTranscoder implements Transcoder<Object> {
+  /* flag of compact tickets, beside the flags of the SerializingTranscoder */
+  private static final int TICKET_FLAG = 1 << 12;
+  private final CompactTicketCodec codec = new CompactTicketCodec();
+  private final SerializingTranscoder fallback = new SerializingTranscoder();
+
+  public boolean asyncDecode(CachedData data) {
+    return false;
+  }
+
+  public CachedData encode(Object value) {
+    if (value instanceof Ticket) {
+      return new CachedData(TICKET_FLAG, this.codec.serialize((Ticket) value), getMaxSize());
+    }
+    return this.fallback.encode(value);
+  }
+
+  public Object decode(CachedData data) {
+    if ((data.getFlags() & TICKET_FLAG) != 0) {
+      return this.codec.deserialize(data.getData());
+    }
+    return this.fallback.decode(data);
+  }
+
+  public int getMaxSize() {
+    return CachedData.MAX_SIZE;
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ticket.registry.support;
+
+import org.jasig.cas.ticket.Ticket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+/**
+ * TicketSerializer using Java serialization. Tickets of CAS and their attributes are Serializable.
+ * Only the classes of the TicketClassFilter are read, so crafted data cannot instantiate other classes.
+ *
+ * @author Robert Oschwald
+ */
+public class JavaTicketSerializer implements TicketSerializer {
+  private volatile TicketClassFilter classFilter = new TicketClassFilter();
+
+  /**
+   * Classes read in addition to the CAS ticket classes and the JDK values of the TicketClassFilter,
+   * e.g. attribute values of an extension. Names ending with a dot allow a package.
+   */
+  public void setAllowedClasses(final List<String> allowedClasses) {
+    this.classFilter = new TicketClassFilter(allowedClasses);
+  }
+
+  public byte[] serialize(Ticket ticket) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+      final ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(ticket);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Cannot serialize ticket " + ticket.getId(), e);
+    }
+  }
+
+  public Ticket deserialize(byte[] data) {
+    try {
+      final ObjectInputStream in = this.classFilter.newObjectInputStream(data, 0, data.length);
+      try {
+        return (Ticket) in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Cannot deserialize ticket", e);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalArgumentException("Cannot deserialize ticket", e);
+    } catch (RuntimeException e) {
+      // corrupt data, e.g. in the readObject of a class
+      throw new IllegalArgumentException("Cannot deserialize ticket", e);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.symentis.cas.ticket.registry.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Allow-list of the classes read from serialized tickets: the ticket, authentication and principal classes
+ * of CAS, and the JDK value and collection classes held by tickets. Classes not on the list are rejected before
+ * they are loaded, so data of the replication transport cannot instantiate other Serializable classes.
+ * <p/>
+ * Further classes, e.g. services or attribute values of CAS extensions, are added by their name or by a
+ * package prefix ending with a dot.
+ * <p/>
+ * On Java 8u121 and later, Java serialization input is also limited to arrays no longer than the data, so corrupt
+ * lengths, e.g. of a HashMap or BigInteger, fail instead of allocating large arrays.
+ *
+ * @author Robert Oschwald
+ */
+public final class TicketClassFilter {
+  static final List<String> DEFAULT_PACKAGES = Collections.unmodifiableList(Arrays.asList(
+      "org.jasig.cas.ticket.", "org.jasig.cas.authentication.", "java.util.Collections$"));
+  static final Set<String> DEFAULT_CLASSES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+      "java.lang.String", "java.lang.Boolean", "java.lang.Number", "java.lang.Integer", "java.lang.Long",
+      "java.lang.Short", "java.lang.Byte", "java.lang.Character", "java.lang.Float", "java.lang.Double",
+      "java.lang.Enum", "java.math.BigInteger", "java.math.BigDecimal", "java.util.Date",
+      "java.util.HashMap", "java.util.LinkedHashMap", "java.util.TreeMap", "java.util.HashSet",
+      "java.util.LinkedHashSet", "java.util.TreeSet", "java.util.ArrayList", "java.util.LinkedList",
+      "java.util.Arrays$ArrayList", "java.util.concurrent.TimeUnit")));
+
+  /* ObjectInputFilter of Java 9+, or of Java 8u121+. Null on older Java versions. */
+  private static final Class<?> INPUT_FILTER = findClass("java.io.ObjectInputFilter", "sun.misc.ObjectInputFilter");
+  private final Set<String> classes;
+  private final List<String> packages;
+
+  /**
+   * Filter of the default classes.
+   */
+  public TicketClassFilter() {
+    this(Collections.<String>emptyList());
+  }
+
+  /**
+   * @param allowed additional class names, or package prefixes ending with a dot
+   */
+  public TicketClassFilter(final Collection<String> allowed) {
+    this.classes = new HashSet<String>(DEFAULT_CLASSES);
+    this.packages = new ArrayList<String>(DEFAULT_PACKAGES);
+    for (String name : allowed) {
+      if (name.endsWith(".")) {
+        this.packages.add(name);
+      } else {
+        this.classes.add(name);
+      }
+    }
+  }
+
+  /**
+   * @param className class name as of Class.getName(), arrays as "[Ljava.lang.String;"
+   * @return true if instances of the class may be read from a ticket
+   */
+  public boolean isAllowed(final String className) {
+    int dimensions = 0;
+    while (dimensions < className.length() && className.charAt(dimensions) == '[') {
+      dimensions++;
+    }
+    String name = className.substring(dimensions);
+    if (dimensions > 0) {
+      if (name.length() == 1) {
+        // array of a primitive type
+        return true;
+      }
+      if (!name.startsWith("L") || !name.endsWith(";")) {
+        return false;
+      }
+      name = name.substring(1, name.length() - 1);
+    }
+    if (this.classes.contains(name)) {
+      return true;
+    }
+    for (String prefix : this.packages) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return Java serialization input of the data, rejecting the classes not allowed by this filter
+   */
+  public ObjectInputStream newObjectInputStream(final byte[] data, final int offset, final int length) throws IOException {
+    final ObjectInputStream in = new FilteringObjectInputStream(new ByteArrayInputStream(data, offset, length), this);
+    limitArrayLength(in, length);
+    return in;
+  }
+
+  /* each array element takes at least one byte of the stream */
+  private static void limitArrayLength(final ObjectInputStream in, final long maxLength) {
+    if (INPUT_FILTER == null) {
+      return;
+    }
+    try {
+      final Method arrayLength = Class.forName(INPUT_FILTER.getName() + "$FilterInfo").getMethod("arrayLength");
+      final Class status = Class.forName(INPUT_FILTER.getName() + "$Status");
+      final Object rejected = Enum.valueOf(status, "REJECTED");
+      final Object undecided = Enum.valueOf(status, "UNDECIDED");
+      final Object filter = Proxy.newProxyInstance(INPUT_FILTER.getClassLoader(), new Class<?>[]{INPUT_FILTER},
+          new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+              if ("checkInput".equals(method.getName())) {
+                // classes are checked by resolveClass
+                return ((Long) arrayLength.invoke(args[0])) > maxLength ? rejected : undecided;
+              }
+              if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+              }
+              return "hashCode".equals(method.getName()) ? (Object) System.identityHashCode(proxy) : "TicketClassFilter";
+            }
+          });
+      if (INPUT_FILTER.getName().startsWith("java.")) {
+        ObjectInputStream.class.getMethod("setObjectInputFilter", INPUT_FILTER).invoke(in, filter);
+      } else {
+        Class.forName(INPUT_FILTER.getName() + "$Config").getMethod("setObjectInputFilter", ObjectInputStream.class, INPUT_FILTER)
+            .invoke(null, in, filter);
+      }
+    } catch (Exception e) {
+      // e.g. a process wide filter of jdk.serialFilter, which then applies
+    }
+  }
+
+  private static Class<?> findClass(final String... names) {
+    for (String name : names) {
+      try {
+        return Class.forName(name);
+      } catch (ClassNotFoundException e) {
+        // older Java version
+      } catch (LinkageError e) {
+        // older Java version
+      }
+    }
+    return null;
+  }
+
+  /**
+   * ObjectInputStream resolving only the allowed classes.
+   */
+  private static final class FilteringObjectInputStream extends ObjectInputStream {
+    private final TicketClassFilter filter;
+
+    FilteringObjectInputStream(InputStream in, TicketClassFilter filter) throws IOException {
+      super(in);
+      this.filter = filter;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      if (!this.filter.isAllowed(desc.getName())) {
+        throw new InvalidClassException(desc.getName(), "Class not allowed in tickets");
+      }
+      return super.resolveClass(desc);
+    }
+
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+      throw new InvalidClassException("Proxy classes are not allowed in tickets");
+    }
+  }
+}
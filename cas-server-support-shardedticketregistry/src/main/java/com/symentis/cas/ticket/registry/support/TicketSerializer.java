@@ -0,0 +1,46 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ticket.registry.support;
+
+import org.jasig.cas.ticket.Ticket;
+
+/**
+ * Converts tickets to bytes and back, for registries storing or sending tickets outside of the heap.
+ *
+ * Implementations must be thread safe.
+ *
+ * @author Robert Oschwald
+ */
+public interface TicketSerializer {
+
+  /**
+   * @param ticket ticket granting ticket, proxy granting ticket or service ticket
+   * @return the ticket with its authentication and granting ticket
+   * @throws IllegalArgumentException if the ticket cannot be serialized
+   */
+  byte[] serialize(Ticket ticket);
+
+  /**
+   * @param data bytes written by {@link #serialize}, possibly by another CAS node
+   * @return a new ticket instance
+   * @throws IllegalArgumentException if the data cannot be read
+   */
+  Ticket deserialize(byte[] data);
+}
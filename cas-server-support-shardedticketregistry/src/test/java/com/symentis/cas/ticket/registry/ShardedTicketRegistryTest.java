@@ -0,0 +1,270 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.symentis.cas.ticket.registry;
+
+import com.symentis.cas.ticket.registry.replication.LoopbackReplicationTransport;
+import org.jasig.cas.authentication.AcceptUsersAuthenticationHandler;
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.AuthenticationBuilder;
+import org.jasig.cas.authentication.BasicCredentialMetaData;
+import org.jasig.cas.authentication.DefaultHandlerResult;
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.DefaultPrincipalFactory;
+import org.jasig.cas.authentication.principal.Principal;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.TicketState;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ShardedTicketRegistry nodes connected by a LoopbackReplicationTransport. The background replication and
+ * sweeper are not due during a test, the tests replicate and sweep themselves.
+ *
+ * @author Robert Oschwald
+ */
+public class ShardedTicketRegistryTest {
+  private static final Service SERVICE = new SimpleWebApplicationServiceImpl("https://app.example.org/login/cas");
+  private final List<ShardedTicketRegistry> registries = new ArrayList<ShardedTicketRegistry>();
+  private LoopbackReplicationTransport transport;
+  private Authentication authentication;
+
+  @Before
+  public void setUp() {
+    this.transport = new LoopbackReplicationTransport();
+    this.authentication = newAuthentication();
+  }
+
+  @After
+  public void tearDown() {
+    for (ShardedTicketRegistry registry : this.registries) {
+      registry.destroy();
+    }
+  }
+
+  @Test
+  public void concurrentUpdatesAndDeletesConverge() throws Exception {
+    final ShardedTicketRegistry nodeA = newNode("node-a", this.transport);
+    final ShardedTicketRegistry nodeB = newNode("node-b", this.transport);
+    final int tickets = 500;
+    for (int i = 0; i < tickets; i++) {
+      nodeA.addTicket(newTicketGrantingTicket("TGT-" + i));
+    }
+    nodeA.replicate();
+    assertEquals(tickets, nodeB.sessionCount());
+
+    final CountDownLatch start = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      // node-a validates service tickets of the sessions while node-b logs them out
+      final Future<Integer> updates = executor.submit(new Callable<Integer>() {
+        public Integer call() throws Exception {
+          start.await();
+          int updated = 0;
+          for (int i = 0; i < tickets; i++) {
+            final TicketGrantingTicket tgt = (TicketGrantingTicket) nodeA.getTicket("TGT-" + i);
+            if (tgt != null) {
+              tgt.grantServiceTicket("ST-" + i, SERVICE, new NeverExpiresExpirationPolicy(), false);
+              updated++;
+            }
+            if (i % 10 == 0) {
+              nodeA.replicate();
+            }
+          }
+          return updated;
+        }
+      });
+      final Future<Integer> deletes = executor.submit(new Callable<Integer>() {
+        public Integer call() throws Exception {
+          start.await();
+          int deleted = 0;
+          for (int i = 0; i < tickets; i += 2) {
+            if (nodeB.deleteTicket("TGT-" + i)) {
+              deleted++;
+            }
+            if (i % 10 == 0) {
+              nodeB.replicate();
+            }
+          }
+          return deleted;
+        }
+      });
+      start.countDown();
+      assertTrue(updates.get(30, TimeUnit.SECONDS) > 0);
+      assertEquals(tickets / 2, deletes.get(30, TimeUnit.SECONDS).intValue());
+    } finally {
+      executor.shutdownNow();
+    }
+    nodeA.replicate();
+    nodeB.replicate();
+
+    // the last change of each ticket wins on both nodes, an update after the delete keeps the ticket
+    for (int i = 0; i < tickets; i++) {
+      final TicketGrantingTicket a = (TicketGrantingTicket) nodeA.getTicket("TGT-" + i);
+      final TicketGrantingTicket b = (TicketGrantingTicket) nodeB.getTicket("TGT-" + i);
+      assertEquals("TGT-" + i, a == null, b == null);
+      if (i % 2 == 1) {
+        assertNotNull("TGT-" + i, a);
+      }
+      if (a != null) {
+        assertEquals("TGT-" + i, a.getCountOfUses(), b.getCountOfUses());
+      }
+    }
+    assertEquals(nodeA.sessionCount(), nodeB.sessionCount());
+  }
+
+  @Test
+  public void tombstoneOutlivesALateUpdate() {
+    final ShardedTicketRegistry nodeA = newNode("node-a", this.transport);
+    final ShardedTicketRegistry nodeB = newNode("node-b", this.transport);
+    nodeA.setTombstoneTtl(TimeUnit.MINUTES.toMillis(1));
+    nodeB.setTombstoneTtl(TimeUnit.MINUTES.toMillis(1));
+    nodeA.addTicket(newTicketGrantingTicket("TGT-1"));
+    nodeA.replicate();
+
+    // the update of node-a is sent after the later logout on node-b
+    ((TicketGrantingTicket) nodeA.getTicket("TGT-1")).grantServiceTicket("ST-1", SERVICE, new NeverExpiresExpirationPolicy(), false);
+    assertTrue(nodeB.deleteTicket("TGT-1"));
+    assertEquals(1, nodeB.replicate());
+    assertNull(nodeA.getTicket("TGT-1"));
+    assertEquals(1, nodeA.replicate());
+    assertNull(nodeB.getTicket("TGT-1"));
+    assertNull(nodeA.getTicket("TGT-1"));
+
+    // the tombstones are kept for tombstoneTtl, then removed
+    final long now = System.currentTimeMillis();
+    nodeA.sweep(now);
+    nodeB.sweep(now);
+    assertEquals(1, nodeA.size());
+    assertEquals(1, nodeB.size());
+    nodeB.sweep(now + TimeUnit.MINUTES.toMillis(2));
+    assertEquals(0, nodeB.size());
+  }
+
+  @Test
+  public void joiningNodeReceivesTheTicketsOfAnotherNode() {
+    final ShardedTicketRegistry nodeA = newNode("node-a", this.transport);
+    final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1");
+    nodeA.addTicket(tgt);
+    nodeA.addTicket(tgt.grantServiceTicket("ST-1", SERVICE, new NeverExpiresExpirationPolicy(), true));
+    nodeA.addTicket(newTicketGrantingTicket("TGT-2"));
+    nodeA.deleteTicket("TGT-2");
+    nodeA.replicate();
+
+    final ShardedTicketRegistry nodeB = newNode("node-b", this.transport);
+    assertEquals(2, this.transport.size());
+    assertEquals(1, nodeB.sessionCount());
+    assertEquals(1, nodeB.serviceTicketCount());
+    assertEquals(1, ((TicketGrantingTicket) nodeB.getTicket("TGT-1")).getCountOfUses());
+    assertNotNull(nodeB.getTicket("ST-1"));
+    // the tombstone is part of the snapshot
+    assertNull(nodeB.getTicket("TGT-2"));
+    assertEquals(3, nodeB.size());
+
+    // changes after the join are replicated both ways
+    nodeA.addTicket(newTicketGrantingTicket("TGT-3"));
+    nodeA.replicate();
+    assertNotNull(nodeB.getTicket("TGT-3"));
+    assertTrue(nodeB.deleteTicket("ST-1"));
+    nodeB.replicate();
+    assertNull(nodeA.getTicket("ST-1"));
+  }
+
+  @Test
+  public void sweeperReschedulesTicketsWithLongerExpirationPolicy() {
+    final ShardedTicketRegistry registry = newNode("node-a", null);
+    registry.setTicketGrantingTicketTimeToKill(60);
+    // remember-me ticket, valid longer than the timeToKill
+    registry.addTicket(new TicketGrantingTicketImpl("TGT-1", this.authentication, new NeverExpiresExpirationPolicy()));
+    registry.addTicket(new TicketGrantingTicketImpl("TGT-2", this.authentication, new ExpiredPolicy()));
+    final long now = System.currentTimeMillis();
+
+    assertEquals(0, registry.sweep(now));
+    assertEquals(2, registry.sessionCount());
+    assertEquals(1, registry.sweep(now + TimeUnit.SECONDS.toMillis(61)));
+    assertNull(registry.getTicket("TGT-2"));
+    assertNotNull(registry.getTicket("TGT-1"));
+    // rescheduled by timeToKill after each sweep
+    assertEquals(0, registry.sweep(now + TimeUnit.SECONDS.toMillis(62)));
+    assertEquals(0, registry.sweep(now + TimeUnit.SECONDS.toMillis(122)));
+    assertEquals(0, registry.sweep(now + TimeUnit.HOURS.toMillis(1)));
+    assertNotNull(registry.getTicket("TGT-1"));
+    assertEquals(1, registry.size());
+    assertFalse(registry.getTicket("TGT-1").isExpired());
+  }
+
+  /* a started node, replicating and sweeping by the test only. */
+  private ShardedTicketRegistry newNode(final String nodeId, final LoopbackReplicationTransport transport) {
+    final ShardedTicketRegistry registry = new ShardedTicketRegistry(4);
+    registry.setNodeId(nodeId);
+    registry.setTransport(transport);
+    registry.setReplicationInterval(TimeUnit.HOURS.toMillis(1));
+    registry.setSweepInterval(TimeUnit.HOURS.toMillis(1));
+    registry.init();
+    this.registries.add(registry);
+    return registry;
+  }
+
+  private TicketGrantingTicket newTicketGrantingTicket(final String id) {
+    return new TicketGrantingTicketImpl(id, this.authentication, new NeverExpiresExpirationPolicy());
+  }
+
+  private static Authentication newAuthentication() {
+    final UsernamePasswordCredential credential = new UsernamePasswordCredential("casuser", "Mellon");
+    final AcceptUsersAuthenticationHandler handler = new AcceptUsersAuthenticationHandler();
+    final Principal principal = new DefaultPrincipalFactory().createPrincipal("casuser");
+    return new AuthenticationBuilder(principal)
+        .addCredential(new BasicCredentialMetaData(credential))
+        .addSuccess(handler.getName(), new DefaultHandlerResult(handler, new BasicCredentialMetaData(credential), principal))
+        .build();
+  }
+
+  /**
+   * Expiration policy of a ticket expired by its policy, e.g. a hard timeout.
+   */
+  private static class ExpiredPolicy implements ExpirationPolicy {
+    private static final long serialVersionUID = 1L;
+
+    public boolean isExpired(final TicketState ticketState) {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.symentis.cas.ticket.registry.support;
+
+import org.jasig.cas.authentication.AcceptUsersAuthenticationHandler;
+import org.jasig.cas.authentication.Authentication;
+import org.jasig.cas.authentication.AuthenticationBuilder;
+import org.jasig.cas.authentication.BasicCredentialMetaData;
+import org.jasig.cas.authentication.DefaultHandlerResult;
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.DefaultPrincipalFactory;
+import org.jasig.cas.authentication.principal.Principal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.TicketGrantingTicketExpirationPolicy;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips of CAS tickets through the CompactTicketCodec, and its rejection of foreign, truncated and
+ * corrupt data.
+ *
+ * @author Robert Oschwald
+ */
+public class CompactTicketCodecTest {
+  private static final String TGT_ID = "TGT-1-hJSE7XRsWYe2cUBhB5ZG5ReJrHuOkgYzSr1jadlawTWXpc6bkC-cas01.example.org";
+  private final CompactTicketCodec codec = new CompactTicketCodec();
+  private Authentication authentication;
+  private TicketGrantingTicket tgt;
+  private ServiceTicket st;
+  private TicketGrantingTicket pgt;
+  private ServiceTicket proxyTicket;
+
+  @Before
+  public void setUp() {
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put("mail", "casuser@example.org");
+    attributes.put("memberOf", new ArrayList<String>(Arrays.asList("staff", "faculty")));
+    attributes.put("employeeNumber", 4711L);
+    attributes.put("passwordChanged", new Date(1400000000000L));
+    this.authentication = newAuthentication(attributes);
+    this.tgt = new TicketGrantingTicketImpl(TGT_ID, this.authentication,
+        new TicketGrantingTicketExpirationPolicy(28800, 7200, TimeUnit.SECONDS));
+    this.st = this.tgt.grantServiceTicket("ST-1-Pb6tvqEffWfwOcCQwPyu-cas01.example.org",
+        new SimpleWebApplicationServiceImpl("https://app.example.org/login/cas"),
+        new MultiTimeUseOrTimeoutExpirationPolicy(1, 10, TimeUnit.SECONDS), true);
+    this.pgt = this.st.grantProxyGrantingTicket("PGT-1-yFQbgLuEa6GfNjNF5yXiWVNlUAdSGl5JmZs1eSnCdDjLrL6sWc-cas01.example.org",
+        this.authentication, new TicketGrantingTicketExpirationPolicy(28800, 7200, TimeUnit.SECONDS));
+    this.proxyTicket = this.pgt.grantServiceTicket("ST-2-Xw3LkQ9dfsq2wYSfVb1m-cas01.example.org",
+        new SimpleWebApplicationServiceImpl("https://backend.example.org/api"),
+        new MultiTimeUseOrTimeoutExpirationPolicy(1, 10, TimeUnit.SECONDS), false);
+  }
+
+  @Test
+  public void roundTripsATicketGrantingTicket() {
+    final TicketGrantingTicket read = (TicketGrantingTicket) roundTrip(this.tgt);
+    assertTicket(this.tgt, read);
+    assertEquals(this.tgt.getCountOfUses(), read.getCountOfUses());
+    assertEquals(this.authentication.getAuthenticationDate(), read.getAuthentication().getAuthenticationDate());
+    assertEquals(this.authentication.getPrincipal().getId(), read.getAuthentication().getPrincipal().getId());
+    assertEquals(this.authentication.getPrincipal().getAttributes(), read.getAuthentication().getPrincipal().getAttributes());
+    assertEquals(this.authentication.getSuccesses().keySet(), read.getAuthentication().getSuccesses().keySet());
+    assertFalse(read.isExpired());
+  }
+
+  @Test
+  public void roundTripsAServiceTicketWithItsTicketGrantingTicket() {
+    final ServiceTicket read = (ServiceTicket) roundTrip(this.st);
+    assertTicket(this.st, read);
+    assertEquals(this.st.getService(), read.getService());
+    assertEquals(this.st.isFromNewLogin(), read.isFromNewLogin());
+    assertTicket(this.tgt, read.getGrantingTicket());
+    assertEquals(this.tgt.getCountOfUses(), read.getGrantingTicket().getCountOfUses());
+  }
+
+  @Test
+  public void roundTripsAProxyChainWithSharedReferences() {
+    final ServiceTicket read = (ServiceTicket) roundTrip(this.proxyTicket);
+    assertTicket(this.proxyTicket, read);
+    final TicketGrantingTicket readPgt = read.getGrantingTicket();
+    assertTicket(this.pgt, readPgt);
+    assertEquals(this.pgt.getProxiedBy(), readPgt.getProxiedBy());
+    assertTicket(this.tgt, readPgt.getGrantingTicket());
+    assertEquals(this.pgt.getChainedAuthentications().size(), readPgt.getChainedAuthentications().size());
+    // the authentication shared by the tickets of the chain is read once
+    assertSame(readPgt.getAuthentication(), readPgt.getGrantingTicket().getAuthentication());
+    assertSame(readPgt.getGrantingTicket(), readPgt.getRoot());
+  }
+
+  @Test
+  public void readsTicketsOfJavaSerialization() {
+    final byte[] data = new JavaTicketSerializer().serialize(this.proxyTicket);
+    final ServiceTicket read = (ServiceTicket) this.codec.deserialize(data);
+    assertTicket(this.proxyTicket, read);
+    assertTicket(this.pgt, read.getGrantingTicket());
+  }
+
+  @Test
+  public void writesLessThanJavaSerialization() {
+    assertTrue(this.codec.serialize(this.proxyTicket).length < new JavaTicketSerializer().serialize(this.proxyTicket).length);
+  }
+
+  @Test
+  public void rejectsAnotherFormatVersion() {
+    final byte[] data = this.codec.serialize(this.tgt);
+    data[1]++;
+    assertRejected(data, "version");
+  }
+
+  @Test
+  public void rejectsChangedFieldsOfAClass() {
+    final byte[] data = this.codec.serialize(this.tgt);
+    // the fingerprint follows the first occurrence of the class name
+    final int fingerprint = indexOf(data, TicketGrantingTicketImpl.class.getName().getBytes(Charset.forName("UTF-8")))
+        + TicketGrantingTicketImpl.class.getName().length();
+    data[fingerprint] ^= 0x55;
+    assertRejected(data, "differ");
+  }
+
+  @Test
+  public void rejectsClassesNotAllowed() {
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put("queue", new PriorityQueue<String>(Arrays.asList("a", "b")));
+    final Ticket ticket = new TicketGrantingTicketImpl("TGT-2", newAuthentication(attributes),
+        new TicketGrantingTicketExpirationPolicy(28800, 7200, TimeUnit.SECONDS));
+    assertRejected(this.codec.serialize(ticket), null);
+    assertRejected(new JavaTicketSerializer().serialize(ticket), null);
+
+    final CompactTicketCodec extended = new CompactTicketCodec();
+    extended.setAllowedClasses(Arrays.asList("java.util.PriorityQueue"));
+    assertTicket(ticket, extended.deserialize(this.codec.serialize(ticket)));
+  }
+
+  @Test
+  public void rejectsTruncatedData() {
+    final byte[] data = this.codec.serialize(this.proxyTicket);
+    for (int length = 0; length < data.length; length++) {
+      assertRejected(Arrays.copyOf(data, length), null);
+    }
+  }
+
+  @Test
+  public void rejectsSizesBeyondTheData() {
+    // map, list and array of 2^31 - 1 elements in a few bytes
+    final byte[] max = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 7};
+    for (byte tag : new byte[]{18, 16, 17}) {
+      assertRejected(concat(new byte[]{(byte) 0xC7, 1, 0, tag, 0}, max), "size");
+    }
+    final byte[] name = "java.lang.String".getBytes(Charset.forName("UTF-8"));
+    assertRejected(concat(concat(new byte[]{(byte) 0xC7, 1, 0, 19, 0, (byte) name.length}, name), max), "size");
+  }
+
+  @Test
+  public void rejectsCorruptData() {
+    assertCorruptDataRejected(this.codec.serialize(this.proxyTicket));
+  }
+
+  @Test
+  public void rejectsCorruptJavaSerialization() {
+    // e.g. corrupt lengths of HashMaps, read with array lengths limited to the data
+    assertCorruptDataRejected(new JavaTicketSerializer().serialize(this.proxyTicket));
+  }
+
+  /* random byte changes fail with IllegalArgumentException, never with another exception or a large allocation */
+  private void assertCorruptDataRejected(final byte[] data) {
+    final Random random = new Random(42);
+    for (int i = 0; i < 2000; i++) {
+      final byte[] corrupt = data.clone();
+      for (int flips = 1 + random.nextInt(3); flips > 0; flips--) {
+        corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt(256);
+      }
+      try {
+        // a flipped value, e.g. in a string, may still give a complete ticket. Anything else is rejected.
+        this.codec.deserialize(corrupt);
+      } catch (IllegalArgumentException e) {
+        // rejected
+      }
+    }
+  }
+
+  private Ticket roundTrip(final Ticket ticket) {
+    final byte[] data = this.codec.serialize(ticket);
+    assertEquals(0xC7, data[0] & 0xFF);
+    final Ticket read = this.codec.deserialize(data);
+    assertNotSame(ticket, read);
+    // a read ticket is written to the same bytes
+    assertArrayEquals(data, this.codec.serialize(read));
+    return read;
+  }
+
+  private static void assertTicket(final Ticket expected, final Ticket actual) {
+    assertEquals(expected.getClass(), actual.getClass());
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getCreationTime(), actual.getCreationTime());
+  }
+
+  private void assertRejected(final byte[] data, final String message) {
+    try {
+      this.codec.deserialize(data);
+      fail("Read " + data.length + " bytes of invalid data");
+    } catch (IllegalArgumentException e) {
+      if (message != null) {
+        assertTrue(e.getMessage(), e.getMessage().contains(message));
+      }
+    }
+  }
+
+  private static int indexOf(final byte[] data, final byte[] part) {
+    for (int i = 0; i + part.length <= data.length; i++) {
+      if (Arrays.equals(part, Arrays.copyOfRange(data, i, i + part.length))) {
+        return i;
+      }
+    }
+    throw new AssertionError("Not found");
+  }
+
+  private static byte[] concat(final byte[] a, final byte[] b) {
+    final byte[] result = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+
+  private static Authentication newAuthentication(final Map<String, Object> attributes) {
+    final UsernamePasswordCredential credential = new UsernamePasswordCredential("casuser", "Mellon");
+    final AcceptUsersAuthenticationHandler handler = new AcceptUsersAuthenticationHandler();
+    final Principal principal = new DefaultPrincipalFactory().createPrincipal("casuser", attributes);
+    return new AuthenticationBuilder(principal)
+        .addCredential(new BasicCredentialMetaData(credential))
+        .addSuccess(handler.getName(), new DefaultHandlerResult(handler, new BasicCredentialMetaData(credential), principal))
+        .addAttribute("authenticationMethod", handler.getName())
+        .build();
+  }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.adaptors.ws;
+
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.Principal;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking variant of the {@link WebserviceClient}.
+ * <P>
+ * The WebserviceAuthenticationHandler waits on the returned Future with its authenticationTimeout,
+ * so a slow webservice backend does not block the container thread for the whole round trip.
+ *
+ * @author Robert Oschwald
+ */
+public interface AsyncWebserviceClient extends WebserviceClient {
+
+  /**
+   * Start the Authentication.
+   *
+   * @param credential The provided credential
+   * @return Future of the {@link Principal}. The Future fails with the GeneralSecurityException
+   * thrown by the authentication, and yields null if the authentication failed without exception.
+   * @throws RejectedExecutionException if the client can not accept further authentications
+   */
+  public Future<Principal> doAuthenticationAsync(final UsernamePasswordCredential credential);
+}
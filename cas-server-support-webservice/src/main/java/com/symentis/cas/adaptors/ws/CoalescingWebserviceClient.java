@@ -0,0 +1,124 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.adaptors.ws;
+
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.Principal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.validation.constraints.NotNull;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Single-flight WebserviceClient decorator.
+ * <P>
+ * Concurrent authentications with the same username and password share one call of the delegate
+ * and its result, e.g. on a double submitted login form. Calls are only shared while in flight; nothing is cached.
+ * Credentials are identified by an HMAC with a random per-process key, so passwords are not held as map keys.
+ *
+ * @author Robert Oschwald
+ */
+public class CoalescingWebserviceClient implements WebserviceClient {
+  private static final Logger log = LoggerFactory.getLogger(CoalescingWebserviceClient.class);
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+  private final ConcurrentHashMap<ByteBuffer, FutureTask<Principal>> _inFlight = new ConcurrentHashMap<ByteBuffer, FutureTask<Principal>>();
+  private final SecretKeySpec _fingerprintKey;
+  private final ThreadLocal<Mac> _mac = new ThreadLocal<Mac>();
+  @NotNull
+  private WebserviceClient _delegate;
+
+  public CoalescingWebserviceClient() {
+    final byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    this._fingerprintKey = new SecretKeySpec(key, HMAC_ALGORITHM);
+  }
+
+  /**
+   * The WebserviceClient performing the authentications.
+   */
+  public void setDelegate(WebserviceClient delegate) {
+    this._delegate = delegate;
+  }
+
+  public Principal doAuthentication(final UsernamePasswordCredential credential) throws GeneralSecurityException {
+    final ByteBuffer fingerprint = fingerprint(credential);
+    final FutureTask<Principal> call = new FutureTask<Principal>(new Callable<Principal>() {
+      public Principal call() throws GeneralSecurityException {
+        return _delegate.doAuthentication(credential);
+      }
+    });
+    FutureTask<Principal> shared = this._inFlight.putIfAbsent(fingerprint, call);
+    if (shared == null) {
+      shared = call;
+      try {
+        call.run();
+      } finally {
+        this._inFlight.remove(fingerprint, call);
+      }
+    } else if (log.isDebugEnabled()) {
+      log.debug("Joining in-flight authentication of " + credential.getUsername());
+    }
+    try {
+      return shared.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the authentication of " + credential.getUsername(), e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /* HMAC of username and password. */
+  private ByteBuffer fingerprint(UsernamePasswordCredential credential) throws GeneralSecurityException {
+    Mac mac = this._mac.get();
+    if (mac == null) {
+      mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(this._fingerprintKey);
+      this._mac.set(mac);
+    }
+    final String username = credential.getUsername();
+    final String password = credential.getPassword();
+    mac.update((username == null ? "" : username).getBytes(UTF8));
+    mac.update((byte) 0);
+    mac.update((password == null ? "" : password).getBytes(UTF8));
+    return ByteBuffer.wrap(mac.doFinal());
+  }
+}
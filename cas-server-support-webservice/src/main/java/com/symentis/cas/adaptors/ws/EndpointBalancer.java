@@ -0,0 +1,132 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.adaptors.ws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects the endpoint of a webservice call among several replicas.
+ * <P>
+ * Power of two choices: of two random healthy endpoints, the one with less outstanding requests is chosen.
+ * An endpoint is unhealthy for unhealthyDuration milliseconds after unhealthyThreshold consecutive transport failures.
+ * If no endpoint is healthy, the one with the least outstanding requests is chosen anyway.
+ *
+ * @author Robert Oschwald
+ */
+final class EndpointBalancer {
+  private final Endpoint[] endpoints;
+  private final int unhealthyThreshold;
+  private final long unhealthyDuration;
+  private final Random random = new Random();
+  /* Latencies of successful calls to any endpoint. */
+  private final LatencyWindow latencies = new LatencyWindow(1024, 100);
+
+  EndpointBalancer(List<String> uris, int unhealthyThreshold, long unhealthyDuration) {
+    this.endpoints = new Endpoint[uris.size()];
+    for (int i = 0; i < this.endpoints.length; i++) {
+      this.endpoints[i] = new Endpoint(uris.get(i));
+    }
+    this.unhealthyThreshold = unhealthyThreshold;
+    this.unhealthyDuration = unhealthyDuration;
+  }
+
+  int size() {
+    return this.endpoints.length;
+  }
+
+  /**
+   * @param exclude endpoint not to select, e.g. the one of the original request of a hedged request. May be null.
+   * @return selected endpoint. Null only if all endpoints but the excluded one are unhealthy.
+   */
+  Endpoint select(Endpoint exclude) {
+    final long now = System.currentTimeMillis();
+    final List<Endpoint> healthy = new ArrayList<Endpoint>(this.endpoints.length);
+    for (Endpoint endpoint : this.endpoints) {
+      if (endpoint != exclude && endpoint.unhealthyUntil <= now) {
+        healthy.add(endpoint);
+      }
+    }
+    if (healthy.isEmpty()) {
+      return exclude == null ? leastOutstanding() : null;
+    }
+    if (healthy.size() == 1) {
+      return healthy.get(0);
+    }
+    final int first = this.random.nextInt(healthy.size());
+    int second = this.random.nextInt(healthy.size() - 1);
+    if (second >= first) {
+      second++;
+    }
+    final Endpoint a = healthy.get(first);
+    final Endpoint b = healthy.get(second);
+    return a.outstanding.get() <= b.outstanding.get() ? a : b;
+  }
+
+  void success(Endpoint endpoint, long latency) {
+    endpoint.consecutiveFailures.set(0);
+    this.latencies.record(latency);
+  }
+
+  void failure(Endpoint endpoint) {
+    if (endpoint.consecutiveFailures.incrementAndGet() >= this.unhealthyThreshold) {
+      endpoint.unhealthyUntil = System.currentTimeMillis() + this.unhealthyDuration;
+      endpoint.consecutiveFailures.set(0);
+    }
+  }
+
+  /**
+   * @return latency in ms at the percentile of the recent successful calls, or -1 if not yet known
+   */
+  long latencyPercentile(double percentile) {
+    return this.latencies.percentile(percentile);
+  }
+
+  private Endpoint leastOutstanding() {
+    Endpoint least = this.endpoints[0];
+    for (Endpoint endpoint : this.endpoints) {
+      if (endpoint.outstanding.get() < least.outstanding.get()) {
+        least = endpoint;
+      }
+    }
+    return least;
+  }
+
+  /**
+   * A webservice replica.
+   */
+  static final class Endpoint {
+    final String uri;
+    final AtomicInteger outstanding = new AtomicInteger();
+    final AtomicInteger consecutiveFailures = new AtomicInteger();
+    volatile long unhealthyUntil;
+
+    Endpoint(String uri) {
+      this.uri = uri;
+    }
+
+    @Override
+    public String toString() {
+      return this.uri;
+    }
+  }
+}
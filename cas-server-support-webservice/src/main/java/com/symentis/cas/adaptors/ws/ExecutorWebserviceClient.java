@@ -0,0 +1,122 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.adaptors.ws;
+
+import com.symentis.cas.trace.LoginTrace;
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.Principal;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import javax.validation.constraints.NotNull;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AsyncWebserviceClient running the authentications of a blocking WebserviceClient
+ * on a bounded thread pool.
+ * <P>
+ * The pool bounds the number of concurrent backend calls. When all threads are busy and the queue is full,
+ * further authentications are rejected immediately instead of occupying more container threads.
+ * A {@link LoginTrace} of the calling thread is continued by the pool thread.
+ *
+ * @author Robert Oschwald
+ */
+public class ExecutorWebserviceClient implements AsyncWebserviceClient, InitializingBean, DisposableBean {
+  @NotNull
+  private WebserviceClient _delegate;
+  private int _corePoolSize = 10;
+  private int _maxPoolSize = 50;
+  private int _queueCapacity = 100;
+  private ThreadPoolExecutor _executor;
+
+  /**
+   * The blocking WebserviceClient performing the authentications.
+   */
+  public void setDelegate(WebserviceClient delegate) {
+    this._delegate = delegate;
+  }
+
+  /** Number of threads kept in the pool. Default is 10. */
+  public void setCorePoolSize(int corePoolSize) {
+    this._corePoolSize = corePoolSize;
+  }
+
+  /** Maximum number of concurrent authentications. Default is 50. */
+  public void setMaxPoolSize(int maxPoolSize) {
+    this._maxPoolSize = maxPoolSize;
+  }
+
+  /** Number of authentications waiting for a thread before further ones are rejected. Default is 100. */
+  public void setQueueCapacity(int queueCapacity) {
+    this._queueCapacity = queueCapacity;
+  }
+
+  public void afterPropertiesSet() throws Exception {
+    if (this._delegate == null) {
+      throw new IllegalStateException("delegate must be set");
+    }
+    if (this._maxPoolSize < this._corePoolSize) {
+      throw new IllegalStateException("maxPoolSize must not be lower than corePoolSize");
+    }
+    final AtomicInteger threadNumber = new AtomicInteger();
+    this._executor = new ThreadPoolExecutor(this._corePoolSize, this._maxPoolSize, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(this._queueCapacity), new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, "ExecutorWebserviceClient-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public void destroy() {
+    if (this._executor != null) {
+      this._executor.shutdownNow();
+    }
+  }
+
+  public Future<Principal> doAuthenticationAsync(final UsernamePasswordCredential credential) {
+    final LoginTrace trace = LoginTrace.capture();
+    return this._executor.submit(new Callable<Principal>() {
+      public Principal call() throws GeneralSecurityException {
+        final LoginTrace previous = LoginTrace.attach(trace);
+        try {
+          return _delegate.doAuthentication(credential);
+        } finally {
+          LoginTrace.detach(previous);
+        }
+      }
+    });
+  }
+
+  /**
+   * Blocking authentication on the calling thread.
+   */
+  public Principal doAuthentication(final UsernamePasswordCredential credential) throws GeneralSecurityException {
+    return this._delegate.doAuthentication(credential);
+  }
+}
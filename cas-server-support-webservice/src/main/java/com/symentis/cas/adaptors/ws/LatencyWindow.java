@@ -0,0 +1,81 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.adaptors.ws;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of the last webservice calls, for percentile based timeouts and delays.
+ * <P>
+ * Recording is O(1). Percentiles are read from a sorted snapshot, which is recomputed every updateInterval calls.
+ *
+ * @author Robert Oschwald
+ */
+final class LatencyWindow {
+  private final long[] latencies;
+  private final int updateInterval;
+  /* guarded by latencies */
+  private int index;
+  private int count;
+  private int sinceUpdate;
+  /* sorted latencies of the last snapshot, null before the first one. */
+  private volatile long[] sorted;
+
+  /**
+   * @param size           number of last latencies to keep
+   * @param updateInterval number of calls between two snapshots, also the minimum number of latencies of a snapshot
+   */
+  LatencyWindow(int size, int updateInterval) {
+    this.latencies = new long[size];
+    this.updateInterval = updateInterval;
+  }
+
+  void record(long latency) {
+    long[] snapshot = null;
+    synchronized (this.latencies) {
+      this.latencies[this.index] = latency;
+      this.index = (this.index + 1) % this.latencies.length;
+      if (this.count < this.latencies.length) {
+        this.count++;
+      }
+      if (++this.sinceUpdate >= this.updateInterval) {
+        this.sinceUpdate = 0;
+        snapshot = Arrays.copyOf(this.latencies, this.count);
+      }
+    }
+    if (snapshot != null) {
+      Arrays.sort(snapshot);
+      this.sorted = snapshot;
+    }
+  }
+
+  /**
+   * @param percentile e.g. 0.99
+   * @return latency in ms at the percentile of the last snapshot, or -1 if there is no snapshot yet
+   */
+  long percentile(double percentile) {
+    final long[] snapshot = this.sorted;
+    if (snapshot == null) {
+      return -1;
+    }
+    final int rank = (int) Math.ceil(snapshot.length * percentile) - 1;
+    return snapshot[Math.max(0, Math.min(snapshot.length - 1, rank))];
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.adaptors.ws;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.Principal;
+
+import javax.validation.constraints.NotNull;
+import java.security.GeneralSecurityException;
+
+/**
+ * WebserviceClient decorator measuring the authentications of its delegate.
+ * <P>
+ * Publishes to the metricRegistry, named after this class:
+ * <ul>
+ * <li>latency: timer of all calls of the delegate</li>
+ * <li>success: calls returning a principal</li>
+ * <li>failure: calls rejecting the credentials (no principal, or a GeneralSecurityException)</li>
+ * <li>error: calls failing with a {@link WebserviceUnavailableException} or a RuntimeException</li>
+ * </ul>
+ * The metrics are available over JMX with a JmxReporter, and at /statistics/metrics of CAS.
+ *
+ * @author Robert Oschwald
+ */
+public class MetricsWebserviceClient implements WebserviceClient {
+  @NotNull
+  private WebserviceClient _delegate;
+  private Timer _latency = new Timer();
+  private Meter _success = new Meter();
+  private Meter _failure = new Meter();
+  private Meter _error = new Meter();
+
+  /** The WebserviceClient performing the authentications. */
+  public void setDelegate(WebserviceClient delegate) {
+    this._delegate = delegate;
+  }
+
+  /** Registry to publish the metrics to, e.g. the "metrics" registry of CAS. */
+  public void setMetricRegistry(MetricRegistry metricRegistry) {
+    this._latency = metricRegistry.timer(MetricRegistry.name(MetricsWebserviceClient.class, "latency"));
+    this._success = metricRegistry.meter(MetricRegistry.name(MetricsWebserviceClient.class, "success"));
+    this._failure = metricRegistry.meter(MetricRegistry.name(MetricsWebserviceClient.class, "failure"));
+    this._error = metricRegistry.meter(MetricRegistry.name(MetricsWebserviceClient.class, "error"));
+  }
+
+  public Principal doAuthentication(UsernamePasswordCredential credential) throws GeneralSecurityException {
+    final Timer.Context timer = this._latency.time();
+    try {
+      final Principal principal = this._delegate.doAuthentication(credential);
+      (principal != null ? this._success : this._failure).mark();
+      return principal;
+    } catch (WebserviceUnavailableException e) {
+      this._error.mark();
+      throw e;
+    } catch (GeneralSecurityException e) {
+      this._failure.mark();
+      throw e;
+    } catch (RuntimeException e) {
+      this._error.mark();
+      throw e;
+    } finally {
+      timer.stop();
+    }
+  }
+
+  public Timer getLatency() {
+    return this._latency;
+  }
+
+  public Meter getSuccess() {
+    return this._success;
+  }
+
+  public Meter getFailure() {
+    return this._failure;
+  }
+
+  public Meter getError() {
+    return this._error;
+  }
+}
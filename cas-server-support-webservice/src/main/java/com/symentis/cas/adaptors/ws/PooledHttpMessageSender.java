@@ -0,0 +1,167 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.adaptors.ws;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ws.transport.WebServiceConnection;
+import org.springframework.ws.transport.http.HttpComponentsConnection;
+import org.springframework.ws.transport.http.HttpComponentsMessageSender;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pooled keep-alive HTTP transport for webservice clients, based on Apache HttpComponents.
+ * <p/>
+ * Set as messageSender of a {@link WebserviceClientBase}. Connections to the webservice producer are
+ * kept open and reused, so a login does not pay for TCP (and SSL) connection setup.
+ * Adds to the HttpComponentsMessageSender a default per route connection limit, a keep-alive duration for
+ * responses without Keep-Alive header, and a background thread closing idle and expired connections.
+ * <p/>
+ * Inherited properties: maxTotalConnections, maxConnectionsPerHost, connectionTimeout and readTimeout (ms).
+ * A {@link RequestTimeout} set by the calling thread overrides the readTimeout of its requests.
+ *
+ * @author Robert Oschwald
+ */
+public class PooledHttpMessageSender extends HttpComponentsMessageSender {
+  private static final Logger log = LoggerFactory.getLogger(PooledHttpMessageSender.class);
+  private int _defaultMaxConnectionsPerRoute = 20;
+  private long _keepAliveDuration = 30000;
+  private long _idleConnectionTimeout = 30000;
+  private long _idleEvictionInterval = 10000;
+  private ScheduledExecutorService _evictor;
+
+  /**
+   * Maximum number of connections per route (host), if not configured per host
+   * by maxConnectionsPerHost. Default is 20.
+   */
+  public void setDefaultMaxConnectionsPerRoute(int defaultMaxConnectionsPerRoute) {
+    if (defaultMaxConnectionsPerRoute <= 0) {
+      throw new IllegalArgumentException("defaultMaxConnectionsPerRoute must be positive");
+    }
+    this._defaultMaxConnectionsPerRoute = defaultMaxConnectionsPerRoute;
+  }
+
+  /**
+   * Time in milliseconds a connection is kept alive if the response has no Keep-Alive header.
+   * Should be lower than the keep-alive timeout of the webservice producer. Default is 30 seconds.
+   */
+  public void setKeepAliveDuration(long keepAliveDuration) {
+    this._keepAliveDuration = keepAliveDuration;
+  }
+
+  /**
+   * Time in milliseconds after which an unused pooled connection is closed. Default is 30 seconds.
+   */
+  public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+    this._idleConnectionTimeout = idleConnectionTimeout;
+  }
+
+  /**
+   * Interval in milliseconds of closing idle and expired connections. 0 disables it. Default is 10 seconds.
+   */
+  public void setIdleEvictionInterval(long idleEvictionInterval) {
+    this._idleEvictionInterval = idleEvictionInterval;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    final ClientConnectionManager connectionManager = getHttpClient().getConnectionManager();
+    // before super, so per host limits of maxConnectionsPerHost take precedence
+    if (connectionManager instanceof PoolingClientConnectionManager) {
+      ((PoolingClientConnectionManager) connectionManager).setDefaultMaxPerRoute(this._defaultMaxConnectionsPerRoute);
+    } else if (connectionManager instanceof ThreadSafeClientConnManager) {
+      ((ThreadSafeClientConnManager) connectionManager).setDefaultMaxPerRoute(this._defaultMaxConnectionsPerRoute);
+    } else {
+      log.warn("Cannot set defaultMaxConnectionsPerRoute on " + connectionManager.getClass().getName());
+    }
+    super.afterPropertiesSet();
+    final HttpClient httpClient = getHttpClient();
+    if (httpClient instanceof AbstractHttpClient) {
+      ((AbstractHttpClient) httpClient).setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+          final long duration = super.getKeepAliveDuration(response, context);
+          return duration > 0 ? duration : _keepAliveDuration;
+        }
+      });
+    }
+    if (this._idleEvictionInterval > 0) {
+      startEvictor(connectionManager);
+    }
+  }
+
+  @Override
+  public WebServiceConnection createConnection(URI uri) throws IOException {
+    final WebServiceConnection connection = super.createConnection(uri);
+    final Integer readTimeout = RequestTimeout.get();
+    if (readTimeout != null && connection instanceof HttpComponentsConnection) {
+      // request params take precedence over the client params
+      ((HttpComponentsConnection) connection).getHttpPost().getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT, readTimeout);
+    }
+    return connection;
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    synchronized (this) {
+      if (this._evictor != null) {
+        this._evictor.shutdownNow();
+        this._evictor = null;
+      }
+    }
+    super.destroy();
+  }
+
+  private synchronized void startEvictor(final ClientConnectionManager connectionManager) {
+    this._evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, "PooledHttpMessageSender-evictor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this._evictor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          connectionManager.closeExpiredConnections();
+          connectionManager.closeIdleConnections(_idleConnectionTimeout, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+          // keep the evictor scheduled
+          log.error("Error closing idle connections", e);
+        }
+      }
+    }, this._idleEvictionInterval, this._idleEvictionInterval, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.adaptors.ws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Micro-batcher of concurrent webservice requests.
+ * <P>
+ * The first caller of a batch waits up to batchWindow milliseconds (or until maxBatchSize requests are collected)
+ * for concurrent requests, sends them in one message through the {@link Sender}, and hands each waiting caller
+ * its own response. No extra thread is involved. A failed batch fails all its requests.
+ *
+ * @param <Q> request type
+ * @param <R> response type
+ * @author Robert Oschwald
+ */
+public final class RequestBatcher<Q, R> {
+  private final Sender<Q, R> _sender;
+  private final long _batchWindow;
+  private final int _maxBatchSize;
+  private final Object _lock = new Object();
+  /* Batch collecting requests, guarded by _lock. */
+  private Batch<Q, R> _open;
+
+  /**
+   * Sends a batch of requests in one message.
+   */
+  public interface Sender<Q, R> {
+    /**
+     * @param requests requests of the batch
+     * @return the responses, in the order of the requests
+     */
+    List<R> send(List<Q> requests);
+  }
+
+  /**
+   * @param sender       sends the batches
+   * @param batchWindow  maximum time in milliseconds a batch collects requests
+   * @param maxBatchSize maximum number of requests per batch
+   */
+  public RequestBatcher(Sender<Q, R> sender, long batchWindow, int maxBatchSize) {
+    if (batchWindow <= 0 || maxBatchSize <= 0) {
+      throw new IllegalArgumentException("batchWindow and maxBatchSize must be positive");
+    }
+    this._sender = sender;
+    this._batchWindow = batchWindow;
+    this._maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Send the request within the next batch and wait for its response.
+   *
+   * @param request the request
+   * @return the response to the request
+   * @throws RuntimeException the exception of the Sender, if the batch failed
+   */
+  public R submit(Q request) {
+    final Batch<Q, R> batch;
+    final int index;
+    final boolean leader;
+    synchronized (this._lock) {
+      leader = this._open == null;
+      if (leader) {
+        this._open = new Batch<Q, R>();
+      }
+      batch = this._open;
+      index = batch.requests.size();
+      batch.requests.add(request);
+      if (batch.requests.size() >= this._maxBatchSize) {
+        // full. Wake up the leader.
+        this._open = null;
+        this._lock.notifyAll();
+      }
+    }
+    if (leader) {
+      awaitBatch(batch);
+      send(batch);
+    }
+    return batch.await(index);
+  }
+
+  /* waits until the batch window closes or the batch is full. */
+  private void awaitBatch(Batch<Q, R> batch) {
+    boolean interrupted = false;
+    synchronized (this._lock) {
+      final long deadline = System.currentTimeMillis() + this._batchWindow;
+      long remaining = this._batchWindow;
+      while (this._open == batch && remaining > 0) {
+        try {
+          this._lock.wait(remaining);
+        } catch (InterruptedException e) {
+          // send the batch anyway, the other callers wait for it
+          interrupted = true;
+          break;
+        }
+        remaining = deadline - System.currentTimeMillis();
+      }
+      if (this._open == batch) {
+        this._open = null;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void send(Batch<Q, R> batch) {
+    try {
+      final List<R> responses = this._sender.send(batch.requests);
+      if (responses == null || responses.size() != batch.requests.size()) {
+        throw new IllegalStateException("Expected " + batch.requests.size() + " responses, got "
+            + (responses == null ? 0 : responses.size()));
+      }
+      batch.complete(responses, null);
+    } catch (RuntimeException e) {
+      batch.complete(null, e);
+    } catch (Error e) {
+      batch.complete(null, new IllegalStateException("Batch failed", e));
+      throw e;
+    }
+  }
+
+  /**
+   * Requests collected for one message.
+   */
+  private static final class Batch<Q, R> {
+    /* guarded by the batchers lock until sent, then read only. */
+    final List<Q> requests = new ArrayList<Q>();
+    final CountDownLatch done = new CountDownLatch(1);
+    private List<R> responses;
+    private RuntimeException failure;
+
+    void complete(List<R> responses, RuntimeException failure) {
+      this.responses = responses;
+      this.failure = failure;
+      this.done.countDown();
+    }
+
+    R await(int index) {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          this.done.await();
+          break;
+        } catch (InterruptedException e) {
+          // the response is bound by the read timeout of the sender
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (this.failure != null) {
+        throw this.failure;
+      }
+      return this.responses.get(index);
+    }
+  }
+}
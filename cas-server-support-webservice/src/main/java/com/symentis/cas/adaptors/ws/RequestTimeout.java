@@ -0,0 +1,56 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.adaptors.ws;
+
+/**
+ * Read timeout of the webservice requests sent by the calling thread.
+ * <P>
+ * Set by the ResilientWebserviceClient around a call of its delegate and applied by the
+ * PooledHttpMessageSender to each request, overriding its configured readTimeout.
+ *
+ * @author Robert Oschwald
+ */
+public final class RequestTimeout {
+  private static final ThreadLocal<Integer> _readTimeout = new ThreadLocal<Integer>();
+
+  private RequestTimeout() {
+  }
+
+  /**
+   * Set the read timeout of the following requests of the calling thread.
+   *
+   * @param readTimeout timeout in milliseconds
+   */
+  public static void set(int readTimeout) {
+    _readTimeout.set(readTimeout);
+  }
+
+  /**
+   * @return read timeout in milliseconds set for the calling thread, or null if none
+   */
+  public static Integer get() {
+    return _readTimeout.get();
+  }
+
+  /** Remove the read timeout of the calling thread. */
+  public static void clear() {
+    _readTimeout.remove();
+  }
+}
@@ -0,0 +1,250 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.adaptors.ws;
+
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.Principal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.validation.constraints.NotNull;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebserviceClient decorator protecting the webservice backend and the CAS server from each other.
+ * <P>
+ * <ul>
+ * <li>Bulkhead: at most maxConcurrentCalls authentications are in flight. Further calls wait at most
+ * bulkheadWait milliseconds for a permit.</li>
+ * <li>Circuit breaker: if at least failureRateThreshold percent of the last windowSize calls failed or took
+ * longer than slowCallThreshold milliseconds, the circuit opens and calls fail fast for openDuration milliseconds.
+ * Then a single trial call decides whether it closes again.</li>
+ * <li>Adaptive timeout: the read timeout of the backend requests follows the observed p99 latency times
+ * timeoutMultiplier, within minTimeout and maxTimeout. Applied by the {@link PooledHttpMessageSender}.</li>
+ * </ul>
+ * All these fail with a {@link WebserviceUnavailableException}. A failed authentication (no principal, or another
+ * GeneralSecurityException from the delegate) counts as a successful backend call.
+ *
+ * @author Robert Oschwald
+ */
+public class ResilientWebserviceClient implements WebserviceClient {
+  private static final Logger log = LoggerFactory.getLogger(ResilientWebserviceClient.class);
+  private static final int CLOSED = 0;
+  private static final int OPEN = 1;
+  private static final int HALF_OPEN = 2;
+
+  @NotNull
+  private WebserviceClient _delegate;
+  private Semaphore _bulkhead = new Semaphore(50);
+  private long _bulkheadWait = 100;
+  private int _windowSize = 50;
+  private int _minimumCalls = 20;
+  private int _failureRateThreshold = 50;
+  private long _slowCallThreshold = 3000;
+  private long _openDuration = 10000;
+  private double _timeoutMultiplier = 2.0;
+  private int _minTimeout = 500;
+  private int _maxTimeout = 5000;
+
+  /* Circuit state, guarded by this. */
+  private int _state = CLOSED;
+  private long _openedAt;
+  private boolean[] _outcomes = new boolean[this._windowSize];
+  private int _outcomeIndex;
+  private int _outcomeCount;
+  private int _failureCount;
+
+  /* Latencies of the last calls in ms. p99 recomputed every 100 calls. */
+  private final LatencyWindow _latencies = new LatencyWindow(1024, 100);
+
+  /** The WebserviceClient performing the authentications. */
+  public void setDelegate(WebserviceClient delegate) {
+    this._delegate = delegate;
+  }
+
+  /** Maximum number of concurrent calls of the delegate. Default is 50. */
+  public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+    this._bulkhead = new Semaphore(maxConcurrentCalls);
+  }
+
+  /** Time in milliseconds a call waits for a free slot of the bulkhead. Default is 100. */
+  public void setBulkheadWait(long bulkheadWait) {
+    this._bulkheadWait = bulkheadWait;
+  }
+
+  /** Number of last calls the failure rate is computed from. Default is 50. */
+  public synchronized void setWindowSize(int windowSize) {
+    if (windowSize <= 0) {
+      throw new IllegalArgumentException("windowSize must be positive");
+    }
+    this._windowSize = windowSize;
+    this._outcomes = new boolean[windowSize];
+    this._outcomeIndex = 0;
+    this._outcomeCount = 0;
+    this._failureCount = 0;
+  }
+
+  /** Minimum number of calls in the window before the circuit may open. Default is 20. */
+  public void setMinimumCalls(int minimumCalls) {
+    this._minimumCalls = minimumCalls;
+  }
+
+  /** Failure rate in percent which opens the circuit. Default is 50. */
+  public void setFailureRateThreshold(int failureRateThreshold) {
+    this._failureRateThreshold = failureRateThreshold;
+  }
+
+  /** Calls taking longer than this many milliseconds count as failed. Default is 3000. */
+  public void setSlowCallThreshold(long slowCallThreshold) {
+    this._slowCallThreshold = slowCallThreshold;
+  }
+
+  /** Time in milliseconds the circuit stays open before a trial call. Default is 10000. */
+  public void setOpenDuration(long openDuration) {
+    this._openDuration = openDuration;
+  }
+
+  /** Factor applied to the observed p99 latency to get the read timeout. Default is 2. */
+  public void setTimeoutMultiplier(double timeoutMultiplier) {
+    this._timeoutMultiplier = timeoutMultiplier;
+  }
+
+  /** Lower bound of the adaptive read timeout in milliseconds. Default is 500. */
+  public void setMinTimeout(int minTimeout) {
+    this._minTimeout = minTimeout;
+  }
+
+  /** Upper bound of the adaptive read timeout in milliseconds. Used until enough latencies are observed. Default is 5000. */
+  public void setMaxTimeout(int maxTimeout) {
+    this._maxTimeout = maxTimeout;
+  }
+
+  /** @return current adaptive read timeout in milliseconds */
+  public int getTimeout() {
+    final long p99 = this._latencies.percentile(0.99);
+    if (p99 < 0) {
+      return this._maxTimeout;
+    }
+    return (int) Math.max(this._minTimeout, Math.min(this._maxTimeout, Math.round(p99 * this._timeoutMultiplier)));
+  }
+
+  /** @return true if calls currently fail fast */
+  public synchronized boolean isOpen() {
+    return this._state != CLOSED;
+  }
+
+  public Principal doAuthentication(final UsernamePasswordCredential credential) throws GeneralSecurityException {
+    if (!acquirePermission()) {
+      throw new WebserviceUnavailableException("Webservice circuit open");
+    }
+    boolean acquired;
+    try {
+      acquired = this._bulkhead.tryAcquire(this._bulkheadWait, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      acquired = false;
+    }
+    if (!acquired) {
+      releasePermission();
+      throw new WebserviceUnavailableException("Webservice bulkhead full");
+    }
+    final long start = System.currentTimeMillis();
+    boolean failed = true;
+    RequestTimeout.set(getTimeout());
+    try {
+      final Principal principal = this._delegate.doAuthentication(credential);
+      failed = false;
+      return principal;
+    } catch (WebserviceUnavailableException e) {
+      throw e;
+    } catch (GeneralSecurityException e) {
+      // the backend answered
+      failed = false;
+      throw e;
+    } catch (RuntimeException e) {
+      throw new WebserviceUnavailableException("Webservice call failed", e);
+    } finally {
+      RequestTimeout.clear();
+      this._bulkhead.release();
+      final long latency = System.currentTimeMillis() - start;
+      this._latencies.record(latency);
+      recordOutcome(failed || latency > this._slowCallThreshold);
+    }
+  }
+
+  /* false if the circuit is open. Lets a single trial call pass after openDuration. */
+  private synchronized boolean acquirePermission() {
+    if (this._state == CLOSED) {
+      return true;
+    }
+    if (this._state == OPEN && System.currentTimeMillis() - this._openedAt >= this._openDuration) {
+      this._state = HALF_OPEN;
+      return true;
+    }
+    return false;
+  }
+
+  /* gives back the permission of a call which did not reach the delegate. */
+  private synchronized void releasePermission() {
+    if (this._state == HALF_OPEN) {
+      this._state = OPEN;
+    }
+  }
+
+  private synchronized void recordOutcome(boolean failed) {
+    if (this._state == HALF_OPEN) {
+      if (failed) {
+        open();
+      } else {
+        log.info("Webservice circuit closed");
+        this._state = CLOSED;
+        Arrays.fill(this._outcomes, false);
+        this._outcomeCount = 0;
+        this._failureCount = 0;
+      }
+      return;
+    }
+    if (this._outcomeCount == this._windowSize) {
+      if (this._outcomes[this._outcomeIndex]) {
+        this._failureCount--;
+      }
+    } else {
+      this._outcomeCount++;
+    }
+    this._outcomes[this._outcomeIndex] = failed;
+    if (failed) {
+      this._failureCount++;
+    }
+    this._outcomeIndex = (this._outcomeIndex + 1) % this._windowSize;
+    if (this._state == CLOSED && this._outcomeCount >= this._minimumCalls
+        && this._failureCount * 100 >= this._failureRateThreshold * this._outcomeCount) {
+      open();
+    }
+  }
+
+  private void open() {
+    log.warn("Webservice circuit opened. Failing fast for " + this._openDuration + " ms");
+    this._state = OPEN;
+    this._openedAt = System.currentTimeMillis();
+  }
+}
@@ -19,33 +19,332 @@
 
 package com.symentis.cas.adaptors.ws;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.sun.xml.wss.ProcessingContext;
 import com.sun.xml.wss.XWSSProcessor;
+import com.sun.xml.wss.XWSSProcessorFactory;
 import com.sun.xml.wss.impl.callback.PasswordCallback;
 import com.sun.xml.wss.impl.callback.UsernameCallback;
+import com.symentis.cas.trace.LoginTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.core.io.Resource;
 import org.springframework.ws.WebServiceMessage;
+import org.springframework.ws.client.WebServiceClientException;
+import org.springframework.ws.client.WebServiceIOException;
+import org.springframework.ws.client.WebServiceTransportException;
 import org.springframework.ws.client.core.WebServiceMessageCallback;
 import org.springframework.ws.client.core.support.WebServiceGatewaySupport;
+import org.springframework.ws.client.support.interceptor.ClientInterceptor;
+import org.springframework.ws.context.MessageContext;
 import org.springframework.ws.soap.saaj.SaajSoapMessage;
 
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.UnsupportedCallbackException;
 import javax.xml.soap.SOAPMessage;
-import javax.xml.transform.TransformerException;
-import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
  * Baseclass for Webservice Client implementations. Supports WSSE Header.
+ * <p/>
+ * The security configuration is parsed once, on initialization of the gateway.
+ * The resulting XWSSProcessor is shared by all requests. The WSSE username and password of a request
+ * are handed to its callback handler bound to the calling thread, see {@link #createSecurityHeaderCallback}.
+ * <p/>
+ * Requests are sent by {@link #marshalSendAndReceive(Object, WebServiceMessageCallback)} to the defaultUri,
+ * or balanced over the endpointUris of several webservice replicas, see {@link EndpointBalancer}.
+ * With several endpoints, a request which is not answered within the hedgeDelayPercentile of the recent latencies
+ * is hedged: it is sent to a second endpoint as well, and the first answer wins. A request failing with a transport
+ * error before the hedge delay is sent to the second endpoint at once. Hedging is disabled by default, as a hedged request
+ * may be processed by both endpoints: the authenticate call of the backend must be idempotent, e.g. must not count a
+ * wrong password twice towards an account lockout.
+ * <p/>
+ * With a batchWindow, subclasses may collect concurrent requests in a {@link RequestBatcher} and send them in one message.
+ * <p/>
+ * With a metricRegistry, the round trip time of each sent message and the time of adding the WSSE header
+ * are published as the timers roundtrip and wsse, named after the client class.
+ * <p/>
+ * The MARSHAL, WSSE, SEND and UNMARSHAL phases of a request are recorded to a running {@link LoginTrace}.
  *
  * @author Robert Oschwald
  */
-public abstract class WebserviceClientBase extends WebServiceGatewaySupport {
-  protected static XWSSProcessor _scProcessor;
+public abstract class WebserviceClientBase extends WebServiceGatewaySupport implements DisposableBean {
+  private static final Logger _log = LoggerFactory.getLogger(WebserviceClientBase.class);
+  /* WSSE credentials of the request currently secured by the calling thread. */
+  private static final ThreadLocal<String[]> _wsseCredentials = new ThreadLocal<String[]>();
+  /* Compiled security configuration, shared by all requests. */
+  protected volatile XWSSProcessor _scProcessor;
   private Resource _securityConfigResource;
+  private List<String> _endpointUris;
+  private int _unhealthyThreshold = 3;
+  private long _unhealthyDuration = 10000;
+  private double _hedgeDelayPercentile = 0;
+  private long _minHedgeDelay = 50;
+  private int _maxHedgeThreads = 50;
+  private long _batchWindow = 0;
+  private int _maxBatchSize = 50;
+  private EndpointBalancer _balancer;
+  private ThreadPoolExecutor _hedgeExecutor;
+  /* Metrics. Not registered, unless a metricRegistry is set. */
+  private volatile Timer _roundTrip = new Timer();
+  private volatile Timer _wsse = new Timer();
+
+  /**
+   * Compiles the security configuration, if one is set.
+   * Sets up the endpoint balancing, if endpointUris are set.
+   */
+  @Override
+  protected void initGateway() throws Exception {
+    super.initGateway();
+    // last interceptor, so SEND starts right before the transport
+    final ClientInterceptor[] interceptors = getInterceptors();
+    final int count = interceptors == null ? 0 : interceptors.length;
+    final ClientInterceptor[] traced = new ClientInterceptor[count + 1];
+    if (count > 0) {
+      System.arraycopy(interceptors, 0, traced, 0, count);
+    }
+    traced[count] = new TraceInterceptor();
+    setInterceptors(traced);
+    if (this._securityConfigResource != null) {
+      this._scProcessor = compileSecurityConfiguration(this._securityConfigResource);
+    }
+    if (this._endpointUris != null && !this._endpointUris.isEmpty()) {
+      this._balancer = new EndpointBalancer(this._endpointUris, this._unhealthyThreshold, this._unhealthyDuration);
+      if (this._hedgeDelayPercentile > 0 && this._endpointUris.size() > 1) {
+        this._hedgeExecutor = new ThreadPoolExecutor(0, this._maxHedgeThreads, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "WebserviceClient-hedge");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Registry to publish the metrics of this client to. Default is none.
+   */
+  public void setMetricRegistry(MetricRegistry metricRegistry) {
+    this._roundTrip = metricRegistry.timer(MetricRegistry.name(getClass(), "roundtrip"));
+    this._wsse = metricRegistry.timer(MetricRegistry.name(getClass(), "wsse"));
+  }
+
+  public void destroy() {
+    if (this._hedgeExecutor != null) {
+      this._hedgeExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Send the request to the defaultUri, or to one of the endpointUris, and return the unmarshalled response.
+   * Hedges the request if configured.
+   *
+   * @param request  the request payload object
+   * @param callback request callback, e.g. from {@link #createSecurityHeaderCallback}. May be null.
+   * @return the response payload object
+   */
+  protected Object marshalSendAndReceive(final Object request, final WebServiceMessageCallback callback) {
+    final EndpointBalancer balancer = this._balancer;
+    if (balancer == null) {
+      return send(getDefaultUri(), request, callback);
+    }
+    final EndpointBalancer.Endpoint primary = balancer.select(null);
+    final long hedgeDelay = this._hedgeExecutor == null ? -1 : balancer.latencyPercentile(this._hedgeDelayPercentile);
+    if (hedgeDelay < 0) {
+      return send(balancer, primary, request, callback);
+    }
+    return sendHedged(balancer, primary, Math.max(hedgeDelay, this._minHedgeDelay), request, callback);
+  }
+
+  /*
+   * Sends to the primary endpoint. If not answered within hedgeDelay, also sends to a second one.
+   * Returns the first successful answer.
+   */
+  private Object sendHedged(final EndpointBalancer balancer, final EndpointBalancer.Endpoint primary, final long hedgeDelay,
+                            final Object request, final WebServiceMessageCallback callback) {
+    final ExecutorCompletionService<Object> completion = new ExecutorCompletionService<Object>(this._hedgeExecutor);
+    final List<Future<Object>> calls = new ArrayList<Future<Object>>(2);
+    try {
+      calls.add(completion.submit(createSendTask(balancer, primary, request, callback)));
+    } catch (RejectedExecutionException e) {
+      // all hedge threads busy
+      return send(balancer, primary, request, callback);
+    }
+    try {
+      Future<Object> answered = completion.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+      if (answered == null) {
+        final EndpointBalancer.Endpoint secondary = balancer.select(primary);
+        if (secondary != null) {
+          try {
+            calls.add(completion.submit(createSendTask(balancer, secondary, request, callback)));
+            if (_log.isDebugEnabled()) {
+              _log.debug("Hedging request to " + primary + " after " + hedgeDelay + " ms with " + secondary);
+            }
+          } catch (RejectedExecutionException e) {
+            // no hedge, wait for the primary
+          }
+        }
+        answered = completion.take();
+      }
+      try {
+        return answered.get();
+      } catch (ExecutionException e) {
+        if (calls.size() == 1) {
+          // the primary failed before the hedge delay, try another endpoint on transport errors
+          final EndpointBalancer.Endpoint secondary = isTransportFailure(e.getCause()) ? balancer.select(primary) : null;
+          if (secondary == null) {
+            throw unwrap(e);
+          }
+          if (_log.isDebugEnabled()) {
+            _log.debug("Request to " + primary + " failed, retrying with " + secondary);
+          }
+          return send(balancer, secondary, request, callback);
+        }
+        // the other request may still succeed
+        try {
+          return completion.take().get();
+        } catch (ExecutionException other) {
+          throw unwrap(other);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new WebServiceIOException("Interrupted while waiting for the webservice response");
+    } finally {
+      for (Future<Object> call : calls) {
+        call.cancel(true);
+      }
+    }
+  }
 
+  /**
+   * Batcher of concurrent requests, if a batchWindow is configured.
+   *
+   * @param sender sends a batch of requests in one message, e.g. by {@link #marshalSendAndReceive}
+   * @return the batcher, or null if batching is disabled
+   */
+  protected <Q, R> RequestBatcher<Q, R> createRequestBatcher(RequestBatcher.Sender<Q, R> sender) {
+    if (this._batchWindow <= 0) {
+      return null;
+    }
+    return new RequestBatcher<Q, R>(sender, this._batchWindow, this._maxBatchSize);
+  }
+
+  /* task sending the request on a hedge thread, with the read timeout of the calling thread. */
+  private Callable<Object> createSendTask(final EndpointBalancer balancer, final EndpointBalancer.Endpoint endpoint,
+                                          final Object request, final WebServiceMessageCallback callback) {
+    final Integer readTimeout = RequestTimeout.get();
+    return new Callable<Object>() {
+      public Object call() {
+        if (readTimeout != null) {
+          RequestTimeout.set(readTimeout);
+        }
+        try {
+          return send(balancer, endpoint, request, callback);
+        } finally {
+          RequestTimeout.clear();
+        }
+      }
+    };
+  }
+
+  /* sends to the endpoint and tracks its outstanding requests and health. */
+  private Object send(EndpointBalancer balancer, EndpointBalancer.Endpoint endpoint, Object request, WebServiceMessageCallback callback) {
+    endpoint.outstanding.incrementAndGet();
+    final long start = System.currentTimeMillis();
+    boolean transportFailure = false;
+    try {
+      return send(endpoint.uri, request, callback);
+    } catch (WebServiceIOException e) {
+      transportFailure = true;
+      throw e;
+    } catch (WebServiceTransportException e) {
+      transportFailure = true;
+      throw e;
+    } finally {
+      endpoint.outstanding.decrementAndGet();
+      if (transportFailure) {
+        balancer.failure(endpoint);
+      } else {
+        balancer.success(endpoint, System.currentTimeMillis() - start);
+      }
+    }
+  }
+
+  private Object send(String uri, Object request, WebServiceMessageCallback callback) {
+    final Timer.Context timer = this._roundTrip.time();
+    LoginTrace.enter(LoginTrace.Phase.MARSHAL);
+    try {
+      if (callback == null) {
+        return getWebServiceTemplate().marshalSendAndReceive(uri, request);
+      }
+      return getWebServiceTemplate().marshalSendAndReceive(uri, request, callback);
+    } finally {
+      timer.stop();
+      // phases not reached on errors are ignored
+      LoginTrace.exit(LoginTrace.Phase.MARSHAL);
+      LoginTrace.exit(LoginTrace.Phase.SEND);
+      LoginTrace.exit(LoginTrace.Phase.UNMARSHAL);
+    }
+  }
+
+  private static boolean isTransportFailure(Throwable e) {
+    return e instanceof WebServiceIOException || e instanceof WebServiceTransportException;
+  }
+
+  private static RuntimeException unwrap(ExecutionException e) {
+    final Throwable cause = e.getCause();
+    if (cause instanceof RuntimeException) {
+      return (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new IllegalStateException(cause);
+  }
+
+  /**
+   * Callback adding a WSSE header with the given credentials to the request,
+   * using the compiled security configuration.
+   *
+   * @param username WSSE username
+   * @param password WSSE password
+   * @return the message callback
+   */
+  protected WebServiceMessageCallback createSecurityHeaderCallback(String username, String password) {
+    final XWSSProcessor processor = this._scProcessor;
+    if (processor == null) {
+      throw new IllegalStateException("No security configuration compiled. Set the securityConfigResource.");
+    }
+    return new LocalWebServiceMessageCallback(processor, username, password);
+  }
+
+  /* parses the XWSS security configuration. Called once per configuration resource. */
+  private static XWSSProcessor compileSecurityConfiguration(Resource resource) throws Exception {
+    final InputStream in = resource.getInputStream();
+    try {
+      return XWSSProcessorFactory.newInstance().createProcessorForSecurityConfiguration(in, new ThreadCredentialsCallbackHandler());
+    } finally {
+      in.close();
+    }
+  }
 
   /**
    * Inner callback class for adding WSSE security header to message.
@@ -54,62 +353,78 @@ public abstract class WebserviceClientBase extends WebServiceGatewaySupport {
    */
   public final class LocalWebServiceMessageCallback implements WebServiceMessageCallback {
     private final XWSSProcessor _processor;
+    private final String _username;
+    private final String _password;
 
     /**
      * Constructor.
-     * @param processor
+     * @param processor compiled security configuration, created with a {@link ThreadCredentialsCallbackHandler}
+     * @param username WSSE username
+     * @param password WSSE password
      */
-    public LocalWebServiceMessageCallback(XWSSProcessor processor) {
+    public LocalWebServiceMessageCallback(XWSSProcessor processor, String username, String password) {
       this._processor = processor;
+      this._username = username;
+      this._password = password;
     }
 
     /**
      * Execute any number of operations on the supplied <code>message</code>.
      *
      * @param message the message
-     * @throws IOException          in case of I/O errors
-     * @throws TransformerException in case of transformation errors
+     * @throws WsseSecurementException if the WSSE header cannot be added. The message is not sent.
      */
     public void doWithMessage(WebServiceMessage message) {
       SaajSoapMessage ssm = (SaajSoapMessage) message;
       SOAPMessage sm = ssm.getSaajMessage();
+      _wsseCredentials.set(new String[]{this._username, this._password});
+      // called after marshalling the payload
+      LoginTrace.exit(LoginTrace.Phase.MARSHAL);
+      LoginTrace.enter(LoginTrace.Phase.WSSE);
+      final Timer.Context timer = _wsse.time();
       try {
         ProcessingContext context = this._processor.createProcessingContext(sm);
         SOAPMessage secureM = this._processor.secureOutboundMessage(context);
         ssm.setSaajMessage(secureM);
       } catch (Exception e) {
-        e.printStackTrace();
+        // never send the message without WSSE header
+        _log.error("Cannot add the WSSE header for user " + this._username, e);
+        throw new WsseSecurementException("Cannot add the WSSE header", e);
+      } finally {
+        timer.stop();
+        LoginTrace.exit(LoginTrace.Phase.WSSE);
+        _wsseCredentials.remove();
       }
     }
   }
 
 
   /**
-   * inner class to modify WSSE username/pw in security config document dynamically
+   * Failure to secure an outbound message. Counted as a failed webservice call.
    */
-  public final class SecurityConfigModifier implements CallbackHandler {
-    private final String _username;
-    private final String _password;
-
-    /**
-     * Constructor.
-     * @param username
-     * @param password
-     */
-    public SecurityConfigModifier(String username, String password) {
-      this._username = username;
-      this._password = password;
+  public static final class WsseSecurementException extends WebServiceClientException {
+    public WsseSecurementException(String message, Throwable cause) {
+      super(message, cause);
     }
+  }
+
+
+  /**
+   * Callback handler of the shared XWSSProcessor. Supplies the WSSE username/pw
+   * of the request secured by the calling thread.
+   */
+  public static final class ThreadCredentialsCallbackHandler implements CallbackHandler {
 
     // handler
     public void handle(Callback[] callbacks) throws UnsupportedCallbackException {
+      final String[] credentials = _wsseCredentials.get();
       for (int i = 0; i < callbacks.length; i++) {
-        if (callbacks[i] instanceof UsernameCallback) {
+        if (credentials != null && callbacks[i] instanceof UsernameCallback) {
           UsernameCallback callback = (UsernameCallback) callbacks[i];
-          callback.setUsername(this._username);
-        } else if (callbacks[i] instanceof PasswordCallback) {
+          callback.setUsername(credentials[0]);
+        } else if (credentials != null && callbacks[i] instanceof PasswordCallback) {
           PasswordCallback callback = (PasswordCallback) callbacks[i];
-          callback.setPassword(this._password);
+          callback.setPassword(credentials[1]);
         } else {
           throw new UnsupportedCallbackException(callbacks[i]);
         }
@@ -117,6 +432,68 @@ public abstract class WebserviceClientBase extends WebServiceGatewaySupport {
     }
   }
 
+  /**
+   * URIs of several replicas of the webservice. If set, requests are balanced over them instead of sent to the defaultUri.
+   */
+  public void setEndpointUris(List<String> endpointUris) {
+    this._endpointUris = endpointUris;
+  }
+
+  /**
+   * Number of consecutive transport failures after which an endpoint is considered unhealthy. Default is 3.
+   */
+  public void setUnhealthyThreshold(int unhealthyThreshold) {
+    this._unhealthyThreshold = unhealthyThreshold;
+  }
+
+  /**
+   * Time in milliseconds an unhealthy endpoint gets no requests. Default is 10000.
+   */
+  public void setUnhealthyDuration(long unhealthyDuration) {
+    this._unhealthyDuration = unhealthyDuration;
+  }
+
+  /**
+   * Percentile of the recent latencies after which an unanswered request is hedged, e.g. 0.95.
+   * 0 (default) disables hedging. Needs at least two endpointUris.
+   * Only enable it if the backend may process a request twice, see the class doc.
+   */
+  public void setHedgeDelayPercentile(double hedgeDelayPercentile) {
+    if (hedgeDelayPercentile < 0 || hedgeDelayPercentile >= 1) {
+      throw new IllegalArgumentException("hedgeDelayPercentile must be in [0, 1)");
+    }
+    this._hedgeDelayPercentile = hedgeDelayPercentile;
+  }
+
+  /**
+   * Minimum hedge delay in milliseconds. Default is 50.
+   */
+  public void setMinHedgeDelay(long minHedgeDelay) {
+    this._minHedgeDelay = minHedgeDelay;
+  }
+
+  /**
+   * Maximum number of threads sending hedged requests. If all are busy, requests are not hedged. Default is 50.
+   */
+  public void setMaxHedgeThreads(int maxHedgeThreads) {
+    this._maxHedgeThreads = maxHedgeThreads;
+  }
+
+  /**
+   * Time in milliseconds concurrent requests are collected into one batch message.
+   * 0 (default) disables batching. Only used by clients supporting batches.
+   */
+  public void setBatchWindow(long batchWindow) {
+    this._batchWindow = batchWindow;
+  }
+
+  /**
+   * Maximum number of requests per batch message. Default is 50.
+   */
+  public void setMaxBatchSize(int maxBatchSize) {
+    this._maxBatchSize = maxBatchSize;
+  }
+
   /**
    * Return SecurityConfigResource.
    *
@@ -134,4 +511,27 @@ public abstract class WebserviceClientBase extends WebServiceGatewaySupport {
   public void setSecurityConfigResource(Resource securityConfigResource) {
     this._securityConfigResource = securityConfigResource;
   }
+
+  /**
+   * Moves a running LoginTrace from MARSHAL to SEND to UNMARSHAL. Called by the WebServiceTemplate after the
+   * request is marshalled and after the response is received.
+   */
+  private static final class TraceInterceptor implements ClientInterceptor {
+    public boolean handleRequest(MessageContext messageContext) {
+      LoginTrace.exit(LoginTrace.Phase.MARSHAL);
+      LoginTrace.enter(LoginTrace.Phase.SEND);
+      return true;
+    }
+
+    public boolean handleResponse(MessageContext messageContext) {
+      LoginTrace.exit(LoginTrace.Phase.SEND);
+      LoginTrace.enter(LoginTrace.Phase.UNMARSHAL);
+      return true;
+    }
+
+    public boolean handleFault(MessageContext messageContext) {
+      LoginTrace.exit(LoginTrace.Phase.SEND);
+      return true;
+    }
+  }
 }
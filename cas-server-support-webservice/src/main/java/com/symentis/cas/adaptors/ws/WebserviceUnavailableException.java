@@ -0,0 +1,41 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.adaptors.ws;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Thrown by a {@link WebserviceClient} if the webservice backend could not decide on the authentication,
+ * e.g. because it is unreachable, too slow or overloaded. Unlike a failed authentication, this is not
+ * caused by the users credentials.
+ *
+ * @author Robert Oschwald
+ */
+public class WebserviceUnavailableException extends GeneralSecurityException {
+  private static final long serialVersionUID = 1L;
+
+  public WebserviceUnavailableException(String message) {
+    super(message);
+  }
+
+  public WebserviceUnavailableException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
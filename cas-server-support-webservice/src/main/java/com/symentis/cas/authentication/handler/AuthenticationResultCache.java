@@ -0,0 +1,170 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.authentication.handler;
+
+import org.jasig.cas.authentication.principal.Principal;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Short-lived cache of webservice authentication results, used by the WebserviceAuthenticationHandler.
+ * <p/>
+ * Successful authentications are cached with their Principal for positiveTtl, failed ones for negativeTtl.
+ * Entries are keyed by a PBKDF2 hash of username and password with a random per-process salt, so neither
+ * passwords nor unsalted hashes are held in memory. Only a login with the same username and password hits an
+ * entry; a failed login does not block a later login with the correct password.
+ * <p/>
+ * The cache is bounded by maxEntries, evicting the least recently used entry.
+ * A password changed in the backend is still accepted until its positive entry expires.
+ *
+ * @author Robert Oschwald
+ */
+public class AuthenticationResultCache {
+  private static final String HASH_ALGORITHM = "PBKDF2WithHmacSHA1";
+  private final byte[] salt = new byte[16];
+  private long positiveTtl = 60000;
+  private long negativeTtl = 10000;
+  private int maxEntries = 10000;
+  private int hashIterations = 1000;
+  private final LinkedHashMap<ByteBuffer, Result> entries = new LinkedHashMap<ByteBuffer, Result>(256, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Result> eldest) {
+      return size() > maxEntries;
+    }
+  };
+
+  public AuthenticationResultCache() {
+    new SecureRandom().nextBytes(this.salt);
+  }
+
+  /** Time in milliseconds a successful authentication is cached. Default is 60 seconds. */
+  public void setPositiveTtl(final long positiveTtl) {
+    this.positiveTtl = positiveTtl;
+  }
+
+  /** Time in milliseconds a failed authentication is cached. 0 disables negative caching. Default is 10 seconds. */
+  public void setNegativeTtl(final long negativeTtl) {
+    this.negativeTtl = negativeTtl;
+  }
+
+  /** Maximum number of cached results. Default is 10000. */
+  public void setMaxEntries(final int maxEntries) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive");
+    }
+    this.maxEntries = maxEntries;
+  }
+
+  /** PBKDF2 iterations of the cache key hash. Default is 1000. */
+  public void setHashIterations(final int hashIterations) {
+    if (hashIterations <= 0) {
+      throw new IllegalArgumentException("hashIterations must be positive");
+    }
+    this.hashIterations = hashIterations;
+  }
+
+  /**
+   * Cache key of the credentials.
+   *
+   * @return opaque key for {@link #get}, {@link #putSuccess} and {@link #putFailure}
+   */
+  public Object key(final String username, final String password) throws GeneralSecurityException {
+    final char[] credentials = (username + '\0' + (password == null ? "" : password)).toCharArray();
+    final PBEKeySpec spec = new PBEKeySpec(credentials, this.salt, this.hashIterations, 160);
+    try {
+      return ByteBuffer.wrap(SecretKeyFactory.getInstance(HASH_ALGORITHM).generateSecret(spec).getEncoded());
+    } finally {
+      spec.clearPassword();
+    }
+  }
+
+  /**
+   * Cached result of the credentials.
+   *
+   * @return the result, or null if none is cached or it is expired
+   */
+  public Result get(final Object key) {
+    synchronized (this.entries) {
+      final Result result = this.entries.get(key);
+      if (result == null) {
+        return null;
+      }
+      if (result.expiryTime <= System.currentTimeMillis()) {
+        this.entries.remove(key);
+        return null;
+      }
+      return result;
+    }
+  }
+
+  /** Cache a successful authentication. */
+  public void putSuccess(final Object key, final Principal principal) {
+    put(key, new Result(principal, System.currentTimeMillis() + this.positiveTtl));
+  }
+
+  /** Cache a failed authentication. */
+  public void putFailure(final Object key) {
+    if (this.negativeTtl > 0) {
+      put(key, new Result(null, System.currentTimeMillis() + this.negativeTtl));
+    }
+  }
+
+  /** Number of cached results, including expired ones. */
+  public int size() {
+    synchronized (this.entries) {
+      return this.entries.size();
+    }
+  }
+
+  private void put(final Object key, final Result result) {
+    synchronized (this.entries) {
+      this.entries.put((ByteBuffer) key, result);
+    }
+  }
+
+  /**
+   * Cached authentication result.
+   */
+  public static final class Result {
+    private final Principal principal;
+    private final long expiryTime;
+
+    Result(Principal principal, long expiryTime) {
+      this.principal = principal;
+      this.expiryTime = expiryTime;
+    }
+
+    /** @return true if the authentication succeeded */
+    public boolean isSuccess() {
+      return this.principal != null;
+    }
+
+    /** @return the authenticated Principal, or null if the authentication failed */
+    public Principal getPrincipal() {
+      return this.principal;
+    }
+  }
+}
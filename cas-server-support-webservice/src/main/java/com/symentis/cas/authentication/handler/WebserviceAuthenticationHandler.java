@@ -19,6 +19,9 @@
 
 package com.symentis.cas.authentication.handler;
 
+import com.symentis.cas.adaptors.ws.AsyncWebserviceClient;
+import com.symentis.cas.adaptors.ws.WebserviceUnavailableException;
+import com.symentis.cas.trace.LoginTrace;
 import org.jasig.cas.authentication.HandlerResult;
 import org.jasig.cas.authentication.PreventedException;
 import org.jasig.cas.authentication.UsernamePasswordCredential;
@@ -32,6 +35,11 @@ import org.springframework.beans.factory.InitializingBean;
 import javax.security.auth.login.FailedLoginException;
 import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Authentication Handler for Webservice Based Authentications.
@@ -39,16 +47,44 @@ import java.util.*;
  *
  * Directly updates users attributes if injected DirectMappedPersonAttributeDao.
  *
+ * If the WebserviceClient is an AsyncWebserviceClient, the handler waits at most authenticationTimeout
+ * milliseconds for the authentication result.
+ *
+ * A WebserviceUnavailableException of the client is reported as PreventedException, so CAS tells
+ * an unavailable backend apart from bad credentials.
+ *
+ * With an AuthenticationResultCache, repeated logins with the same credentials are answered from the cache.
+ *
  * @author Robert Oschwald
  */
 public class WebserviceAuthenticationHandler extends AbstractWebserviceAuthenticationHandler implements InitializingBean {
   private static final Logger log = LoggerFactory.getLogger(WebserviceAuthenticationHandler.class);
   private DirectMappedPersonAttributeDao attributeRepository;
+  private long authenticationTimeout = 10000;
+  private AuthenticationResultCache authenticationCache;
 
   public final void setAttributeRepository(final DirectMappedPersonAttributeDao attributeRepository) {
     this.attributeRepository = attributeRepository;
   }
 
+  /**
+   * Maximum time in milliseconds to wait for the result of an AsyncWebserviceClient.
+   * The authentication is prevented if it takes longer. Default is 10 seconds.
+   */
+  public final void setAuthenticationTimeout(final long authenticationTimeout) {
+    if (authenticationTimeout <= 0) {
+      throw new IllegalArgumentException("authenticationTimeout must be positive");
+    }
+    this.authenticationTimeout = authenticationTimeout;
+  }
+
+  /**
+   * Optional cache of authentication results. Default is none.
+   */
+  public final void setAuthenticationCache(final AuthenticationResultCache authenticationCache) {
+    this.authenticationCache = authenticationCache;
+  }
+
   public WebserviceAuthenticationHandler() {
   }
 
@@ -68,24 +104,109 @@ public class WebserviceAuthenticationHandler extends AbstractWebserviceAuthentic
    */
   @Override
   protected final HandlerResult authenticateUsernamePasswordInternal(final UsernamePasswordCredential credential) throws GeneralSecurityException, PreventedException {
+    LoginTrace.begin(LoginTrace.Phase.AUTHENTICATION);
+    try {
+      return authenticateWithWebservice(credential);
+    } finally {
+      LoginTrace.end(LoginTrace.Phase.AUTHENTICATION, credential.getUsername());
+    }
+  }
+
+  /*
+   * Authenticates from the cache, or with the webserviceClient.
+   */
+  private HandlerResult authenticateWithWebservice(final UsernamePasswordCredential credential) throws GeneralSecurityException, PreventedException {
     final String username = credential.getUsername();
-    log.debug("Authenticating " + username);
-    Principal principal = this._webserviceClient.doAuthentication(credential);
+    if (log.isDebugEnabled()) {
+      log.debug("Authenticating " + username);
+    }
+    final AuthenticationResultCache cache = this.authenticationCache;
+    Object cacheKey = null;
+    Principal principal;
+    if (cache != null) {
+      cacheKey = cache.key(username, credential.getPassword());
+      final AuthenticationResultCache.Result cached = cache.get(cacheKey);
+      if (cached != null && !cached.isSuccess()) {
+        if (log.isDebugEnabled()) {
+          log.debug("Cached failed authentication of " + username);
+        }
+        throw new FailedLoginException();
+      }
+      principal = cached != null ? cached.getPrincipal() : null;
+    } else {
+      principal = null;
+    }
+    if (principal == null) {
+      principal = doAuthentication(credential);
+      if (cache != null) {
+        if (principal != null) {
+          cache.putSuccess(cacheKey, principal);
+        } else {
+          cache.putFailure(cacheKey);
+        }
+      }
+    }
     if (principal != null) {
+      // also on cache hits, the attributes are consumed by each serviceValidate
       updatePersonAttributes(principal);
       // Add Authorization checks if needed
       return createHandlerResult(credential, this.principalFactory.createPrincipal(username), null);
     }
-    log.warn("Person received is null!");
+    if (log.isDebugEnabled()) {
+      log.debug("Authentication of " + username + " rejected by the webservice");
+    }
     throw new FailedLoginException();
   }
+  /*
+   * Calls the webserviceClient. Waits with a deadline for an AsyncWebserviceClient.
+   */
+  private Principal doAuthentication(final UsernamePasswordCredential credential) throws GeneralSecurityException, PreventedException {
+    try {
+      return callWebserviceClient(credential);
+    } catch (WebserviceUnavailableException e) {
+      log.warn("Webservice unavailable. Authentication of " + credential.getUsername() + " prevented: " + e.getMessage());
+      throw new PreventedException(e);
+    }
+  }
+
+  private Principal callWebserviceClient(final UsernamePasswordCredential credential) throws GeneralSecurityException, PreventedException {
+    if (!(this._webserviceClient instanceof AsyncWebserviceClient)) {
+      return this._webserviceClient.doAuthentication(credential);
+    }
+    final Future<Principal> result;
+    try {
+      result = ((AsyncWebserviceClient) this._webserviceClient).doAuthenticationAsync(credential);
+    } catch (RejectedExecutionException e) {
+      log.warn("Webservice client saturated. Rejecting authentication of " + credential.getUsername());
+      throw new PreventedException(e);
+    }
+    try {
+      return result.get(this.authenticationTimeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      result.cancel(true);
+      log.warn("Webservice authentication of " + credential.getUsername() + " timed out after " + this.authenticationTimeout + " ms");
+      throw new PreventedException(e);
+    } catch (InterruptedException e) {
+      result.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new PreventedException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) e.getCause();
+      }
+      throw new PreventedException(e.getCause());
+    }
+  }
+
   /*
   * Convert principalAttributes to personAttributes and update in attributeRepository
    */
   private void updatePersonAttributes(Principal principal) {
     if (attributeRepository == null) return; // not injected
     if (principal.getAttributes() == null) return;
-    log.debug("Updating person Attributes: " + principal.getAttributes());
+    if (log.isDebugEnabled()) {
+      log.debug("Updating person Attributes: " + principal.getAttributes());
+    }
     Map<String, Object> principalAttributes = principal.getAttributes();
     Map<String,List<Object>> personAttributes = new HashMap<String, List<Object>>();
     for (Map.Entry<String, Object> entry : principalAttributes.entrySet()) {
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.monitor;
+
+import com.symentis.cas.adaptors.ws.MetricsWebserviceClient;
+import com.symentis.cas.services.persondir.support.DirectMappedPersonAttributeDao;
+import org.jasig.cas.monitor.AbstractNamedMonitor;
+import org.jasig.cas.monitor.Status;
+import org.jasig.cas.monitor.StatusCode;
+
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Monitor of the webservice authentication, for the HealthCheckMonitor of CAS.
+ * <p/>
+ * Driven by the one minute rates and the latency of a {@link MetricsWebserviceClient}:
+ * ERROR if at least errorRateErrorThreshold percent of the calls failed with an error,
+ * WARN if at least errorRateWarnThreshold percent, or if the p99 latency exceeds latencyWarnThreshold milliseconds.
+ * With an attributeRepository, also WARN if more than pendingAttributesWarnThreshold attributes wait for a serviceValidate.
+ *
+ * @author Robert Oschwald
+ */
+public class WebserviceAuthenticationMonitor extends AbstractNamedMonitor<Status> {
+  @NotNull
+  private MetricsWebserviceClient webserviceClient;
+  private DirectMappedPersonAttributeDao attributeRepository;
+  private int errorRateWarnThreshold = 10;
+  private int errorRateErrorThreshold = 50;
+  private long latencyWarnThreshold = 3000;
+  private int pendingAttributesWarnThreshold = 0;
+
+  /** The measured webservice client. */
+  public void setWebserviceClient(final MetricsWebserviceClient webserviceClient) {
+    this.webserviceClient = webserviceClient;
+  }
+
+  /** Optional attribute repository, filled on login. */
+  public void setAttributeRepository(final DirectMappedPersonAttributeDao attributeRepository) {
+    this.attributeRepository = attributeRepository;
+  }
+
+  /** Error rate in percent for WARN. Default is 10. */
+  public void setErrorRateWarnThreshold(final int errorRateWarnThreshold) {
+    this.errorRateWarnThreshold = errorRateWarnThreshold;
+  }
+
+  /** Error rate in percent for ERROR. Default is 50. */
+  public void setErrorRateErrorThreshold(final int errorRateErrorThreshold) {
+    this.errorRateErrorThreshold = errorRateErrorThreshold;
+  }
+
+  /** p99 latency in milliseconds for WARN. Default is 3000. */
+  public void setLatencyWarnThreshold(final long latencyWarnThreshold) {
+    this.latencyWarnThreshold = latencyWarnThreshold;
+  }
+
+  /** Number of pending attributes for WARN. 0 (default) disables the check. */
+  public void setPendingAttributesWarnThreshold(final int pendingAttributesWarnThreshold) {
+    this.pendingAttributesWarnThreshold = pendingAttributesWarnThreshold;
+  }
+
+  public Status observe() {
+    final double success = this.webserviceClient.getSuccess().getOneMinuteRate();
+    final double failure = this.webserviceClient.getFailure().getOneMinuteRate();
+    final double error = this.webserviceClient.getError().getOneMinuteRate();
+    final double total = success + failure + error;
+    final double errorRate = total > 0 ? 100 * error / total : 0;
+    final long p99 = TimeUnit.NANOSECONDS.toMillis((long) this.webserviceClient.getLatency().getSnapshot().get99thPercentile());
+    final int pending = this.attributeRepository != null ? this.attributeRepository.getStore().size() : -1;
+
+    final StringBuilder description = new StringBuilder();
+    description.append(String.format("Authentications %.1f/s, errors %.1f%%, p99 latency %d ms", total, errorRate, p99));
+    if (pending >= 0) {
+      description.append(", pending attributes ").append(pending);
+    }
+    final StatusCode code;
+    if (total > 0 && errorRate >= this.errorRateErrorThreshold) {
+      code = StatusCode.ERROR;
+    } else if (total > 0 && errorRate >= this.errorRateWarnThreshold
+        || p99 > this.latencyWarnThreshold
+        || this.pendingAttributesWarnThreshold > 0 && pending > this.pendingAttributesWarnThreshold) {
+      code = StatusCode.WARN;
+    } else {
+      code = StatusCode.OK;
+    }
+    return new Status(code, description.toString());
+  }
+}
@@ -0,0 +1,400 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ws.sample.client;
+
+import com.symentis.cas.ws.samples.auth.schema.AuthRequest;
+import com.symentis.cas.ws.samples.auth.schema.AuthResponse;
+import com.symentis.cas.ws.samples.auth.schema.AuthResult;
+import com.symentis.cas.ws.samples.auth.schema.BatchAuthRequest;
+import com.symentis.cas.ws.samples.auth.schema.BatchAuthResponse;
+import com.symentis.cas.ws.samples.auth.schema.ObjectFactory;
+import org.springframework.oxm.Marshaller;
+import org.springframework.oxm.MarshallingFailureException;
+import org.springframework.oxm.Unmarshaller;
+import org.springframework.oxm.UnmarshallingFailureException;
+import org.springframework.util.xml.StaxUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+
+/**
+ * Streaming (un-)marshaller of the payloads of authentication.xsd.
+ * <p/>
+ * A drop-in replacement of the Jaxb2Marshaller for these payloads. Writes the payload elements directly
+ * into the payload result of the message (DOM, SAX or StAX), and reads them with a StAX reader or directly
+ * from the DOM, without creating a JAXB context, marshaller instance or intermediate tree per call.
+ * Stateless and thread safe; the StAX factories are created once.
+ *
+ * @author Robert Oschwald
+ */
+public class AuthPayloadMarshaller implements Marshaller, Unmarshaller {
+  public static final String NAMESPACE = "http://roos.cas.samples.ws.org/auth";
+  private static final String AUTH_REQUEST = "authRequest";
+  private static final String AUTH_RESPONSE = "authResponse";
+  private static final String AUTH_RESULT = "authResult";
+  private static final String BATCH_AUTH_REQUEST = "batchAuthRequest";
+  private static final String BATCH_AUTH_RESPONSE = "batchAuthResponse";
+  private final ObjectFactory _objectFactory = new ObjectFactory();
+  private final XMLInputFactory _inputFactory;
+  private final XMLOutputFactory _outputFactory;
+  private final DocumentBuilderFactory _documentBuilderFactory;
+
+  public AuthPayloadMarshaller() {
+    this._inputFactory = XMLInputFactory.newInstance();
+    this._inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    this._inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    this._outputFactory = XMLOutputFactory.newInstance();
+    this._documentBuilderFactory = DocumentBuilderFactory.newInstance();
+    this._documentBuilderFactory.setNamespaceAware(true);
+  }
+
+  public boolean supports(Class<?> clazz) {
+    return AuthRequest.class.equals(clazz) || AuthResponse.class.equals(clazz)
+        || BatchAuthRequest.class.equals(clazz) || BatchAuthResponse.class.equals(clazz);
+  }
+
+  public void marshal(Object graph, Result result) throws IOException {
+    if (!supports(graph.getClass())) {
+      throw new MarshallingFailureException("Unsupported payload " + graph);
+    }
+    try {
+      if (result instanceof DOMResult) {
+        final DOMResult domResult = (DOMResult) result;
+        if (domResult.getNode() == null) {
+          domResult.setNode(this._documentBuilderFactory.newDocumentBuilder().newDocument());
+        }
+        write(graph, new DomWriter(domResult.getNode()));
+      } else if (StaxUtils.isStaxResult(result) && StaxUtils.getXMLStreamWriter(result) != null) {
+        write(graph, new StaxWriter(StaxUtils.getXMLStreamWriter(result), false));
+      } else if (result instanceof SAXResult) {
+        write(graph, new SaxWriter(((SAXResult) result).getHandler()));
+      } else if (result instanceof StreamResult) {
+        final StreamResult streamResult = (StreamResult) result;
+        final XMLStreamWriter writer = streamResult.getWriter() != null
+            ? this._outputFactory.createXMLStreamWriter(streamResult.getWriter())
+            : this._outputFactory.createXMLStreamWriter(streamResult.getOutputStream(), "UTF-8");
+        write(graph, new StaxWriter(writer, true));
+      } else {
+        throw new MarshallingFailureException("Unsupported result " + result);
+      }
+    } catch (XMLStreamException e) {
+      throw new MarshallingFailureException("Cannot write " + graph, e);
+    } catch (SAXException e) {
+      throw new MarshallingFailureException("Cannot write " + graph, e);
+    } catch (ParserConfigurationException e) {
+      throw new MarshallingFailureException("Cannot write " + graph, e);
+    }
+  }
+
+  public Object unmarshal(Source source) throws IOException {
+    try {
+      if (source instanceof DOMSource) {
+        final Node node = ((DOMSource) source).getNode();
+        return readDom(node instanceof Document ? ((Document) node).getDocumentElement() : (Element) node);
+      }
+      final XMLStreamReader reader;
+      if (StaxUtils.isStaxSource(source) && StaxUtils.getXMLStreamReader(source) != null) {
+        reader = StaxUtils.getXMLStreamReader(source);
+      } else if (source instanceof StreamSource) {
+        final StreamSource streamSource = (StreamSource) source;
+        reader = streamSource.getReader() != null
+            ? this._inputFactory.createXMLStreamReader(streamSource.getReader())
+            : this._inputFactory.createXMLStreamReader(streamSource.getInputStream());
+      } else {
+        throw new UnmarshallingFailureException("Unsupported source " + source);
+      }
+      while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+        reader.next();
+      }
+      return readStax(reader);
+    } catch (XMLStreamException e) {
+      throw new UnmarshallingFailureException("Cannot read payload", e);
+    }
+  }
+
+  private static void write(Object graph, PayloadWriter writer) throws XMLStreamException, SAXException {
+    writer.startDocument();
+    if (graph instanceof AuthRequest) {
+      writeRequest((AuthRequest) graph, writer);
+    } else if (graph instanceof AuthResponse) {
+      final AuthResponse response = (AuthResponse) graph;
+      writer.element(AUTH_RESPONSE, new String[]{"netid", response.getNetid(), "firstname", response.getFirstname(),
+          "lastname", response.getLastname()}, true);
+      writer.end(AUTH_RESPONSE);
+    } else if (graph instanceof BatchAuthRequest) {
+      writer.element(BATCH_AUTH_REQUEST, new String[0], true);
+      for (AuthRequest request : ((BatchAuthRequest) graph).getAuthRequest()) {
+        writeRequest(request, writer);
+      }
+      writer.end(BATCH_AUTH_REQUEST);
+    } else {
+      writer.element(BATCH_AUTH_RESPONSE, new String[0], true);
+      for (AuthResult authResult : ((BatchAuthResponse) graph).getAuthResult()) {
+        writer.element(AUTH_RESULT, new String[]{"netid", authResult.getNetid(),
+            "authenticated", String.valueOf(authResult.isAuthenticated()),
+            "firstname", authResult.getFirstname(), "lastname", authResult.getLastname()}, false);
+        writer.end(AUTH_RESULT);
+      }
+      writer.end(BATCH_AUTH_RESPONSE);
+    }
+    writer.endDocument();
+  }
+
+  private static void writeRequest(AuthRequest request, PayloadWriter writer) throws XMLStreamException, SAXException {
+    final boolean root = !writer.isNested();
+    writer.element(AUTH_REQUEST, new String[]{"netid", request.getNetid(), "password", request.getPassword()}, root);
+    writer.end(AUTH_REQUEST);
+  }
+
+  private Object readDom(Element element) {
+    final String localName = element.getLocalName();
+    checkNamespace(element.getNamespaceURI(), localName);
+    if (BATCH_AUTH_REQUEST.equals(localName) || BATCH_AUTH_RESPONSE.equals(localName)) {
+      final Object batch = BATCH_AUTH_REQUEST.equals(localName)
+          ? this._objectFactory.createBatchAuthRequest() : this._objectFactory.createBatchAuthResponse();
+      for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+        if (child instanceof Element) {
+          addToBatch(batch, readDom((Element) child));
+        }
+      }
+      return batch;
+    }
+    return create(localName, attribute(element, "netid"), attribute(element, "password"),
+        attribute(element, "firstname"), attribute(element, "lastname"), attribute(element, "authenticated"));
+  }
+
+  /* reads the element at the current START_ELEMENT of the reader, including its children. */
+  private Object readStax(XMLStreamReader reader) throws XMLStreamException {
+    final String localName = reader.getLocalName();
+    checkNamespace(reader.getNamespaceURI(), localName);
+    if (BATCH_AUTH_REQUEST.equals(localName) || BATCH_AUTH_RESPONSE.equals(localName)) {
+      final Object batch = BATCH_AUTH_REQUEST.equals(localName)
+          ? this._objectFactory.createBatchAuthRequest() : this._objectFactory.createBatchAuthResponse();
+      while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        addToBatch(batch, readStax(reader));
+      }
+      return batch;
+    }
+    final Object payload = create(localName, reader.getAttributeValue(null, "netid"), reader.getAttributeValue(null, "password"),
+        reader.getAttributeValue(null, "firstname"), reader.getAttributeValue(null, "lastname"),
+        reader.getAttributeValue(null, "authenticated"));
+    // to the END_ELEMENT
+    reader.nextTag();
+    return payload;
+  }
+
+  private Object create(String localName, String netid, String password, String firstname, String lastname, String authenticated) {
+    if (AUTH_REQUEST.equals(localName)) {
+      final AuthRequest request = this._objectFactory.createAuthRequest();
+      request.setNetid(netid);
+      request.setPassword(password);
+      return request;
+    }
+    if (AUTH_RESULT.equals(localName)) {
+      final AuthResult result = this._objectFactory.createAuthResult();
+      result.setNetid(netid);
+      result.setAuthenticated("true".equals(authenticated) || "1".equals(authenticated));
+      result.setFirstname(firstname);
+      result.setLastname(lastname);
+      return result;
+    }
+    final AuthResponse response = this._objectFactory.createAuthResponse();
+    response.setNetid(netid);
+    response.setFirstname(firstname);
+    response.setLastname(lastname);
+    return response;
+  }
+
+  private static void addToBatch(Object batch, Object item) {
+    if (batch instanceof BatchAuthRequest && item instanceof AuthRequest) {
+      ((BatchAuthRequest) batch).getAuthRequest().add((AuthRequest) item);
+    } else if (batch instanceof BatchAuthResponse && item instanceof AuthResult) {
+      ((BatchAuthResponse) batch).getAuthResult().add((AuthResult) item);
+    } else {
+      throw new UnmarshallingFailureException("Unexpected element " + item + " in " + batch);
+    }
+  }
+
+  private static void checkNamespace(String namespace, String localName) {
+    if (!NAMESPACE.equals(namespace) || !(AUTH_REQUEST.equals(localName) || AUTH_RESPONSE.equals(localName)
+        || AUTH_RESULT.equals(localName) || BATCH_AUTH_REQUEST.equals(localName) || BATCH_AUTH_RESPONSE.equals(localName))) {
+      throw new UnmarshallingFailureException("Unexpected payload {" + namespace + "}" + localName);
+    }
+  }
+
+  private static String attribute(Element element, String name) {
+    return element.hasAttributeNS(null, name) ? element.getAttributeNS(null, name) : null;
+  }
+
+  /**
+   * Target of the payload elements. Attributes are name/value pairs, null values are omitted.
+   */
+  private abstract static class PayloadWriter {
+    private int depth;
+
+    boolean isNested() {
+      return this.depth > 0;
+    }
+
+    void startDocument() throws XMLStreamException, SAXException {
+    }
+
+    void endDocument() throws XMLStreamException, SAXException {
+    }
+
+    /* starts an element. root declares the namespace. */
+    void element(String localName, String[] attributes, boolean root) throws XMLStreamException, SAXException {
+      this.depth++;
+      start(localName, attributes, root);
+    }
+
+    void end(String localName) throws XMLStreamException, SAXException {
+      this.depth--;
+      doEnd(localName);
+    }
+
+    abstract void start(String localName, String[] attributes, boolean root) throws XMLStreamException, SAXException;
+
+    abstract void doEnd(String localName) throws XMLStreamException, SAXException;
+  }
+
+  /* appends the elements to a DOM node. */
+  private static final class DomWriter extends PayloadWriter {
+    private Node current;
+    private final Document document;
+
+    DomWriter(Node parent) {
+      this.current = parent;
+      this.document = parent instanceof Document ? (Document) parent : parent.getOwnerDocument();
+    }
+
+    void start(String localName, String[] attributes, boolean root) {
+      final Element element = this.document.createElementNS(NAMESPACE, localName);
+      for (int i = 0; i < attributes.length; i += 2) {
+        if (attributes[i + 1] != null) {
+          element.setAttributeNS(null, attributes[i], attributes[i + 1]);
+        }
+      }
+      this.current.appendChild(element);
+      this.current = element;
+    }
+
+    void doEnd(String localName) {
+      this.current = this.current.getParentNode();
+    }
+  }
+
+  /* writes the elements to a StAX writer. */
+  private static final class StaxWriter extends PayloadWriter {
+    private final XMLStreamWriter writer;
+    private final boolean document;
+
+    StaxWriter(XMLStreamWriter writer, boolean document) {
+      this.writer = writer;
+      this.document = document;
+    }
+
+    @Override
+    void startDocument() throws XMLStreamException {
+      if (this.document) {
+        this.writer.writeStartDocument();
+      }
+    }
+
+    @Override
+    void endDocument() throws XMLStreamException {
+      if (this.document) {
+        this.writer.writeEndDocument();
+      }
+      this.writer.flush();
+    }
+
+    void start(String localName, String[] attributes, boolean root) throws XMLStreamException {
+      this.writer.writeStartElement("", localName, NAMESPACE);
+      if (root) {
+        this.writer.writeDefaultNamespace(NAMESPACE);
+      }
+      for (int i = 0; i < attributes.length; i += 2) {
+        if (attributes[i + 1] != null) {
+          this.writer.writeAttribute(attributes[i], attributes[i + 1]);
+        }
+      }
+    }
+
+    void doEnd(String localName) throws XMLStreamException {
+      this.writer.writeEndElement();
+    }
+  }
+
+  /* emits the elements as SAX events. */
+  private static final class SaxWriter extends PayloadWriter {
+    private final ContentHandler handler;
+
+    SaxWriter(ContentHandler handler) {
+      this.handler = handler;
+    }
+
+    @Override
+    void startDocument() throws SAXException {
+      this.handler.startDocument();
+      this.handler.startPrefixMapping("", NAMESPACE);
+    }
+
+    @Override
+    void endDocument() throws SAXException {
+      this.handler.endPrefixMapping("");
+      this.handler.endDocument();
+    }
+
+    void start(String localName, String[] attributes, boolean root) throws SAXException {
+      final AttributesImpl saxAttributes = new AttributesImpl();
+      for (int i = 0; i < attributes.length; i += 2) {
+        if (attributes[i + 1] != null) {
+          saxAttributes.addAttribute("", attributes[i], attributes[i], "CDATA", attributes[i + 1]);
+        }
+      }
+      this.handler.startElement(NAMESPACE, localName, localName, saxAttributes);
+    }
+
+    void doEnd(String localName) throws SAXException {
+      this.handler.endElement(NAMESPACE, localName, localName);
+    }
+  }
+}
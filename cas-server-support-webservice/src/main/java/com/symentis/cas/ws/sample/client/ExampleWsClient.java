@@ -22,9 +22,14 @@
 
 package com.symentis.cas.ws.sample.client;
 
+import com.symentis.cas.adaptors.ws.RequestBatcher;
 import com.symentis.cas.adaptors.ws.WebserviceClientBase;
+import com.symentis.cas.adaptors.ws.WebserviceUnavailableException;
 import com.symentis.cas.ws.samples.auth.schema.AuthRequest;
 import com.symentis.cas.ws.samples.auth.schema.AuthResponse;
+import com.symentis.cas.ws.samples.auth.schema.AuthResult;
+import com.symentis.cas.ws.samples.auth.schema.BatchAuthRequest;
+import com.symentis.cas.ws.samples.auth.schema.BatchAuthResponse;
 import com.symentis.cas.ws.samples.auth.schema.ObjectFactory;
 import org.apache.commons.lang.StringUtils;
 
@@ -35,18 +40,17 @@ import com.symentis.cas.adaptors.ws.WebserviceClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.sun.xml.wss.XWSSProcessor;
-import com.sun.xml.wss.XWSSProcessorFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
-import org.springframework.core.io.Resource;
 import org.springframework.web.context.ServletContextAware;
+import org.springframework.ws.soap.client.SoapFaultClientException;
 import org.springframework.web.context.support.ServletContextResource;
 
 import javax.servlet.ServletContext;
 import javax.validation.constraints.NotNull;
 import java.security.GeneralSecurityException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -54,6 +58,9 @@ import java.util.Map;
  * For static username password setup, set wsUsername and wsPass in the bean def,
  * otherwise the given users' credentials username/password are used.
  * <p/>
+ * With a batchWindow, concurrent logins are sent in one batchAuthRequest. As the WSSE header is per message,
+ * batching is only used without WSSE header or with the static wsUsername/wsPass.
+ * <p/>
  * Creation date: 15.04.2014 01:42:35
  * <p/>
  *
@@ -62,95 +69,137 @@ import java.util.Map;
 public class ExampleWsClient extends WebserviceClientBase implements WebserviceClient, ServletContextAware {
   private static final Logger log = LoggerFactory.getLogger(ExampleWsClient.class);
   private ServletContext servletContext;
-  private Resource _sConfigResource;
   // optional static username/pw from bean context definition. See setters.
   private String _wsUsername;
   private String _wsPass;
-  private String _username;
-  private String _password;
   private boolean _useWSSE;
   private String configFilePath;
+  private RequestBatcher<AuthRequest, AuthResult> _batcher;
 
   /**
    * Perform authentication.
    * <p/>
    * Creation date: 15.04.2014 05:01:05
    * <p/>
+   * Thread safe. All per-login state is held by an immutable {@link CallContext}.
    *
    * @param credential The given user credential
-   * @return SimplePrincipal
-   * @throws GeneralSecurityException
+   * @return SimplePrincipal, or null if the webservice rejected the credentials
+   * @throws WebserviceUnavailableException if the webservice could not be called
    *
    */
   public Principal doAuthentication(UsernamePasswordCredential credential) throws GeneralSecurityException {
-    return authenticateUser(credential);
+    return authenticateUser(createCallContext(credential));
   }
 
-  private Principal authenticateUser(UsernamePasswordCredential credential) throws GeneralSecurityException {
-    log.warn("SOAP authenticate User: " + credential.getUsername());
+  private Principal authenticateUser(CallContext context) throws GeneralSecurityException {
+    if (log.isDebugEnabled()) {
+      log.debug("SOAP authenticate User: " + context.netid);
+    }
     ObjectFactory factory = new ObjectFactory();
     AuthRequest request = factory.createAuthRequest();
     AuthResponse response;
-    // configure parameters
-    this.configureParameters(credential);
-    request.setNetid(this._username);
-    request.setPassword(this._password);
+    request.setNetid(context.netid);
+    request.setPassword(context.password);
     try {
-      if (_useWSSE) {
+      if (this._batcher != null) {
+        response = toResponse(this._batcher.submit(request));
+      } else if (_useWSSE) {
         // With dynamic WSSE header. Adding the given username / pw as a WSSE header
-        SecurityConfigModifier securityConfigCallbackHandler = new SecurityConfigModifier(this._username, this._password);
-        // processor with callback to dynamically add username/password.
-        XWSSProcessorFactory pf = XWSSProcessorFactory.newInstance();
-        final XWSSProcessor processor = pf.createProcessorForSecurityConfiguration(
-            this._sConfigResource.getInputStream(), securityConfigCallbackHandler);
-        // add WSSE security header to message via CallBack Handler.
+        // add WSSE security header to message via the compiled security configuration.
         // Would be much easier with SpringWS 2.5.x ...
-        response = (AuthResponse) getWebServiceTemplate().marshalSendAndReceive(
-            getDefaultUri(),
+        response = (AuthResponse) marshalSendAndReceive(
             request,
-            new LocalWebServiceMessageCallback(processor));
+            createSecurityHeaderCallback(context.wsseUsername, context.wssePassword));
       } else {
-        log.warn("send soap request: " + request);
-        response = (AuthResponse) getWebServiceTemplate().marshalSendAndReceive(getDefaultUri(), request);
+        if (log.isDebugEnabled()) {
+          log.debug("send soap request: " + request);
+        }
+        response = (AuthResponse) marshalSendAndReceive(request, null);
       }
+    } catch (SoapFaultClientException e) {
+      // the webservice answered, but rejected the request
+      log.warn("SOAP Fault for " + context.netid + ": " + e.getFaultStringOrReason());
+      return null;
     } catch (Exception e) {
       log.error("Error:", e);
-      return null;
+      throw new WebserviceUnavailableException("Webservice call failed for " + context.netid, e);
     }
-    log.debug("SOAP Response: " + response.getFirstname() + "," + response.getLastname() + "," + response.getNetid());
     if (response == null) return null;
+    if (log.isDebugEnabled()) {
+      log.debug("SOAP Response: " + response.getFirstname() + "," + response.getLastname() + "," + response.getNetid());
+    }
     if (StringUtils.isNotBlank(response.getNetid())) {
       Map<String, Object> attributes = new HashMap<String, Object>();
       attributes.put("firstname", response.getFirstname());
       attributes.put("lastname", response.getLastname());
       attributes.put("netid", response.getNetid());
-      log.debug("Attributes: " + attributes);
-      return new DefaultPrincipalFactory().createPrincipal(this._username, attributes);
+      if (log.isDebugEnabled()) {
+        log.debug("Attributes: " + attributes);
+      }
+      return new DefaultPrincipalFactory().createPrincipal(context.netid, attributes);
     }
     return null;
   }
 
+  /* single response of a batch. null if not authenticated. */
+  private static AuthResponse toResponse(AuthResult result) {
+    if (!result.isAuthenticated()) {
+      return null;
+    }
+    final AuthResponse response = new ObjectFactory().createAuthResponse();
+    response.setNetid(result.getNetid());
+    response.setFirstname(result.getFirstname());
+    response.setLastname(result.getLastname());
+    return response;
+  }
+
+  /* sends a batch of requests in one batchAuthRequest. */
+  private List<AuthResult> sendBatch(List<AuthRequest> requests) {
+    final BatchAuthRequest batch = new ObjectFactory().createBatchAuthRequest();
+    batch.getAuthRequest().addAll(requests);
+    if (log.isDebugEnabled()) {
+      log.debug("Sending batch of " + requests.size() + " authentications");
+    }
+    final BatchAuthResponse response = (BatchAuthResponse) marshalSendAndReceive(batch,
+        _useWSSE ? createSecurityHeaderCallback(this._wsUsername, this._wsPass) : null);
+    return response.getAuthResult();
+  }
+
   /**
    * Prepare client call
-   * Uses username/password if set in the bean definition. Otherwise, use the given credentials
-   * Also prepares the securityConfigResource.
+   * Uses the WSSE username/password if set in the bean definition. Otherwise, use the given credentials
    */
-  private void configureParameters(UsernamePasswordCredential credential) {
-    if (this._sConfigResource == null){
-      this._sConfigResource = new ServletContextResource(servletContext, this.configFilePath);
+  private CallContext createCallContext(UsernamePasswordCredential credential) {
+    String netid = credential.getUsername();
+    // ensure that username is lowercase
+    if (netid != null) {
+      netid = netid.trim().toLowerCase();
     }
     if (StringUtils.isNotBlank(this._wsUsername)) {
-      // got username/pw from bean definition
-      this._username = this._wsUsername;
-      this._password = this._wsPass;
-    } else {
-      // get username/pw from credentials.
-      this._username = credential.getUsername();
-      this._password = credential.getPassword();
+      // got WSSE username/pw from bean definition
+      return new CallContext(netid, credential.getPassword(), this._wsUsername, this._wsPass);
     }
-    // ensure that username is lowercase
-    if (this._username != null) {
-      this._username = this._username.trim().toLowerCase();
+    // get WSSE username/pw from credentials.
+    return new CallContext(netid, credential.getPassword(), netid, credential.getPassword());
+  }
+
+  /**
+   * Resolves the security configuration from configFilePath, so it is compiled once on startup.
+   * Creates the batcher, if batching is configured and possible.
+   */
+  @Override
+  protected void initGateway() throws Exception {
+    if (this._useWSSE && getSecurityConfigResource() == null) {
+      setSecurityConfigResource(new ServletContextResource(this.servletContext, this.configFilePath));
+    }
+    super.initGateway();
+    if (!this._useWSSE || StringUtils.isNotBlank(this._wsUsername)) {
+      this._batcher = createRequestBatcher(new RequestBatcher.Sender<AuthRequest, AuthResult>() {
+        public List<AuthResult> send(List<AuthRequest> requests) {
+          return sendBatch(requests);
+        }
+      });
     }
   }
 
@@ -188,4 +237,21 @@ public class ExampleWsClient extends WebserviceClientBase implements WebserviceC
   public void setServletContext(ServletContext servletContext) {
     this.servletContext = servletContext;
   }
+
+  /**
+   * Immutable state of a single doAuthentication call.
+   */
+  private static final class CallContext {
+    final String netid;
+    final String password;
+    final String wsseUsername;
+    final String wssePassword;
+
+    CallContext(String netid, String password, String wsseUsername, String wssePassword) {
+      this.netid = netid;
+      this.password = password;
+      this.wsseUsername = wsseUsername;
+      this.wssePassword = wssePassword;
+    }
+  }
 }
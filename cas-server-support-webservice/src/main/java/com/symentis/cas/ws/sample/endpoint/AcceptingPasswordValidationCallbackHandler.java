@@ -0,0 +1,56 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ws.sample.endpoint;
+
+import com.sun.xml.wss.impl.callback.PasswordValidationCallback;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.ws.soap.security.callback.AbstractCallbackHandler;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+
+/**
+ * Validates WSSE UsernameToken plain text passwords of the sample endpoint.
+ * Like the endpoint itself, it accepts every non-blank username / password.
+ * Replace by a real validation (e.g. SimplePasswordValidationCallbackHandler) in your backend.
+ *
+ * @author Robert Oschwald
+ */
+public class AcceptingPasswordValidationCallbackHandler extends AbstractCallbackHandler {
+  /* Stateless, shared by all requests. */
+  private static final PasswordValidationCallback.PasswordValidator VALIDATOR = new PasswordValidationCallback.PasswordValidator() {
+    public boolean validate(PasswordValidationCallback.Request request) {
+      if (!(request instanceof PasswordValidationCallback.PlainTextPasswordRequest)) {
+        return false;
+      }
+      final PasswordValidationCallback.PlainTextPasswordRequest plainText = (PasswordValidationCallback.PlainTextPasswordRequest) request;
+      return StringUtils.isNotBlank(plainText.getUsername()) && StringUtils.isNotBlank(plainText.getPassword());
+    }
+  };
+
+  @Override
+  protected void handleInternal(Callback callback) throws UnsupportedCallbackException {
+    if (callback instanceof PasswordValidationCallback) {
+      ((PasswordValidationCallback) callback).setValidator(VALIDATOR);
+    } else {
+      throw new UnsupportedCallbackException(callback);
+    }
+  }
+}
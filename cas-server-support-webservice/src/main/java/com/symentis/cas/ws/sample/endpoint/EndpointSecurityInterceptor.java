@@ -0,0 +1,69 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ws.sample.endpoint;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ws.context.MessageContext;
+import org.springframework.ws.soap.SoapHeader;
+import org.springframework.ws.soap.SoapMessage;
+import org.springframework.ws.soap.security.xwss.XwsSecurityInterceptor;
+import org.springframework.ws.soap.security.xwss.XwsSecurityValidationException;
+
+import javax.xml.namespace.QName;
+
+/**
+ * WS-Security interceptor of the sample endpoint.
+ * <p/>
+ * The policyConfiguration is compiled once on startup into an XWSS processor, which validates the
+ * WSSE UsernameToken headers of all requests concurrently. Unless requireSecurityHeader is set, requests
+ * without a Security header pass unvalidated, so the sample endpoint serves clients with and without WSSE header.
+ *
+ * @author Robert Oschwald
+ */
+public class EndpointSecurityInterceptor extends XwsSecurityInterceptor {
+  private static final Logger log = LoggerFactory.getLogger(EndpointSecurityInterceptor.class);
+  private static final QName SECURITY_HEADER = new QName(
+      "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd", "Security");
+  private boolean requireSecurityHeader = false;
+
+  /**
+   * Reject requests without WSSE Security header. Default is false.
+   */
+  public void setRequireSecurityHeader(boolean requireSecurityHeader) {
+    this.requireSecurityHeader = requireSecurityHeader;
+  }
+
+  @Override
+  protected void validateMessage(SoapMessage soapMessage, MessageContext messageContext) throws XwsSecurityValidationException {
+    if (!this.requireSecurityHeader && !hasSecurityHeader(soapMessage)) {
+      if (log.isDebugEnabled()) {
+        log.debug("Request without Security header. Skipping validation.");
+      }
+      return;
+    }
+    super.validateMessage(soapMessage, messageContext);
+  }
+
+  private static boolean hasSecurityHeader(SoapMessage soapMessage) {
+    final SoapHeader header = soapMessage.getSoapHeader();
+    return header != null && header.examineHeaderElements(SECURITY_HEADER).hasNext();
+  }
+}
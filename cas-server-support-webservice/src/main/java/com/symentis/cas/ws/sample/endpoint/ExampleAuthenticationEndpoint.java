@@ -21,6 +21,9 @@ import com.symentis.cas.ws.sample.client.ExampleWsClient;
 import com.symentis.cas.ws.samples.auth.schema.AuthResponse;
 import org.apache.commons.lang.StringUtils;
 import com.symentis.cas.ws.samples.auth.schema.AuthRequest;
+import com.symentis.cas.ws.samples.auth.schema.AuthResult;
+import com.symentis.cas.ws.samples.auth.schema.BatchAuthRequest;
+import com.symentis.cas.ws.samples.auth.schema.BatchAuthResponse;
 import com.symentis.cas.ws.samples.auth.schema.ObjectFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,7 +43,7 @@ public class ExampleAuthenticationEndpoint {
   @PayloadRoot(namespace = "http://roos.cas.samples.ws.org/auth", localPart = "authRequest")
   @ResponsePayload
   public AuthResponse authenticate(@RequestPayload AuthRequest request) throws Exception {
-    log.warn("Dummy-Authenticating user with any password");
+    log.debug("Dummy-Authenticating user with any password");
 
     AuthResponse response = new ObjectFactory().createAuthResponse();
     if (StringUtils.isBlank(request.getNetid()) || StringUtils.isBlank(request.getPassword())){
@@ -52,4 +55,24 @@ public class ExampleAuthenticationEndpoint {
     response.setFirstname("TestFirstName");
     return response;
   }
+
+  @PayloadRoot(namespace = "http://roos.cas.samples.ws.org/auth", localPart = "batchAuthRequest")
+  @ResponsePayload
+  public BatchAuthResponse authenticateBatch(@RequestPayload BatchAuthRequest batch) {
+    log.debug("Dummy-Authenticating batch of " + batch.getAuthRequest().size() + " users with any password");
+    ObjectFactory factory = new ObjectFactory();
+    BatchAuthResponse response = factory.createBatchAuthResponse();
+    for (AuthRequest request : batch.getAuthRequest()) {
+      AuthResult result = factory.createAuthResult();
+      result.setNetid(request.getNetid());
+      // a failed authentication must not fault the other ones of the batch
+      result.setAuthenticated(StringUtils.isNotBlank(request.getNetid()) && StringUtils.isNotBlank(request.getPassword()));
+      if (result.isAuthenticated()) {
+        result.setLastname("TestLastName");
+        result.setFirstname("TestFirstName");
+      }
+      response.getAuthResult().add(result);
+    }
+    return response;
+  }
 }
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2015 symentis GmbH
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.symentis.cas.ws.sample.client;
+
+import org.jasig.cas.authentication.UsernamePasswordCredential;
+import org.jasig.cas.authentication.principal.Principal;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+import org.springframework.ws.WebServiceMessage;
+import org.springframework.ws.WebServiceMessageFactory;
+import org.springframework.ws.soap.saaj.SaajSoapMessage;
+import org.springframework.ws.soap.saaj.SaajSoapMessageFactory;
+import org.springframework.ws.transport.WebServiceConnection;
+import org.springframework.ws.transport.WebServiceMessageSender;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Concurrent logins of distinct users on one ExampleWsClient. Each request must carry the netid and WSSE header
+ * of its own login, and each login must get the principal of its own user.
+ *
+ * @author Robert Oschwald
+ */
+public class ExampleWsClientConcurrencyTest {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int THREADS = 16;
+  private static final int LOGINS_PER_THREAD = 200;
+
+  @Test
+  public void concurrentLoginsUseTheirOwnCredentials() throws Exception {
+    assertConcurrentLogins(null, null);
+  }
+
+  @Test
+  public void concurrentLoginsWithStaticWsseCredentials() throws Exception {
+    assertConcurrentLogins("casclient", "casclient-secret");
+  }
+
+  /*
+   * logs in distinct users from all threads at once. The WSSE header must hold the static credentials if set,
+   * otherwise those of the user.
+   */
+  private static void assertConcurrentLogins(final String wsUsername, final String wsPass) throws Exception {
+    final EchoMessageSender sender = new EchoMessageSender(wsUsername, wsPass);
+    final ExampleWsClient client = createClient(sender, wsUsername, wsPass);
+    final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+    final CountDownLatch start = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      final List<Future<?>> logins = new ArrayList<Future<?>>();
+      for (int t = 0; t < THREADS; t++) {
+        final int thread = t;
+        logins.add(executor.submit(new Runnable() {
+          public void run() {
+            try {
+              start.await();
+              for (int i = 0; i < LOGINS_PER_THREAD; i++) {
+                final String netid = "user" + thread + "x" + i;
+                final String password = "pw" + thread + "x" + i;
+                final Principal principal = client.doAuthentication(new UsernamePasswordCredential(netid, password));
+                // the backend echoes the WSSE header as firstname and lastname
+                final Object wsseUsername = principal.getAttributes().get("firstname");
+                final Object wssePassword = principal.getAttributes().get("lastname");
+                if (!netid.equals(principal.getId()) || !netid.equals(principal.getAttributes().get("netid"))
+                    || !(wsUsername == null ? netid : wsUsername).equals(wsseUsername)
+                    || !(wsPass == null ? password : wsPass).equals(wssePassword)) {
+                  failures.add(netid + "/" + password + " got " + principal.getId() + " " + principal.getAttributes());
+                }
+              }
+            } catch (Exception e) {
+              failures.add(e.toString());
+            }
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<?> login : logins) {
+        login.get(120, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertTrue(sender.mismatches.toString(), sender.mismatches.isEmpty());
+    assertEquals(THREADS * LOGINS_PER_THREAD, sender.requests.get());
+  }
+
+  private static ExampleWsClient createClient(WebServiceMessageSender sender, String wsUsername, String wsPass) throws Exception {
+    final SaajSoapMessageFactory messageFactory = new SaajSoapMessageFactory();
+    messageFactory.afterPropertiesSet();
+    final Jaxb2Marshaller marshaller = new Jaxb2Marshaller();
+    marshaller.setContextPath("com.symentis.cas.ws.samples.auth.schema");
+    marshaller.afterPropertiesSet();
+    final ExampleWsClient client = new ExampleWsClient();
+    client.setMessageFactory(messageFactory);
+    client.setMarshaller(marshaller);
+    client.setUnmarshaller(marshaller);
+    client.setMessageSender(sender);
+    client.setDefaultUri("http://localhost:8080/cas/auth/authentication.wsdl");
+    client.setUseWSSE(true);
+    client.setSecurityConfigResource(new ClassPathResource("wsse-client-test.xml"));
+    client.setWsUsername(wsUsername);
+    client.setWsPass(wsPass);
+    client.afterPropertiesSet();
+    return client;
+  }
+
+  /**
+   * In-process SOAP backend. Answers each authRequest with its netid, and the WSSE username and password of the
+   * request as firstname and lastname. Records requests whose WSSE header differs from the static credentials,
+   * or without static credentials from the authRequest.
+   */
+  private static final class EchoMessageSender implements WebServiceMessageSender {
+    final AtomicInteger requests = new AtomicInteger();
+    final Queue<String> mismatches = new ConcurrentLinkedQueue<String>();
+    private final String wsUsername;
+    private final String wsPass;
+
+    EchoMessageSender(String wsUsername, String wsPass) {
+      this.wsUsername = wsUsername;
+      this.wsPass = wsPass;
+    }
+
+    public WebServiceConnection createConnection(final URI uri) {
+      return new WebServiceConnection() {
+        private byte[] response;
+
+        public void send(WebServiceMessage message) throws IOException {
+          try {
+            final SOAPMessage soapMessage = ((SaajSoapMessage) message).getSaajMessage();
+            final String wsseUsername = text(soapMessage.getSOAPHeader().getElementsByTagNameNS("*", "Username"));
+            final String wssePassword = text(soapMessage.getSOAPHeader().getElementsByTagNameNS("*", "Password"));
+            final Element request = (Element) soapMessage.getSOAPBody().getElementsByTagNameNS("*", "authRequest").item(0);
+            final String netid = request.getAttribute("netid");
+            final String expectedUsername = wsUsername == null ? netid : wsUsername;
+            final String expectedPassword = wsPass == null ? request.getAttribute("password") : wsPass;
+            if (!expectedUsername.equals(wsseUsername) || !expectedPassword.equals(wssePassword)) {
+              mismatches.add(netid + " sent with WSSE header of " + wsseUsername);
+            }
+            requests.incrementAndGet();
+            this.response = ("<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<SOAP-ENV:Header/><SOAP-ENV:Body>"
+                + "<ns2:authResponse xmlns:ns2=\"http://roos.cas.samples.ws.org/auth\""
+                + " netid=\"" + netid + "\" firstname=\"" + wsseUsername + "\" lastname=\"" + wssePassword + "\"/>"
+                + "</SOAP-ENV:Body></SOAP-ENV:Envelope>").getBytes(UTF8);
+          } catch (SOAPException e) {
+            throw new IOException(e);
+          }
+        }
+
+        public WebServiceMessage receive(WebServiceMessageFactory messageFactory) throws IOException {
+          return messageFactory.createWebServiceMessage(new ByteArrayInputStream(this.response));
+        }
+
+        public URI getUri() {
+          return uri;
+        }
+
+        public boolean hasError() {
+          return false;
+        }
+
+        public String getErrorMessage() {
+          return null;
+        }
+
+        public void close() {
+        }
+      };
+    }
+
+    public boolean supports(URI uri) {
+      return true;
+    }
+
+    private static String text(NodeList nodes) {
+      return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+  }
+}